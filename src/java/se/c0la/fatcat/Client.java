@@ -1,8 +1,20 @@
 package se.c0la.fatcat;
 
+import java.net.InetAddress;
+
+import se.c0la.fatcat.async.EncodedMessage;
+
 public interface Client
 {
     public String getHost();
+    public InetAddress getInetAddress();
     public void sendMessage(String message);
+    public void sendMessage(EncodedMessage message);
     public void closeConnection();
+
+    /**
+     * Charge the client for a command, in milliseconds of flood control
+     * budget.
+     */
+    public void addPenalty(long millis);
 }
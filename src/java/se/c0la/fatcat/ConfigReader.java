@@ -9,7 +9,14 @@ import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.ArrayList;
 
+import se.c0la.fatcat.async.AdmissionController;
+import se.c0la.fatcat.async.AsyncBase;
+import se.c0la.fatcat.async.AsyncServer;
 import se.c0la.fatcat.async.AsyncSocketServer;
+import se.c0la.fatcat.async.BlockingSocketServer;
+import se.c0la.fatcat.async.Nio2SocketServer;
+import se.c0la.fatcat.context.EventBus;
+import se.c0la.fatcat.context.HostResolver;
 import se.c0la.fatcat.context.Operator;
 import se.c0la.fatcat.context.ServerContext;
 import se.c0la.fatcat.irc.MessageTokenizer;
@@ -17,8 +24,9 @@ import se.c0la.fatcat.irc.MessageTokenizer;
 public class ConfigReader 
 {
 	private ServerContext ctx;
-	private AsyncSocketServer server;
+	private AsyncServer server;
 	private List<String[]> foundSettings;
+	private AdmissionController admission;
 
 	public ConfigReader() 
     {
@@ -35,12 +43,12 @@ public class ConfigReader
 		this.ctx = ctx;
 	}
 
-	public AsyncSocketServer getAsyncServer() 
+	public AsyncServer getAsyncServer() 
     { 
         return server; 
     }
     
-	public void setAsyncServer(AsyncSocketServer server) 
+	public void setAsyncServer(AsyncServer server) 
     {
 		this.server = server;
 	}
@@ -81,6 +89,57 @@ public class ConfigReader
 		}
 	}
 	
+	/**
+	 * Create the server for the transport selected by the Transport
+	 * directive. This has to be done before validate(), since the other
+	 * directives configure the server.
+	 */
+	public AsyncServer createServer()
+	throws ConfigException 
+    {
+		String[] params = new String[] { "SELECTOR" };
+		for (String[] entry : foundSettings) {
+			if (!"TRANSPORT".equals(entry[0].toUpperCase())) {
+				continue;
+			}
+			
+			if (entry.length < 2 || entry.length > 3) {
+				throw new ConfigException("Transport <Selector|Blocking|Nio2> [threads]");
+			}
+			
+			params = new String[entry.length-1];
+			System.arraycopy(entry, 1, params, 0, params.length);
+		}
+		
+		String transport = params[0].toUpperCase();
+		if (params.length > 1 && !"NIO2".equals(transport)) {
+			throw new ConfigException("Only the Nio2 transport takes a number of threads");
+		}
+		
+		if ("SELECTOR".equals(transport)) {
+			return new AsyncSocketServer();
+		} else if ("BLOCKING".equals(transport)) {
+			return new BlockingSocketServer();
+		} else if ("NIO2".equals(transport)) {
+			int threads = 0;
+			if (params.length > 1) {
+				try {
+					threads = Integer.parseInt(params[1]);
+				} catch (NumberFormatException e) {
+					throw new ConfigException("Invalid number of threads: " + params[1]);
+				}
+				
+				if (threads < 0) {
+					throw new ConfigException("Invalid number of threads: " + params[1]);
+				}
+			}
+			
+			return new Nio2SocketServer(threads);
+		}
+		
+		throw new ConfigException("Invalid transport: " + transport);
+	}
+	
 	public void validate()
 	throws ConfigException 
     {
@@ -97,8 +156,40 @@ public class ConfigReader
 				serverNameMessage(params);
 			} else if ("SERVERINFO".equals(command)) {
 				serverInfoMessage(params);
+			} else if ("REACTORS".equals(command)) {
+				reactorsMessage(params);
+			} else if ("SENDQ".equals(command)) {
+				sendQueueMessage(params);
+			} else if ("PING".equals(command)) {
+				pingMessage(params);
+			} else if ("EVENTQUEUE".equals(command)) {
+				eventQueueMessage(params);
+			} else if ("CHANNELSHARDS".equals(command)) {
+				channelShardsMessage(params);
+			} else if ("HOSTLOOKUP".equals(command)) {
+				hostLookupMessage(params);
+			} else if ("CLONES".equals(command)) {
+				clonesMessage(params);
+			} else if ("CONNECTRATE".equals(command)) {
+				connectRateMessage(params);
+			} else if ("FLOOD".equals(command)) {
+				floodMessage(params);
+			} else if ("LINEBUDGET".equals(command)) {
+				lineBudgetMessage(params);
 			}
 		}
+		
+		// These transports call into the server context from as many
+		// threads as there are connections, so channel events need the
+		// shards to keep them in order.
+		if (needsChannelShards() && ctx.getChannelExecutor() == null) {
+			ctx.setChannelShards(Runtime.getRuntime().availableProcessors());
+		}
+	}
+	
+	private boolean needsChannelShards()
+	{
+		return server instanceof BlockingSocketServer || server instanceof Nio2SocketServer;
 	}
 	
 	private void listenMessage(String[] params)
@@ -148,4 +239,283 @@ public class ConfigReader
         
 		ctx.setServerInfo(params[0]);
 	}
+	
+	private void reactorsMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length < 1 || params.length > 2) {
+			throw new ConfigException("Reactors <workers> [RoundRobin|LeastLoaded]");
+        }
+        
+		if (!(server instanceof AsyncSocketServer)) {
+			throw new ConfigException("Reactors is only supported by the Selector transport");
+		}
+        
+		int workers;
+		try {
+			workers = Integer.parseInt(params[0]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid number of reactors: " + params[0]);
+		}
+		
+		if (workers < 0) {
+			throw new ConfigException("Invalid number of reactors: " + params[0]);
+		}
+		
+		AsyncBase.Balancing balancing = AsyncBase.Balancing.ROUND_ROBIN;
+		if (params.length > 1) {
+			if ("LEASTLOADED".equals(params[1].toUpperCase())) {
+				balancing = AsyncBase.Balancing.LEAST_LOADED;
+			} else if (!"ROUNDROBIN".equals(params[1].toUpperCase())) {
+				throw new ConfigException("Invalid balancing strategy: " + params[1]);
+			}
+		}
+		
+		((AsyncSocketServer)server).setWorkerCount(workers, balancing);
+	}
+	
+	private void lineBudgetMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length != 1) {
+			throw new ConfigException("LineBudget <lines>");
+        }
+        
+		if (!(server instanceof AsyncSocketServer)) {
+			throw new ConfigException("LineBudget is only supported by the Selector transport");
+		}
+        
+		int lines;
+		try {
+			lines = Integer.parseInt(params[0]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid line budget: " + params[0]);
+		}
+		
+		if (lines < 0) {
+			throw new ConfigException("Invalid line budget: " + params[0]);
+		}
+		
+		((AsyncSocketServer)server).setLineBudget(lines);
+	}
+	
+	private void sendQueueMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length != 2) {
+			throw new ConfigException("SendQ <soft limit> <hard limit>");
+        }
+        
+		int softLimit, hardLimit;
+		try {
+			softLimit = Integer.parseInt(params[0]);
+			hardLimit = Integer.parseInt(params[1]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid SendQ limits: " + params[0] + " " + params[1]);
+		}
+		
+		if (softLimit < 0 || hardLimit < 0) {
+			throw new ConfigException("Invalid SendQ limits: " + params[0] + " " + params[1]);
+		}
+		
+		server.setSendQueueLimits(softLimit, hardLimit);
+	}
+	
+	private void pingMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length != 2) {
+			throw new ConfigException("Ping <interval seconds> <timeout seconds>");
+        }
+        
+		long interval, timeout;
+		try {
+			interval = Long.parseLong(params[0]);
+			timeout = Long.parseLong(params[1]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid ping settings: " + params[0] + " " + params[1]);
+		}
+		
+		if (interval < 0 || timeout <= 0) {
+			throw new ConfigException("Invalid ping settings: " + params[0] + " " + params[1]);
+		}
+		
+		server.setHeartBeat(interval * 1000, timeout * 1000);
+	}
+	
+	private void floodMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length != 2) {
+			throw new ConfigException("Flood <budget seconds> <excess flood seconds>");
+        }
+        
+		long budget, excessFlood;
+		try {
+			budget = Long.parseLong(params[0]);
+			excessFlood = Long.parseLong(params[1]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid flood settings: " + params[0] + " " + params[1]);
+		}
+		
+		if (budget < 0 || excessFlood < 0) {
+			throw new ConfigException("Invalid flood settings: " + params[0] + " " + params[1]);
+		}
+		
+		server.setFloodControl(budget * 1000, excessFlood * 1000);
+	}
+	
+	private void eventQueueMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length < 1 || params.length > 2) {
+			throw new ConfigException("EventQueue <capacity> [Drop|Block|Coalesce]");
+        }
+        
+		int capacity;
+		try {
+			capacity = Integer.parseInt(params[0]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid event queue capacity: " + params[0]);
+		}
+		
+		if (capacity <= 0) {
+			throw new ConfigException("Invalid event queue capacity: " + params[0]);
+		}
+		
+		EventBus.Policy policy = EventBus.Policy.DROP;
+		if (params.length > 1) {
+			try {
+				policy = EventBus.Policy.valueOf(params[1].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new ConfigException("Invalid event queue policy: " + params[1]);
+			}
+		}
+		
+		ctx.getEventBus().setDefaults(capacity, policy);
+	}
+	
+	private void channelShardsMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length != 1) {
+			throw new ConfigException("ChannelShards <shards>");
+        }
+        
+		int shards;
+		try {
+			shards = Integer.parseInt(params[0]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid number of channel shards: " + params[0]);
+		}
+		
+		if (shards < 0) {
+			throw new ConfigException("Invalid number of channel shards: " + params[0]);
+		}
+		
+		if (shards == 0 && needsChannelShards()) {
+			throw new ConfigException("The Blocking and Nio2 transports need at least one channel shard");
+		}
+		
+		ctx.setChannelShards(shards);
+	}
+	
+	private void hostLookupMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length < 1 || params.length > 2) {
+			throw new ConfigException("HostLookup <threads> [timeout seconds]");
+        }
+        
+		int threads;
+		try {
+			threads = Integer.parseInt(params[0]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid number of lookup threads: " + params[0]);
+		}
+		
+		if (threads < 0) {
+			throw new ConfigException("Invalid number of lookup threads: " + params[0]);
+		}
+		
+		long timeout = HostResolver.DEFAULT_TIMEOUT / 1000;
+		if (params.length > 1) {
+			try {
+				timeout = Long.parseLong(params[1]);
+			} catch (NumberFormatException e) {
+				throw new ConfigException("Invalid lookup timeout: " + params[1]);
+			}
+			
+			if (timeout <= 0) {
+				throw new ConfigException("Invalid lookup timeout: " + params[1]);
+			}
+		}
+		
+		ctx.setHostLookup(threads, timeout * 1000);
+	}
+	
+	/**
+	 * Both Clones and ConnectRate configure the same controller, which
+	 * is only installed if either is present.
+	 */
+	private AdmissionController getAdmissionController()
+	{
+		if (admission == null) {
+			admission = new AdmissionController();
+			server.setAdmissionController(admission);
+		}
+		
+		return admission;
+	}
+	
+	private void clonesMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length != 1 && params.length != 2 && params.length != 4) {
+			throw new ConfigException("Clones <per address> [<per network> [<ipv4 prefix> <ipv6 prefix>]]");
+        }
+        
+		int[] values = new int[] { 0, 0, AdmissionController.DEFAULT_IPV4_PREFIX,
+			AdmissionController.DEFAULT_IPV6_PREFIX };
+		for (int i = 0; i < params.length; i++) {
+			try {
+				values[i] = Integer.parseInt(params[i]);
+			} catch (NumberFormatException e) {
+				throw new ConfigException("Invalid clone limit: " + params[i]);
+			}
+			
+			if (values[i] < 0) {
+				throw new ConfigException("Invalid clone limit: " + params[i]);
+			}
+		}
+		
+		if (values[2] > 32 || values[3] > 128) {
+			throw new ConfigException("Invalid prefix length: " + params[2] + " " + params[3]);
+		}
+		
+		getAdmissionController().setConnectionLimits(values[0], values[1], values[2], values[3]);
+	}
+	
+	private void connectRateMessage(String[] params)
+	throws ConfigException 
+    {
+		if (params.length != 2) {
+			throw new ConfigException("ConnectRate <connections per second> <burst>");
+        }
+        
+		double rate;
+		int burst;
+		try {
+			rate = Double.parseDouble(params[0]);
+			burst = Integer.parseInt(params[1]);
+		} catch (NumberFormatException e) {
+			throw new ConfigException("Invalid connect rate: " + params[0] + " " + params[1]);
+		}
+		
+		if (rate < 0 || (rate > 0 && burst < 1)) {
+			throw new ConfigException("Invalid connect rate: " + params[0] + " " + params[1]);
+		}
+		
+		getAdmissionController().setRate(rate, burst);
+	}
 }
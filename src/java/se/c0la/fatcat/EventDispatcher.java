@@ -7,11 +7,11 @@ import se.c0la.fatcat.async.*;
 
 public class EventDispatcher implements AsyncConnectionListener
 {
-	private AsyncSocketServer server;
+	private AsyncServer server;
 	private ServerContext ctx;
     private Protocol defaultProtocol;
 
-	public EventDispatcher(AsyncSocketServer server, ServerContext ctx)
+	public EventDispatcher(AsyncServer server, ServerContext ctx)
 	{
 		this.server = server;
 		this.ctx = ctx;
@@ -60,10 +60,30 @@ public class EventDispatcher implements AsyncConnectionListener
         }
 	}
 
+	@Override
+	public void heartBeat(AsyncConnection conn)
+	{
+        Client client = (Client)conn.getUserObject();
+		User user = ctx.getUser(client);
+		if (user == null || !user.hasRegistered()) {
+			return;
+		}
+		
+		PropagationProtocol propProtocol = user.getPropagationProtocol();
+		propProtocol.sendHeartBeat(user);
+	}
+
 	@Override
 	public void disconnected(AsyncConnection conn)
 	{
         Client client = (Client)conn.getUserObject();
+        
+        // Connections dropped by the server carry their own quit message
+        String reason = conn.getCloseReason();
+        if (reason != null) {
+            ctx.setQuitMessage(client, reason);
+        }
+        
 		ctx.userDisconnectedEvent(client);
 	}
 }
@@ -1,12 +1,14 @@
 package se.c0la.fatcat;
 
-import java.util.concurrent.*;
 import se.c0la.fatcat.context.*;
 import se.c0la.fatcat.async.*;
 import se.c0la.fatcat.irc.*;
 
 public class FatCat
 {
+	private static final long PING_INTERVAL = 120000L;
+	private static final long TIMEOUT_INTERVAL = 120000L;
+
 	public static void main(String[] args)
 	{
 		try {
@@ -19,13 +21,15 @@ public class FatCat
                 return;
             }
         
-			AsyncSocketServer server = new AsyncSocketServer();
+			ConfigReader config = new ConfigReader();
+			config.parse("config.txt");
+			
+			AsyncServer server = config.createServer();
+			server.setHeartBeat(PING_INTERVAL, TIMEOUT_INTERVAL);
 			ServerContext ctx = new ServerContext(server);
 			
-			ConfigReader config = new ConfigReader();
 			config.setServerContext(ctx);
 			config.setAsyncServer(server);
-			config.parse("config.txt");
 			config.validate();
 			
 			EventDispatcher dispatcher = new EventDispatcher(server, ctx);
@@ -33,9 +37,6 @@ public class FatCat
 			server.addConnectionListener(dispatcher);
 			
 			server.listen();
-            
-			ExecutorService monitoringService = Executors.newSingleThreadExecutor();
-			monitoringService.submit(new ConnectionMonitor(ctx));
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -6,7 +6,10 @@ import se.c0la.fatcat.context.*;
 
 /**
  * This class is called by the ServerContext whenever an event
- * needs to be propagated to other Clients.
+ * needs to be propagated to other Clients. Events that go out to
+ * many users at once, such as channel traffic, have fan-out variants
+ * that take all recipients, so that the event only has to be
+ * serialized once.
  */
 public interface PropagationProtocol
 {
@@ -27,4 +30,19 @@ public interface PropagationProtocol
 	public void quit(User targetUser, User source, String message);
 	public void attributeChange(User targetUser, User sourceUser, Channel channel, 
 		List<AttributeChange> channelAttrs);
+
+	// Fan-out variants
+	public void message(Collection<User> targetUsers, User source, String target, String message);
+	public void notice(Collection<User> targetUsers, User source, String target, String message);
+	public void nickChange(Collection<User> targetUsers, User source, String newNick);
+	public void joinedChannel(Collection<User> targetUsers, User source, Channel channel);
+	public void partedChannel(Collection<User> targetUsers, User source, Channel channel, 
+		String message);
+	public void kickedFromChannel(Collection<User> targetUsers, User source, Channel channel, 
+		User kickedUser, String message);
+	public void topicChanged(Collection<User> targetUsers, User sourceUser, Channel channel, 
+		String message);
+	public void quit(Collection<User> targetUsers, User source, String message);
+	public void attributeChange(Collection<User> targetUsers, User sourceUser, Channel channel, 
+		List<AttributeChange> channelAttrs);
 }
@@ -1,13 +1,15 @@
 package se.c0la.fatcat;
 
+import java.net.InetAddress;
+
 import se.c0la.fatcat.async.*;
 
 public class SocketClient implements Client
 {
-    private AsyncSocketServer server;
+    private AsyncServer server;
     private AsyncConnection conn;
 
-    public SocketClient(AsyncSocketServer server, AsyncConnection conn)
+    public SocketClient(AsyncServer server, AsyncConnection conn)
     {
         this.server = server;
         this.conn = conn;
@@ -17,17 +19,32 @@ public class SocketClient implements Client
     {
         return conn.getHost();
     }
+
+    public InetAddress getInetAddress()
+    {
+        return conn.getInetAddress();
+    }
     
     public void sendMessage(String message)
     {
         server.sendMessage(conn, message);
     }
     
+    public void sendMessage(EncodedMessage message)
+    {
+        server.sendMessage(conn, message);
+    }
+    
     public void closeConnection()
     {
         server.closeConnection(conn);
     }
     
+    public void addPenalty(long millis)
+    {
+        conn.addPenalty(millis);
+    }
+    
     @Override
     public boolean equals(Object obj)
     {
@@ -0,0 +1,241 @@
+package se.c0la.fatcat.async;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether to accept a new connection, based on its remote
+ * address alone, so that a rejected socket can be closed before anything
+ * else is allocated for it. Three limits apply, each disabled by zero:
+ *
+ * - The number of connections open from the same address.
+ * - The number of connections open from the same network, being the
+ *   address masked to a configurable prefix length. This catches clones
+ *   spread over a subnet, as is common with IPv6.
+ * - The rate of connection attempts from the same address, as a token
+ *   bucket refilled at a steady rate up to a burst size. Every attempt
+ *   takes a token, including the ones rejected by the other limits, so
+ *   a client reconnecting in a tight loop stays throttled.
+ *
+ * Transports call admit() once they have the address of an accepted
+ * socket, and release() when a connection that was admitted closes.
+ * Both take constant time, except for an occasional sweep of addresses
+ * that have no open connections and a full bucket.
+ */
+public class AdmissionController
+{
+	public final static int DEFAULT_IPV4_PREFIX = 24;
+	public final static int DEFAULT_IPV6_PREFIX = 64;
+
+	private final static long SWEEP_INTERVAL = 60 * 1000L;
+
+	private static class Entry
+	{
+		private int connections;
+		private double tokens;
+		private long updated;
+	}
+
+	private int maxPerAddress;
+	private int maxPerNetwork;
+	private int ipv4Prefix;
+	private int ipv6Prefix;
+
+	// Tokens per millisecond
+	private double rate;
+	private int burst;
+
+	private Map<InetAddress, Entry> addresses;
+	private Map<InetAddress, Entry> networks;
+	private long lastSweep;
+
+	private AtomicLong admitted;
+	private AtomicLong rejectedAddress;
+	private AtomicLong rejectedNetwork;
+	private AtomicLong rejectedRate;
+
+	public AdmissionController()
+	{
+		maxPerAddress = 0;
+		maxPerNetwork = 0;
+		ipv4Prefix = DEFAULT_IPV4_PREFIX;
+		ipv6Prefix = DEFAULT_IPV6_PREFIX;
+
+		rate = 0;
+		burst = 0;
+
+		addresses = new HashMap<InetAddress, Entry>();
+		networks = new HashMap<InetAddress, Entry>();
+		lastSweep = 0;
+
+		admitted = new AtomicLong(0);
+		rejectedAddress = new AtomicLong(0);
+		rejectedNetwork = new AtomicLong(0);
+		rejectedRate = new AtomicLong(0);
+	}
+
+	/**
+	 * Limit the number of connections open from the same address, and
+	 * from the same network as given by the prefix lengths.
+	 */
+	public synchronized void setConnectionLimits(int perAddress, int perNetwork,
+		int ipv4Prefix, int ipv6Prefix)
+	{
+		if (ipv4Prefix < 0 || ipv4Prefix > 32 || ipv6Prefix < 0 || ipv6Prefix > 128) {
+			throw new IllegalArgumentException("Invalid prefix length");
+		}
+
+		this.maxPerAddress = perAddress;
+		this.maxPerNetwork = perNetwork;
+		this.ipv4Prefix = ipv4Prefix;
+		this.ipv6Prefix = ipv6Prefix;
+	}
+
+	/**
+	 * Limit connection attempts from the same address to perSecond on
+	 * average, allowing bursts of up to burst attempts.
+	 */
+	public synchronized void setRate(double perSecond, int burst)
+	{
+		this.rate = perSecond / 1000;
+		this.burst = burst;
+	}
+
+	public long getAdmitted() { return admitted.get(); }
+	public long getRejectedAddress() { return rejectedAddress.get(); }
+	public long getRejectedNetwork() { return rejectedNetwork.get(); }
+	public long getRejectedRate() { return rejectedRate.get(); }
+
+	/**
+	 * Return true and count the connection if it may be accepted. The
+	 * caller must call release() once it closes.
+	 */
+	public synchronized boolean admit(InetAddress addr, long now)
+	{
+		if (now - lastSweep >= SWEEP_INTERVAL) {
+			sweep(now);
+			lastSweep = now;
+		}
+
+		Entry entry = addresses.get(addr);
+		if (entry == null) {
+			entry = new Entry();
+			entry.tokens = burst;
+			entry.updated = now;
+			addresses.put(addr, entry);
+		}
+
+		if (rate > 0) {
+			entry.tokens = Math.min(burst, entry.tokens + (now - entry.updated) * rate);
+			entry.updated = now;
+
+			if (entry.tokens < 1) {
+				rejectedRate.incrementAndGet();
+				return false;
+			}
+
+			entry.tokens -= 1;
+		}
+
+		if (maxPerAddress > 0 && entry.connections >= maxPerAddress) {
+			rejectedAddress.incrementAndGet();
+			return false;
+		}
+
+		InetAddress network = null;
+		Entry networkEntry = null;
+		if (maxPerNetwork > 0) {
+			network = mask(addr);
+			networkEntry = networks.get(network);
+			if (networkEntry != null && networkEntry.connections >= maxPerNetwork) {
+				rejectedNetwork.incrementAndGet();
+				return false;
+			}
+		}
+
+		entry.connections++;
+		if (network != null) {
+			if (networkEntry == null) {
+				networkEntry = new Entry();
+				networks.put(network, networkEntry);
+			}
+			networkEntry.connections++;
+		}
+
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	public synchronized void release(InetAddress addr)
+	{
+		Entry entry = addresses.get(addr);
+		if (entry != null && entry.connections > 0) {
+			entry.connections--;
+
+			// Without a rate, there's nothing left worth keeping
+			if (entry.connections == 0 && rate == 0) {
+				addresses.remove(addr);
+			}
+		}
+
+		if (networks.isEmpty()) {
+			return;
+		}
+
+		InetAddress network = mask(addr);
+		Entry networkEntry = networks.get(network);
+		if (networkEntry != null) {
+			networkEntry.connections--;
+			if (networkEntry.connections <= 0) {
+				networks.remove(network);
+			}
+		}
+	}
+
+	/**
+	 * Forget addresses without connections whose buckets have filled
+	 * up again, since a new entry would be the same.
+	 */
+	private void sweep(long now)
+	{
+		Iterator<Entry> it = addresses.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.connections > 0) {
+				continue;
+			}
+
+			if (rate == 0 || entry.tokens + (now - entry.updated) * rate >= burst) {
+				it.remove();
+			}
+		}
+	}
+
+	private InetAddress mask(InetAddress addr)
+	{
+		byte[] bytes = addr.getAddress();
+		int prefix = (addr instanceof Inet4Address ? ipv4Prefix : ipv6Prefix);
+
+		for (int i = 0; i < bytes.length; i++) {
+			int bits = prefix - i * 8;
+			if (bits >= 8) {
+				continue;
+			}
+
+			bytes[i] &= (bits <= 0 ? 0 : (0xFF << (8 - bits)));
+		}
+
+		try {
+			return InetAddress.getByAddress(bytes);
+		}
+		catch (UnknownHostException e) {
+			// Only thrown for addresses of illegal length
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -1,36 +1,65 @@
 package se.c0la.fatcat.async;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 
+/**
+ * Base class for selector driven servers and clients. By default
+ * everything runs on a single reactor on the thread calling listen().
+ * If worker reactors are configured, the listening thread only accepts
+ * new connections and hands them over to the workers, which each run
+ * their own selector on a separate thread. Listeners are always
+ * notified on the thread of the reactor owning the connection.
+ */
 public abstract class AsyncBase
 {
-	private final static int BUFFER_SIZE = 8092;
-	
+	/**
+	 * Strategy used to pick a worker reactor for a new connection.
+	 */
+	public enum Balancing
+	{
+		ROUND_ROBIN,
+		LEAST_LOADED
+	}
+
+	public final static int DEFAULT_SENDQ_SOFT_LIMIT = 512 * 1024;
+	public final static int DEFAULT_SENDQ_HARD_LIMIT = 4 * 1024 * 1024;
+	public final static long SENDQ_SOFT_GRACE = 30000L;
+
+	public final static long DEFAULT_FLOOD_BUDGET = 10000L;
+	public final static long DEFAULT_EXCESS_FLOOD = 60000L;
+
+	public final static int DEFAULT_LINE_BUDGET = 8;
+
     private int timeout;
-    
+    private long heartBeatInterval;
+    private long heartBeatTimeout;
+    private volatile int sendQueueSoftLimit;
+    private volatile int sendQueueHardLimit;
+    private volatile long floodBudget;
+    private volatile long excessFlood;
+    private volatile int lineBudget;
+
 	protected List<AsyncConnectionListener> listeners;
 
 	protected Selector socketSelector = null;
-	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-	
+	protected AsyncReactor primaryReactor = null;
+	protected List<AsyncReactor> workerReactors;
+
+	private int workerCount;
+	private Balancing balancing;
+	private int nextWorker;
+
 	protected Set<AsyncConnection> connections;
-	private Queue<AsyncConnection> writeQueue;
-	private Queue<AsyncConnection> disconnectQueue;
-	
+
+	protected volatile AdmissionController admission;
+
 	protected int connSequence;
 	protected volatile boolean running;
 
@@ -38,265 +67,252 @@ public abstract class AsyncBase
 	{
 		listeners = new ArrayList<AsyncConnectionListener>();
 		connections = new ConcurrentSkipListSet<AsyncConnection>();
-		writeQueue = new ConcurrentLinkedQueue<AsyncConnection>();
-		disconnectQueue = new ConcurrentLinkedQueue<AsyncConnection>();
-		
+		workerReactors = new ArrayList<AsyncReactor>();
+
         timeout = 0;
+		heartBeatInterval = 0;
+		heartBeatTimeout = 0;
+		sendQueueSoftLimit = DEFAULT_SENDQ_SOFT_LIMIT;
+		sendQueueHardLimit = DEFAULT_SENDQ_HARD_LIMIT;
+		floodBudget = DEFAULT_FLOOD_BUDGET;
+		excessFlood = DEFAULT_EXCESS_FLOOD;
+		lineBudget = DEFAULT_LINE_BUDGET;
+		workerCount = 0;
+		balancing = Balancing.ROUND_ROBIN;
+		nextWorker = 0;
+		admission = null;
 		connSequence = 0;
 		running = false;
 	}
-    
+
     public void setTimeout(int milliSeconds)
     {
         this.timeout = milliSeconds;
     }
-	
+
+    public int getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Ask listeners to send a heart beat to connections that have been
+     * idle for interval milliseconds, and disconnect them with the reason
+     * "Ping timeout" if nothing is received within timeout milliseconds
+     * after that. An interval of zero disables heart beats.
+     */
+    public void setHeartBeat(long interval, long timeout)
+    {
+        this.heartBeatInterval = interval;
+        this.heartBeatTimeout = timeout;
+    }
+
+    public long getHeartBeatInterval() { return heartBeatInterval; }
+    public long getHeartBeatTimeout() { return heartBeatTimeout; }
+
+    /**
+     * Limit the number of bytes that may be queued for a connection. A
+     * connection that would go past the hard limit, or that stays above
+     * the soft limit for longer than SENDQ_SOFT_GRACE, is disconnected
+     * with the reason "SendQ exceeded". A limit of zero disables it.
+     */
+    public void setSendQueueLimits(int softLimit, int hardLimit)
+    {
+        this.sendQueueSoftLimit = softLimit;
+        this.sendQueueHardLimit = hardLimit;
+    }
+
+    public int getSendQueueSoftLimit() { return sendQueueSoftLimit; }
+    public int getSendQueueHardLimit() { return sendQueueHardLimit; }
+
+    /**
+     * Stop reading from connections whose penalty is more than budget
+     * milliseconds, until it has decayed, and disconnect them with the
+     * reason "Excess Flood" if they're still over budget after
+     * excessFlood milliseconds. A budget of zero disables it.
+     */
+    public void setFloodControl(long budget, long excessFlood)
+    {
+        this.floodBudget = budget;
+        this.excessFlood = excessFlood;
+    }
+
+    public long getFloodBudget() { return floodBudget; }
+    public long getExcessFlood() { return excessFlood; }
+
+    /**
+     * Limit the number of lines processed for a connection on each pass
+     * of its reactor. Lines beyond that wait for the next pass, once
+     * every other connection with input has had its turn. Zero processes
+     * everything that has been read right away.
+     */
+    public void setLineBudget(int lines)
+    {
+        this.lineBudget = lines;
+    }
+
+    public int getLineBudget() { return lineBudget; }
+
+    /**
+     * Configure the number of worker reactors. With zero workers, which is
+     * the default, all I/O is performed by the listening thread.
+     */
+    public void setWorkerCount(int workers, Balancing balancing)
+    {
+		if (socketSelector != null) {
+			throw new IllegalStateException("Server has already been initialized.");
+		}
+
+        this.workerCount = workers;
+        this.balancing = balancing;
+    }
+
+	public void setAdmissionController(AdmissionController controller)
+	{
+		this.admission = controller;
+	}
+
 	public void addConnectionListener(AsyncConnectionListener listener)
 	{
 		listeners.add(listener);
 	}
-	
+
 	public void removeConnectionListener(AsyncConnectionListener listener)
 	{
 		listeners.remove(listener);
 	}
-	
+
 	public Set<AsyncConnection> getConnections()
 	{
 		return Collections.unmodifiableSet(connections);
 	}
-	
+
+	/**
+	 * The reactors of the server, starting with the primary one. Empty
+	 * until the server is listening.
+	 */
+	public List<AsyncReactor> getReactors()
+	{
+		List<AsyncReactor> reactors = new ArrayList<AsyncReactor>();
+		if (primaryReactor != null) {
+			reactors.add(primaryReactor);
+		}
+		reactors.addAll(workerReactors);
+
+		return reactors;
+	}
+
 	public void sendMessage(AsyncConnection conn, String message)
 	{
-		conn.addMessage(message);
-		writeQueue.offer(conn);
-		socketSelector.wakeup();
+		sendMessage(conn, new EncodedMessage(message));
+	}
+
+	/**
+	 * Queue a message that has already been encoded. The same instance
+	 * can be sent to any number of connections.
+	 */
+	public void sendMessage(AsyncConnection conn, EncodedMessage message)
+	{
+		if (!conn.addMessage(message, sendQueueSoftLimit, sendQueueHardLimit,
+			SENDQ_SOFT_GRACE)) {
+
+			// Slow consumers are evicted rather than allowed to
+			// grow their queue without bounds.
+			if (conn.markClosing("SendQ exceeded")) {
+				closeConnection(conn);
+			}
+			return;
+		}
+
+		conn.getReactor().requestWrite(conn);
 	}
-	
+
 	public void closeConnection(AsyncConnection conn)
 	{
-		disconnectQueue.add(conn);
-		socketSelector.wakeup();
+		conn.getReactor().requestDisconnect(conn);
 	}
-	
+
 	public void shutdown()
 	{
 		this.running = false;
-		socketSelector.wakeup();
+		for (AsyncReactor reactor : workerReactors) {
+			reactor.shutdown();
+		}
+		primaryReactor.shutdown();
 	}
-	
+
 	protected abstract void initialize()
 	throws IOException;
-    
+
     protected void deinitialize()
     throws IOException
     {
-        socketSelector.close();
     }
-	
+
 	public void listen()
 	throws IOException
 	{
 		if (socketSelector != null) {
 			throw new IllegalStateException("Server has already been initialized.");
 		}
-	
-		// Retrieve a selector
-		SelectorProvider provider = SelectorProvider.provider();
-		this.socketSelector = provider.openSelector();
-		
+
+		// The primary reactor runs on this thread and owns all
+		// listening and connecting channels.
+		this.primaryReactor = new AsyncReactor(this, "reactor-main");
+		this.socketSelector = primaryReactor.getSelector();
+
 		// Initialize all channels
 		initialize();
-		
+
+		// Start the worker reactors, if any
+		for (int i = 0; i < workerCount; i++) {
+			AsyncReactor reactor = new AsyncReactor(this, "reactor-" + i);
+			workerReactors.add(reactor);
+
+			Thread thread = new Thread(reactor, reactor.getName());
+			thread.start();
+		}
+
 		// Main loop
         this.running = true;
-		while (this.running) {
-			// Check the list of connections with pending writes
-			// and set them to write mode
-			AsyncConnection conn;
-			while ((conn = writeQueue.poll()) != null) {
-				try {
-					SelectionKey key = conn.getSelectionKey();
-					key.interestOps(SelectionKey.OP_WRITE);
-				}
-				catch (CancelledKeyException e) {
-					// Suppressed
-					continue;
-				}
-			}
-			
-            if (timeout != 0) {
-                // If timeout is enabled we have to wake up every now
-                // and then to check for them.
-                socketSelector.select(timeout/10);
-            } else {
-                // Otherwise we block continously until we receive an event
-                socketSelector.select(timeout);
-            }
-			
-			// Iterate through all events. Keys have to be
-			// removed explicitly, so we use an iterator.
-			Set<SelectionKey> keys = socketSelector.selectedKeys();
-			Iterator<SelectionKey> iterator = keys.iterator();
-			for ( ; iterator.hasNext(); ) {
-				SelectionKey key = iterator.next();
-				if (!key.isValid()) {
-					continue;
-				}
-				
-				iterator.remove();
-				
-				// Handle new connections
-				if (key.isAcceptable()) {
-					accept(key);
-				}
-				else if (key.isConnectable()) {
-					connect(key);
-				}
-				// Handle incoming data
-				else if (key.isReadable()) {
-					read(key);
-				}
-				// Write outgoing data
-				else if (key.isWritable()) {
-					write(key);
-				}
-			}
+		primaryReactor.loop();
 
-            // Handle timeouts
-            if (timeout != 0) {
-                for (AsyncConnection cur : connections) {
-                    long diff = System.currentTimeMillis() - cur.getLastActivity();
-                    if (diff < timeout) {
-                        continue;
-                    }
-                    
-                    disconnect(cur);
-                }
-            }
-            
-			// Handle any connections in the disconnect queue
-			while ((conn = disconnectQueue.poll()) != null) {
-				disconnect(conn);
-			}
-		}
-        
         deinitialize();
 	}
-	
-	protected void connect(SelectionKey key)
-	throws IOException
-	{
-	}
-	
-	protected void accept(SelectionKey key)
-	throws IOException
-	{
-	}
-	
-	private void read(SelectionKey key)
-	throws IOException
+
+	/**
+	 * Select the reactor that should own a newly accepted connection.
+	 */
+	protected AsyncReactor nextReactor()
 	{
-		AsyncConnection conn = (AsyncConnection)key.attachment();
-        
-		SocketChannel clientChannel = conn.getChannel();
-		
-		readBuffer.clear();
-		
-		int numRead;
-		try {
-			numRead = clientChannel.read(readBuffer);
-		}
-		catch (IOException e) {
-			key.cancel();
-			clientChannel.close();
-			return;
+		if (workerReactors.isEmpty()) {
+			return primaryReactor;
 		}
-		
-		// Connection closed
-		if (numRead == -1) {
-			disconnect(conn);
-			return;
-		}
-		
-		// The buffer is used to store data we have already
-		// received that didn't contain any line break
-		StringBuffer buffer = conn.getReadBuffer();
-		
-		// Merge stored data with the current and clear the
-		// buffer so we can reuse it
-		buffer.append(new String(readBuffer.array(), 0, numRead, "ISO-8859-1"));
-		String data = buffer.toString();
-		buffer.delete(0, buffer.length());
-		
-		// Process one line at a time
-		int idx;
-		while ((idx = data.indexOf('\n')) != -1) {
-			String line = data.substring(0, idx).trim();
-			data = data.substring(idx + 1);
-			
-			// Notify listeners
-			for (AsyncConnectionListener listener : listeners) {
-				listener.messageReceived(conn, line);
+
+		if (balancing == Balancing.LEAST_LOADED) {
+			AsyncReactor best = null;
+			for (AsyncReactor reactor : workerReactors) {
+				if (best == null || reactor.getConnectionCount() < best.getConnectionCount()) {
+					best = reactor;
+				}
 			}
+
+			return best;
 		}
-		
-		// All remaining data is put in the buffer
-		if (data.length() > 0) {
-			buffer.append(data);
-		}
-        
-		conn.setLastActivity(System.currentTimeMillis());
-		conn.setLastHeartBeat(System.currentTimeMillis());
+
+		AsyncReactor reactor = workerReactors.get(nextWorker);
+		nextWorker = (nextWorker + 1) % workerReactors.size();
+
+		return reactor;
 	}
-	
-	private void write(SelectionKey key)
+
+	protected void connect(SelectionKey key)
 	throws IOException
 	{
-		AsyncConnection conn = (AsyncConnection)key.attachment();
-       
-		SocketChannel clientChannel = conn.getChannel();
-		
-		try {
-			List<String> messages = conn.getMessages();
-			for (String message : messages) {
-				message = message + "\n";
-				ByteBuffer writeBuffer = ByteBuffer.wrap(message.getBytes());
-				while (writeBuffer.remaining() > 0) {
-					clientChannel.write(writeBuffer);
-				}
-			}
-			
-			// Restore the channel to read mode
-			key.interestOps(SelectionKey.OP_READ);
-		}
-		catch (IOException e) {
-			disconnect(conn);
-			return;
-		}
 	}
-	
-	private void disconnect(AsyncConnection conn)
-	{
-		connections.remove(conn);
-		conn.setConnected(false);
-	
-		try {
-			SelectionKey key = conn.getSelectionKey();
-			key.cancel();
-			
-			SocketChannel channel = conn.getChannel();
-			channel.close();
-		}
-		catch (IOException e) {
-			// If this fails, it's probably because we're
-			// already disconnected. Lets assume that everything
-			// is fine.
-		}
 
-		// Notify listeners
-		for (AsyncConnectionListener listener : listeners) {
-			listener.disconnected(conn);
-		}
+	protected void accept(SelectionKey key)
+	throws IOException
+	{
 	}
 }
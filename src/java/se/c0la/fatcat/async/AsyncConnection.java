@@ -2,40 +2,87 @@ package se.c0la.fatcat.async;
 
 import java.net.InetSocketAddress;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AsyncConnection implements Comparable<AsyncConnection>
 {
     private InetSocketAddress host = null;
 
 	private int seq;
+	private AsyncReactor reactor;
 	private SelectionKey key;
 	
 	private volatile boolean connected;
 
-	private StringBuffer buffer;
-	private List<String> outgoing;
+	private LineFramer framer;
+	private ArrayDeque<ByteBuffer> outgoing;
+	private TimingWheel.Timer timer;
+
+	// Set while the connection is in the write queue of its reactor
+	private AtomicBoolean writePending;
+
+	// The controller that admitted the connection, if any
+	private volatile AdmissionController admission;
+	
+	// Send queue accounting, guarded by this
+	private int sendQueueBytes = 0;
+	private int sendQueuePeak = 0;
+	private long sendQueueSoftSince = 0;
+	private String closeReason = null;
     
-	private long lastActivity = 0;
-	private long lastHeartBeat = 0;
+	private long connectTime;
+	private volatile long lastActivity = 0;
+	private volatile long lastHeartBeat = 0;
+
+	// Flood control. The penalty clock runs ahead of the current time
+	// by the cost of the recent commands of the connection, and
+	// floodSince is when it last went over budget without decaying in
+	// between.
+	private volatile long penaltyClock = 0;
+	private volatile long floodSince = 0;
+
+	// Set while the reactor has stopped reading from the connection
+	private boolean readSuspended = false;
+
+	// Set while the connection has lines left over from a pass of its
+	// reactor, waiting for another turn
+	private boolean inputPending = false;
+	
+	private volatile long sentMessages = 0;
+	private volatile long sentBytes = 0;
+	private volatile long receivedMessages = 0;
+	private volatile long receivedBytes = 0;
     
     private Object userObject;
 
-	public AsyncConnection(int seq, SelectionKey key, InetSocketAddress host)
+	public AsyncConnection(int seq, AsyncReactor reactor, SelectionKey key, InetSocketAddress host)
     {
         this.host = host;
 		this.seq = seq;
+		this.reactor = reactor;
 		this.key = key;
 		this.connected = true;
-        this.lastActivity = System.currentTimeMillis();
+		this.connectTime = System.currentTimeMillis();
+        this.lastActivity = connectTime;
 	
-		buffer = new StringBuffer();
-		outgoing = new ArrayList<String>();
+		framer = new LineFramer();
+		outgoing = new ArrayDeque<ByteBuffer>();
+		timer = new TimingWheel.Timer(this);
+		writePending = new AtomicBoolean(false);
     }
+
+	/**
+	 * Used by transports that don't run connections on a reactor.
+	 */
+	protected AsyncConnection(int seq, InetSocketAddress host)
+	{
+		this(seq, null, null, host);
+	}
     
 	//
 	// Public methods
@@ -46,15 +93,61 @@ public class AsyncConnection implements Comparable<AsyncConnection>
 	protected synchronized void setConnected(boolean v) { this.connected = v; }
 	public synchronized boolean isConnected() { return connected; }
     
+	public long getConnectTime() { return connectTime; }
+	
 	public long getLastActivity() { return lastActivity; }
 	public void setLastActivity(long v) { this.lastActivity = v; }
 	
 	public long getLastHeartBeat() { return lastHeartBeat; }
 	public void setLastHeartBeat(long v) { this.lastHeartBeat = v; }
+
+	/**
+	 * Charge the connection for a command, by moving its penalty clock
+	 * ahead by the given number of milliseconds. Called by listeners
+	 * while handling a line, on the thread reading the connection.
+	 */
+	public void addPenalty(long millis)
+	{
+		long now = System.currentTimeMillis();
+
+		// Once the clock has caught up, the connection is off the hook
+		if (penaltyClock <= now) {
+			penaltyClock = now;
+			floodSince = 0;
+		}
+
+		penaltyClock += millis;
+	}
+
+	/**
+	 * The number of milliseconds that the penalty clock is ahead.
+	 */
+	public long getPenalty(long now)
+	{
+		return Math.max(0, penaltyClock - now);
+	}
     
     public void setUserObject(Object v) { this.userObject = v; }
     public Object getUserObject() { return userObject; }
 	
+	public long getSentMessages() { return sentMessages; }
+	public long getSentBytes() { return sentBytes; }
+	public long getReceivedMessages() { return receivedMessages; }
+	public long getReceivedBytes() { return receivedBytes; }
+	
+	/**
+	 * Number of bytes queued for this connection that haven't been
+	 * written to the socket yet.
+	 */
+	public synchronized int getSendQueueSize() { return sendQueueBytes; }
+	public synchronized int getSendQueuePeak() { return sendQueuePeak; }
+	
+	/**
+	 * The reason the server decided to drop this connection, or null
+	 * if it was closed for any other reason.
+	 */
+	public synchronized String getCloseReason() { return closeReason; }
+	
 	public InetAddress getInetAddress()
 	{
         return host.getAddress();
@@ -65,16 +158,13 @@ public class AsyncConnection implements Comparable<AsyncConnection>
         return host;
     }
 	
+	/**
+	 * The numeric address of the remote host. Looking up its name could
+	 * block for seconds, so that's left to the HostResolver.
+	 */
 	public String getHost()
 	{
-		InetAddress addr = getInetAddress();
-		
-		String host = addr.getHostName();
-		if (host == null) {
-			host = addr.getHostAddress();
-		}
-		
-		return host;
+		return getInetAddress().getHostAddress();
 	}
     
 	//
@@ -84,6 +174,11 @@ public class AsyncConnection implements Comparable<AsyncConnection>
 	//   for the thread safety of the application.
 	//
 	
+	protected AsyncReactor getReactor()
+	{
+		return reactor;
+	}
+	
 	protected SelectionKey getSelectionKey()
 	{
 		return key;
@@ -94,22 +189,195 @@ public class AsyncConnection implements Comparable<AsyncConnection>
 		return (SocketChannel)key.channel();
 	}
 	
-	protected StringBuffer getReadBuffer()
+	protected LineFramer getLineFramer()
 	{
-		return buffer;
+		return framer;
 	}
 	
-	protected synchronized void addMessage(String message)
+	protected TimingWheel.Timer getTimer()
 	{
-		outgoing.add(message);
+		return timer;
 	}
 	
-	protected synchronized List<String> getMessages()
+	/**
+	 * Mark the connection as waiting for its reactor to start writing.
+	 * Returns false if it already was, in which case it mustn't be
+	 * queued again.
+	 */
+	protected boolean markWritePending()
 	{
-		List<String> messages = outgoing;
-		outgoing = new ArrayList<String>();
+		return writePending.compareAndSet(false, true);
+	}
+	
+	protected void clearWritePending()
+	{
+		writePending.set(false);
+	}
+	
+	/**
+	 * Check whether the connection has run out of budget, which is the
+	 * case once its penalty is more than budget milliseconds. A budget
+	 * of zero disables flood control.
+	 */
+	protected boolean isThrottled(long now, long budget)
+	{
+		return budget != 0 && penaltyClock - now > budget;
+	}
+	
+	/**
+	 * The number of milliseconds until the penalty has decayed to the
+	 * budget again.
+	 */
+	protected long getThrottleDelay(long now, long budget)
+	{
+		if (budget == 0) {
+			return 0;
+		}
 		
-		return Collections.unmodifiableList(messages);
+		return Math.max(0, penaltyClock - now - budget);
+	}
+	
+	protected boolean isReadSuspended() { return readSuspended; }
+	protected void setReadSuspended(boolean v) { this.readSuspended = v; }
+	
+	protected boolean isInputPending() { return inputPending; }
+	protected void setInputPending(boolean v) { this.inputPending = v; }
+	
+	/**
+	 * Note that the transport stopped reading from the connection since
+	 * it's over budget. Returns false if it has stayed over budget for
+	 * longer than excessFlood milliseconds, in which case it should be
+	 * dropped. An excessFlood of zero never drops it.
+	 */
+	protected boolean throttle(long now, long excessFlood)
+	{
+		if (floodSince == 0) {
+			floodSince = now;
+			return true;
+		}
+		
+		return excessFlood == 0 || now - floodSince < excessFlood;
+	}
+	
+	protected void setAdmissionController(AdmissionController admission)
+	{
+		this.admission = admission;
+	}
+	
+	/**
+	 * Give back the slot taken by the connection when it was admitted.
+	 * Only called once, by whoever gets to tear down the connection.
+	 */
+	protected void releaseAdmission()
+	{
+		AdmissionController admission = this.admission;
+		if (admission != null) {
+			this.admission = null;
+			admission.release(getInetAddress());
+		}
+	}
+	
+	/**
+	 * Queue a message for sending. Returns false, without queueing the
+	 * message, if the connection is being closed, if the message would
+	 * take the send queue past the hard limit, or if the queue has been
+	 * above the soft limit for longer than the grace period. A limit of
+	 * zero disables that check.
+	 */
+	protected boolean addMessage(EncodedMessage message, int softLimit, int hardLimit,
+		long softGrace)
+	{
+		ByteBuffer data = message.newBuffer();
+		
+		synchronized (this) {
+			if (closeReason != null) {
+				return false;
+			}
+			
+			int size = sendQueueBytes + data.remaining();
+			if (hardLimit > 0 && size > hardLimit) {
+				return false;
+			}
+			
+			if (softLimit > 0 && size > softLimit) {
+				long now = System.currentTimeMillis();
+				if (sendQueueSoftSince == 0) {
+					sendQueueSoftSince = now;
+				}
+				else if (now - sendQueueSoftSince > softGrace) {
+					return false;
+				}
+			}
+			
+			outgoing.add(data);
+			
+			sendQueueBytes = size;
+			if (size > sendQueuePeak) {
+				sendQueuePeak = size;
+			}
+			sentMessages++;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Record why the server is closing this connection. Returns true
+	 * for the first caller only, so the connection is closed once.
+	 */
+	protected synchronized boolean markClosing(String reason)
+	{
+		if (closeReason != null) {
+			return false;
+		}
+		
+		closeReason = reason;
+		return true;
+	}
+	
+	protected void addReceived(int bytes, int messages)
+	{
+		receivedBytes += bytes;
+		receivedMessages += messages;
+	}
+	
+	/**
+	 * Copy references to the oldest pending buffers into dst, and return
+	 * the number of buffers copied. The buffers stay in the queue until
+	 * they've been completely written and removeWritten() is called.
+	 */
+	protected synchronized int peekMessages(ByteBuffer[] dst)
+	{
+		int count = 0;
+		Iterator<ByteBuffer> it = outgoing.iterator();
+		while (count < dst.length && it.hasNext()) {
+			dst[count++] = it.next();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Account for written bytes and drop all buffers that have been
+	 * written completely. Returns true if there is nothing left to write.
+	 */
+	protected synchronized boolean removeWritten(long written, int softLimit)
+	{
+		ByteBuffer head;
+		while ((head = outgoing.peek()) != null && !head.hasRemaining()) {
+			outgoing.poll();
+		}
+		
+		sendQueueBytes -= written;
+		sentBytes += written;
+		
+		// The soft limit grace period only covers time spent
+		// continuously above the limit.
+		if (sendQueueBytes <= softLimit) {
+			sendQueueSoftSince = 0;
+		}
+		
+		return outgoing.isEmpty();
 	}
 	
 	//
@@ -133,4 +401,10 @@ public class AsyncConnection implements Comparable<AsyncConnection>
 	
 		return seq == b.getSeq();
 	}
+	
+	@Override
+	public int hashCode()
+	{
+		return seq;
+	}
 }
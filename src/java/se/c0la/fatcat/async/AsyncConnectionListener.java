@@ -7,5 +7,6 @@ public interface AsyncConnectionListener
     public void connectionFailed(InetSocketAddress host);
 	public void connected(AsyncConnection conn);
 	public void messageReceived(AsyncConnection conn, String message);
+	public void heartBeat(AsyncConnection conn);
 	public void disconnected(AsyncConnection conn);
 }
@@ -0,0 +1,714 @@
+package se.c0la.fatcat.async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reactor owns a single selector and performs all reads, writes and
+ * disconnects for the connections registered with it. Every connection
+ * belongs to exactly one reactor for its entire lifetime, so all I/O
+ * for a connection happens on the same thread.
+ */
+public class AsyncReactor implements Runnable
+{
+	private final static int BUFFER_SIZE = 8092;
+	private final static int MAX_GATHER = 64;
+	private final static int WHEEL_SLOTS = 512;
+	private final static long WHEEL_TICK = 1000L;
+
+	/**
+	 * A channel that has been accepted by another thread and is waiting
+	 * to be registered with this reactor's selector.
+	 */
+	private static class Registration
+	{
+		public final SocketChannel channel;
+		public final int seq;
+		public final InetSocketAddress host;
+		public final AdmissionController admission;
+
+		public Registration(SocketChannel channel, int seq, InetSocketAddress host,
+			AdmissionController admission)
+		{
+			this.channel = channel;
+			this.seq = seq;
+			this.host = host;
+			this.admission = admission;
+		}
+	}
+
+	private AsyncBase base;
+	private String name;
+	private Thread thread = null;
+
+	private Selector selector;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+
+	private Set<AsyncConnection> connections;
+	private AtomicInteger connectionCount;
+
+	private TimingWheel wheel;
+	private List<TimingWheel.Timer> expired;
+
+	private Queue<Registration> registerQueue;
+	private Queue<AsyncConnection> writeQueue;
+	private Queue<AsyncConnection> disconnectQueue;
+
+	// Connections that ran out of line budget, in the order they get
+	// their next turn. Only touched by the reactor thread.
+	private Queue<AsyncConnection> inputQueue;
+
+	// Set once the selector has been woken up, and cleared by the
+	// reactor before it drains its queues. Anything queued while it's
+	// set will be seen before the next select blocks, so there's no
+	// need to wake the selector again.
+	private AtomicBoolean wakeupPending;
+
+	private AtomicLong wakeups;
+	private AtomicLong wakeupsSaved;
+	private AtomicLong writeRequests;
+	private AtomicLong writeRequestsCoalesced;
+
+	private volatile boolean running;
+
+	public AsyncReactor(AsyncBase base, String name)
+	throws IOException
+	{
+		this.base = base;
+		this.name = name;
+
+		SelectorProvider provider = SelectorProvider.provider();
+		this.selector = provider.openSelector();
+
+		connections = new HashSet<AsyncConnection>();
+		connectionCount = new AtomicInteger(0);
+
+		wheel = new TimingWheel(WHEEL_SLOTS, WHEEL_TICK, System.currentTimeMillis());
+		expired = new ArrayList<TimingWheel.Timer>();
+
+		registerQueue = new ConcurrentLinkedQueue<Registration>();
+		writeQueue = new ConcurrentLinkedQueue<AsyncConnection>();
+		disconnectQueue = new ConcurrentLinkedQueue<AsyncConnection>();
+		inputQueue = new ArrayDeque<AsyncConnection>();
+
+		wakeupPending = new AtomicBoolean(false);
+
+		wakeups = new AtomicLong(0);
+		wakeupsSaved = new AtomicLong(0);
+		writeRequests = new AtomicLong(0);
+		writeRequestsCoalesced = new AtomicLong(0);
+
+		running = false;
+	}
+
+	public String getName() { return name; }
+	public int getConnectionCount() { return connectionCount.get(); }
+
+	/**
+	 * The number of times the selector has been woken up, and the number
+	 * of wakeups that were skipped since one was already pending or the
+	 * request came from the reactor thread itself.
+	 */
+	public long getWakeups() { return wakeups.get(); }
+	public long getWakeupsSaved() { return wakeupsSaved.get(); }
+
+	/**
+	 * The number of writes requested, and the number of those that were
+	 * folded into a request already in the write queue.
+	 */
+	public long getWriteRequests() { return writeRequests.get(); }
+	public long getWriteRequestsCoalesced() { return writeRequestsCoalesced.get(); }
+
+	protected Selector getSelector()
+	{
+		return selector;
+	}
+
+	/**
+	 * Hand a newly accepted channel over to this reactor. The channel is
+	 * registered with the selector on the reactor thread, since
+	 * registering with a selector that is blocked in select() from another
+	 * thread would block until the next wakeup.
+	 */
+	protected void register(SocketChannel channel, int seq, InetSocketAddress host,
+		AdmissionController admission)
+	throws IOException
+	{
+		if (Thread.currentThread() == thread) {
+			registerChannel(channel, seq, host, admission);
+			return;
+		}
+
+		registerQueue.offer(new Registration(channel, seq, host, admission));
+		wakeup();
+	}
+
+	/**
+	 * Track a connection whose key was registered directly with this
+	 * reactor's selector, such as an outgoing client connection. This
+	 * must be called on the reactor thread.
+	 */
+	protected void addConnection(AsyncConnection conn)
+	{
+		connections.add(conn);
+		connectionCount.incrementAndGet();
+		base.connections.add(conn);
+
+		checkTimeouts(conn, System.currentTimeMillis());
+	}
+
+	/**
+	 * Ask the reactor to write the pending messages of a connection. A
+	 * connection is only queued once until the reactor gets to it, no
+	 * matter how many messages are sent to it in the meantime.
+	 */
+	protected void requestWrite(AsyncConnection conn)
+	{
+		writeRequests.incrementAndGet();
+
+		if (!conn.markWritePending()) {
+			writeRequestsCoalesced.incrementAndGet();
+			return;
+		}
+
+		writeQueue.offer(conn);
+		wakeup();
+	}
+
+	protected void requestDisconnect(AsyncConnection conn)
+	{
+		disconnectQueue.offer(conn);
+		wakeup();
+	}
+
+	/**
+	 * Make sure that the reactor looks at its queues before it blocks
+	 * in select() again, waking up the selector only if necessary.
+	 */
+	private void wakeup()
+	{
+		// The reactor drains its queues before selecting
+		if (Thread.currentThread() == thread) {
+			wakeupsSaved.incrementAndGet();
+			return;
+		}
+
+		if (!wakeupPending.compareAndSet(false, true)) {
+			wakeupsSaved.incrementAndGet();
+			return;
+		}
+
+		wakeups.incrementAndGet();
+		selector.wakeup();
+	}
+
+	protected void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		try {
+			loop();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void loop()
+	throws IOException
+	{
+		thread = Thread.currentThread();
+		running = true;
+
+		while (running) {
+			// From here on, anything queued by other threads needs a
+			// new wakeup, unless we drain it below.
+			wakeupPending.set(false);
+
+			// Register channels handed to us by the acceptor
+			Registration reg;
+			while ((reg = registerQueue.poll()) != null) {
+				try {
+					registerChannel(reg.channel, reg.seq, reg.host, reg.admission);
+				}
+				catch (IOException e) {
+					reg.channel.close();
+					if (reg.admission != null) {
+						reg.admission.release(reg.host.getAddress());
+					}
+				}
+			}
+
+			// Check the list of connections with pending writes
+			// and register our interest in writing to them
+			AsyncConnection conn;
+			while ((conn = writeQueue.poll()) != null) {
+				// Messages sent from now on queue the connection again.
+				// Clearing the flag before registering interest means
+				// that none of them can be missed.
+				conn.clearWritePending();
+
+				try {
+					SelectionKey key = conn.getSelectionKey();
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+				catch (CancelledKeyException e) {
+					// Suppressed
+					continue;
+				}
+			}
+
+			// Block until we receive an event or it's time for the
+			// timing wheel to tick, unless there are lines waiting
+			if (inputQueue.isEmpty()) {
+				selector.select(wheel.getDelay(System.currentTimeMillis()));
+			}
+			else {
+				selector.selectNow();
+			}
+
+			// Iterate through all events. Keys have to be
+			// removed explicitly, so we use an iterator.
+			Set<SelectionKey> keys = selector.selectedKeys();
+			Iterator<SelectionKey> iterator = keys.iterator();
+			for ( ; iterator.hasNext(); ) {
+				SelectionKey key = iterator.next();
+				if (!key.isValid()) {
+					continue;
+				}
+
+				iterator.remove();
+
+				// Handle new connections
+				if (key.isAcceptable()) {
+					base.accept(key);
+				}
+				else if (key.isConnectable()) {
+					base.connect(key);
+				}
+				else {
+					// Handle incoming data
+					if (key.isReadable()) {
+						read(key);
+					}
+					// Write outgoing data
+					if (key.isValid() && key.isWritable()) {
+						write(key);
+					}
+				}
+			}
+
+			// Give the connections that had lines left over from
+			// earlier passes another turn
+			long now = System.currentTimeMillis();
+			processInputQueue(now);
+
+			// Handle timeouts. Only the connections hashed to the
+			// ticks that have passed are visited.
+			wheel.advance(now, expired);
+			for (TimingWheel.Timer timer : expired) {
+				checkTimeouts(timer.getConnection(), now);
+			}
+			expired.clear();
+
+			// Handle any connections in the disconnect queue
+			while ((conn = disconnectQueue.poll()) != null) {
+				disconnect(conn);
+			}
+		}
+
+		selector.close();
+	}
+
+	private void registerChannel(SocketChannel channel, int seq, InetSocketAddress host,
+		AdmissionController admission)
+	throws IOException
+	{
+		// We're only interested in read events
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+
+		// Associate the key with a new AsyncConnection object
+		AsyncConnection conn = new AsyncConnection(seq, this, key, host);
+		conn.setAdmissionController(admission);
+		key.attach(conn);
+		addConnection(conn);
+
+		// Notify listeners
+		for (AsyncConnectionListener listener : base.listeners) {
+			listener.connected(conn);
+		}
+	}
+
+	private void read(SelectionKey key)
+	throws IOException
+	{
+		AsyncConnection conn = (AsyncConnection)key.attachment();
+
+		SocketChannel clientChannel = conn.getChannel();
+
+		readBuffer.clear();
+
+		int numRead;
+		try {
+			numRead = clientChannel.read(readBuffer);
+		}
+		catch (IOException e) {
+			disconnect(conn);
+			return;
+		}
+
+		// Connection closed
+		if (numRead == -1) {
+			disconnect(conn);
+			return;
+		}
+
+		// Append the data to the framer of the connection, which keeps
+		// any incomplete line around until the rest of it arrives
+		readBuffer.flip();
+		conn.getLineFramer().feed(readBuffer);
+
+		int lines = processLines(conn, System.currentTimeMillis());
+
+		conn.addReceived(numRead, lines);
+
+		// Activity only moves the deadline forward, so rather than
+		// touching the timing wheel we let the timer find out about it
+		// when it expires, and reschedule it then.
+		conn.setLastActivity(System.currentTimeMillis());
+	}
+
+	/**
+	 * Pass the complete lines buffered for a connection to listeners,
+	 * one at a time, until there are none left or the connection runs
+	 * out of either flood or line budget. In the first case the
+	 * remaining lines stay in the framer until the penalty has decayed,
+	 * and in the second until the connection gets its next turn.
+	 * Returns the number of lines processed.
+	 */
+	private int processLines(AsyncConnection conn, long now)
+	{
+		LineFramer framer = conn.getLineFramer();
+		long budget = base.getFloodBudget();
+		int lineBudget = base.getLineBudget();
+
+		int lines = 0;
+		while (lineBudget == 0 || lines < lineBudget) {
+			String line = framer.nextLine();
+			if (line == null) {
+				return lines;
+			}
+
+			lines++;
+
+			// Notify listeners
+			for (AsyncConnectionListener listener : base.listeners) {
+				listener.messageReceived(conn, line);
+			}
+
+			if (conn.isThrottled(now, budget)) {
+				throttle(conn, now);
+				return lines;
+			}
+		}
+
+		// Only come back if there's another line to process
+		if (framer.hasLine()) {
+			defer(conn);
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Queue a connection that ran out of line budget for another turn,
+	 * and stop reading from it until it has caught up, so that its
+	 * framer doesn't grow.
+	 */
+	private void defer(AsyncConnection conn)
+	{
+		if (!conn.isConnected() || conn.isInputPending()) {
+			return;
+		}
+
+		try {
+			SelectionKey key = conn.getSelectionKey();
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		catch (CancelledKeyException e) {
+			return;
+		}
+
+		conn.setInputPending(true);
+		inputQueue.add(conn);
+	}
+
+	/**
+	 * Give every connection in the input queue one turn, in order.
+	 * Connections that still have lines left go to the back of the
+	 * queue, and the others start reading again.
+	 */
+	private void processInputQueue(long now)
+	{
+		int count = inputQueue.size();
+		for (int i = 0; i < count; i++) {
+			AsyncConnection conn = inputQueue.poll();
+			conn.setInputPending(false);
+
+			if (!conn.isConnected() || conn.isReadSuspended()) {
+				continue;
+			}
+
+			int lines = processLines(conn, now);
+			if (lines > 0) {
+				conn.addReceived(0, lines);
+				conn.setLastActivity(now);
+			}
+
+			resumeReading(conn);
+		}
+	}
+
+	/**
+	 * Start reading from a connection again, unless it still has to
+	 * wait for either its penalty to decay or its next turn.
+	 */
+	private void resumeReading(AsyncConnection conn)
+	{
+		if (!conn.isConnected() || conn.isReadSuspended() || conn.isInputPending()) {
+			return;
+		}
+
+		try {
+			SelectionKey key = conn.getSelectionKey();
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		catch (CancelledKeyException e) {
+			// Disconnected
+		}
+	}
+
+	/**
+	 * Stop reading from a connection that is over budget, and have its
+	 * timer resume it once the penalty has decayed. Connections that
+	 * stay over budget for too long are dropped.
+	 */
+	private void throttle(AsyncConnection conn, long now)
+	{
+		if (!conn.isConnected()) {
+			return;
+		}
+
+		if (!conn.throttle(now, base.getExcessFlood())) {
+			conn.markClosing("Excess Flood");
+			disconnect(conn);
+			return;
+		}
+
+		try {
+			SelectionKey key = conn.getSelectionKey();
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		catch (CancelledKeyException e) {
+			return;
+		}
+
+		conn.setReadSuspended(true);
+		wheel.schedule(conn.getTimer(), now + conn.getThrottleDelay(now, base.getFloodBudget()));
+	}
+
+	/**
+	 * Process the lines left over from when a connection was throttled,
+	 * and start reading from it again unless it runs out of budget once
+	 * more.
+	 */
+	private void resume(AsyncConnection conn, long now)
+	{
+		conn.setReadSuspended(false);
+
+		int lines = processLines(conn, now);
+		if (lines > 0) {
+			conn.addReceived(0, lines);
+			conn.setLastActivity(now);
+		}
+
+		resumeReading(conn);
+	}
+
+	private void write(SelectionKey key)
+	throws IOException
+	{
+		AsyncConnection conn = (AsyncConnection)key.attachment();
+
+		SocketChannel clientChannel = conn.getChannel();
+
+		try {
+			// Write the pending buffers in batches using gathering writes.
+			// If the socket won't accept everything, we stop and wait for
+			// the selector to tell us that the socket is writable again.
+			boolean empty = false;
+			while (true) {
+				int count = conn.peekMessages(gatherBuffers);
+				if (count == 0) {
+					empty = true;
+					break;
+				}
+
+				long written = clientChannel.write(gatherBuffers, 0, count);
+				boolean complete = !gatherBuffers[count - 1].hasRemaining();
+				Arrays.fill(gatherBuffers, 0, count, null);
+
+				empty = conn.removeWritten(written, base.getSendQueueSoftLimit());
+				if (empty || !complete) {
+					break;
+				}
+			}
+
+			// Only stay in write mode while there's data left to send
+			if (empty) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		}
+		catch (IOException e) {
+			disconnect(conn);
+			return;
+		}
+	}
+
+	/**
+	 * Called when the timer of a connection expires. Sends heart beats to
+	 * idle connections, disconnects the ones that don't respond, and
+	 * otherwise schedules the timer for the next deadline.
+	 */
+	private void checkTimeouts(AsyncConnection conn, long now)
+	{
+		if (!conn.isConnected()) {
+			return;
+		}
+
+		long deadline = Long.MAX_VALUE;
+
+		// Flood control
+		if (conn.isReadSuspended()) {
+			long budget = base.getFloodBudget();
+			if (conn.getThrottleDelay(now, budget) == 0) {
+				resume(conn, now);
+				if (!conn.isConnected()) {
+					return;
+				}
+			}
+
+			if (conn.isReadSuspended()) {
+				deadline = now + conn.getThrottleDelay(now, budget);
+			}
+		}
+
+		long lastActivity = conn.getLastActivity();
+
+		// Plain idle timeout
+		int timeout = base.getTimeout();
+		if (timeout != 0) {
+			if (now - lastActivity >= timeout) {
+				disconnect(conn);
+				return;
+			}
+
+			deadline = Math.min(deadline, lastActivity + timeout);
+		}
+
+		// Heart beats
+		long pingInterval = base.getHeartBeatInterval();
+		long pingTimeout = base.getHeartBeatTimeout();
+		if (pingInterval != 0) {
+			long lastHeartBeat = conn.getLastHeartBeat();
+
+			// A heart beat has been sent, and we haven't heard
+			// anything since.
+			if (lastHeartBeat > lastActivity) {
+				if (now - lastHeartBeat >= pingTimeout) {
+					conn.markClosing("Ping timeout");
+					disconnect(conn);
+					return;
+				}
+
+				deadline = Math.min(deadline, lastHeartBeat + pingTimeout);
+			}
+			else if (now - lastActivity >= pingInterval) {
+				conn.setLastHeartBeat(now);
+
+				// Notify listeners
+				for (AsyncConnectionListener listener : base.listeners) {
+					listener.heartBeat(conn);
+				}
+
+				deadline = Math.min(deadline, now + pingTimeout);
+			}
+			else {
+				deadline = Math.min(deadline, lastActivity + pingInterval);
+			}
+		}
+
+		if (deadline != Long.MAX_VALUE) {
+			wheel.schedule(conn.getTimer(), deadline);
+		}
+	}
+
+	private void disconnect(AsyncConnection conn)
+	{
+		// A connection can be queued for disconnection several times,
+		// but listeners should only hear about it once.
+		if (!connections.remove(conn)) {
+			return;
+		}
+
+		wheel.cancel(conn.getTimer());
+
+		connectionCount.decrementAndGet();
+		base.connections.remove(conn);
+		conn.setConnected(false);
+		conn.releaseAdmission();
+		conn.getLineFramer().release();
+
+		try {
+			SelectionKey key = conn.getSelectionKey();
+			key.cancel();
+
+			SocketChannel channel = conn.getChannel();
+			channel.close();
+		}
+		catch (IOException e) {
+			// If this fails, it's probably because we're
+			// already disconnected. Lets assume that everything
+			// is fine.
+		}
+
+		// Notify listeners
+		for (AsyncConnectionListener listener : base.listeners) {
+			listener.disconnected(conn);
+		}
+	}
+}
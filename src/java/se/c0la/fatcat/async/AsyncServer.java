@@ -0,0 +1,64 @@
+package se.c0la.fatcat.async;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A transport accepting connections on a set of ports. Whatever the
+ * threading model of the transport, the lines received on a connection
+ * are passed to listeners one at a time and in order, and messages can
+ * be sent to any connection from any thread.
+ */
+public interface AsyncServer
+{
+	public void addListenPort(int port);
+
+	public void addConnectionListener(AsyncConnectionListener listener);
+	public void removeConnectionListener(AsyncConnectionListener listener);
+
+	/**
+	 * Ask listeners to send a heart beat to connections that have been
+	 * idle for interval milliseconds, and disconnect them with the reason
+	 * "Ping timeout" if nothing is received within timeout milliseconds
+	 * after that. An interval of zero disables heart beats.
+	 */
+	public void setHeartBeat(long interval, long timeout);
+
+	/**
+	 * Limit the number of bytes that may be queued for a connection. A
+	 * limit of zero disables it.
+	 */
+	public void setSendQueueLimits(int softLimit, int hardLimit);
+
+	/**
+	 * Stop reading from connections whose penalty is more than budget
+	 * milliseconds, until it has decayed, and disconnect them with the
+	 * reason "Excess Flood" if they're still over budget after
+	 * excessFlood milliseconds. Listeners charge connections through
+	 * AsyncConnection.addPenalty(). A budget of zero disables it.
+	 */
+	public void setFloodControl(long budget, long excessFlood);
+
+	/**
+	 * Check the address of every accepted socket with the given
+	 * controller, and close the ones it rejects before anything is
+	 * allocated for them. Null, which is the default, accepts all.
+	 */
+	public void setAdmissionController(AdmissionController controller);
+
+	public Set<AsyncConnection> getConnections();
+
+	public void sendMessage(AsyncConnection conn, String message);
+	public void sendMessage(AsyncConnection conn, EncodedMessage message);
+
+	public void closeConnection(AsyncConnection conn);
+
+	/**
+	 * Start accepting connections. This blocks until the server is shut
+	 * down.
+	 */
+	public void listen()
+	throws IOException;
+
+	public void shutdown();
+}
@@ -55,7 +55,7 @@ public class AsyncSocketClient extends AsyncBase
         
         SelectionKey key = socketChannel.register(socketSelector, SelectionKey.OP_CONNECT);
         
-		AsyncConnection conn = new AsyncConnection(connSequence++, key, host);
+		AsyncConnection conn = new AsyncConnection(connSequence++, primaryReactor, key, host);
 		key.attach(conn);
     }
 	
@@ -79,7 +79,7 @@ public class AsyncSocketClient extends AsyncBase
 		
 		key.interestOps(SelectionKey.OP_READ);
         
-		connections.add(conn);
+		primaryReactor.addConnection(conn);
 		
 		// Notify listeners
 		for (AsyncConnectionListener listener : listeners) {
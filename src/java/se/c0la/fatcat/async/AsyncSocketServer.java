@@ -3,6 +3,7 @@ package se.c0la.fatcat.async;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -10,7 +11,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
-public class AsyncSocketServer extends AsyncBase
+public class AsyncSocketServer extends AsyncBase implements AsyncServer
 {
 	private List<Integer> ports;
     private List<ServerSocket> sockets = null;
@@ -62,25 +63,36 @@ public class AsyncSocketServer extends AsyncBase
 		ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
 	
 		SocketChannel clientChannel = serverChannel.accept();
-		clientChannel.configureBlocking(false);
-	
-		// We're only interested in read events
-		clientChannel.register(socketSelector, SelectionKey.OP_READ);
-		
-		// Retrieve the SelectionKey and associate it with 
-		// a new AsyncConnection object
-		SelectionKey newKey = clientChannel.keyFor(socketSelector);
+		if (clientChannel == null) {
+			return;
+		}
 
 		Socket socket = clientChannel.socket();
-		InetSocketAddress host = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
-        
-		AsyncConnection conn = new AsyncConnection(connSequence++, newKey, host);
-		connections.add(conn);
-		newKey.attach(conn);
-		
-		// Notify listeners
-		for (AsyncConnectionListener listener : listeners) {
-			listener.connected(conn);
+		InetAddress addr = socket.getInetAddress();
+
+		// Turn away clients over their limits before anything is
+		// allocated for them
+		AdmissionController admission = this.admission;
+		if (admission != null && !admission.admit(addr, System.currentTimeMillis())) {
+			clientChannel.close();
+			return;
+		}
+
+		clientChannel.configureBlocking(false);
+		InetSocketAddress host = new InetSocketAddress(addr, socket.getPort());
+
+		// Hand the channel over to the reactor that will own it. The
+		// reactor creates the AsyncConnection and notifies listeners.
+		AsyncReactor reactor = nextReactor();
+		try {
+			reactor.register(clientChannel, connSequence++, host, admission);
+		}
+		catch (IOException e) {
+			clientChannel.close();
+			if (admission != null) {
+				admission.release(addr);
+			}
+			throw e;
 		}
 	}
 }
@@ -0,0 +1,101 @@
+package se.c0la.fatcat.async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection of the BlockingSocketServer. Each connection has a thread
+ * blocking on reads and a thread blocking on writes. The writer sleeps
+ * until signalled that messages have been queued.
+ *
+ * Waiting uses a ReentrantLock rather than a monitor, since a virtual
+ * thread waiting on a monitor would pin its carrier thread.
+ */
+public class BlockingConnection extends AsyncConnection
+{
+	private SocketChannel channel;
+
+	private final ReentrantLock lock;
+	private final Condition writable;
+	private boolean writePending;
+	private boolean closed;
+
+	protected BlockingConnection(int seq, SocketChannel channel, InetSocketAddress host)
+	{
+		super(seq, host);
+
+		this.channel = channel;
+
+		lock = new ReentrantLock();
+		writable = lock.newCondition();
+		writePending = false;
+		closed = false;
+	}
+
+	@Override
+	protected SocketChannel getChannel()
+	{
+		return channel;
+	}
+
+	/**
+	 * Wake up the writer to send whatever has been queued.
+	 */
+	protected void signalWrite()
+	{
+		lock.lock();
+		try {
+			writePending = true;
+			writable.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Block until there is something to write. Returns false if the
+	 * connection has been closed.
+	 */
+	protected boolean awaitWrite()
+	{
+		lock.lock();
+		try {
+			while (!writePending && !closed) {
+				writable.awaitUninterruptibly();
+			}
+
+			writePending = false;
+			return !closed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close the socket, which makes both the reader and the writer of
+	 * the connection exit.
+	 */
+	protected void close()
+	{
+		lock.lock();
+		try {
+			closed = true;
+			writable.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			// Nothing left to do with it anyway
+		}
+	}
+}
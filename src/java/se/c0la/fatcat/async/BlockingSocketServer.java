@@ -0,0 +1,461 @@
+package se.c0la.fatcat.async;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport that serves every connection with blocking socket I/O on
+ * threads of its own: one reading lines and notifying listeners, and one
+ * writing queued messages. On JDK 21 and later these are virtual threads,
+ * so that idle connections cost little more than their buffers. On older
+ * JDKs platform threads are used, which only scales to a few thousand
+ * connections.
+ *
+ * Listeners are notified of the events of a connection on its reader
+ * thread, except for heart beats, which are sent by the HeartBeatMonitor
+ * on the thread that called listen(). Since that means any number of
+ * threads calling listeners at once, ServerContext has to run channel
+ * events on its channel shards with this transport, which ConfigReader
+ * makes sure of.
+ */
+public class BlockingSocketServer implements AsyncServer
+{
+	private final static int BUFFER_SIZE = 1024;
+	private final static int MAX_GATHER = 16;
+
+	private List<Integer> ports;
+	private List<ServerSocketChannel> serverChannels;
+
+	private List<AsyncConnectionListener> listeners;
+	private Set<AsyncConnection> connections;
+	private HeartBeatMonitor monitor;
+
+	private volatile long heartBeatInterval;
+	private volatile long heartBeatTimeout;
+	private volatile int sendQueueSoftLimit;
+	private volatile int sendQueueHardLimit;
+	private volatile long floodBudget;
+	private volatile long excessFlood;
+
+	private volatile AdmissionController admission;
+
+	private ThreadFactory threadFactory;
+	private boolean virtualThreads;
+
+	private AtomicInteger connSequence;
+	private volatile boolean running;
+
+	public BlockingSocketServer()
+	{
+		ports = new ArrayList<Integer>();
+		serverChannels = new CopyOnWriteArrayList<ServerSocketChannel>();
+
+		listeners = new CopyOnWriteArrayList<AsyncConnectionListener>();
+		connections = new ConcurrentSkipListSet<AsyncConnection>();
+		monitor = new HeartBeatMonitor(this, connections, listeners);
+
+		heartBeatInterval = 0;
+		heartBeatTimeout = 0;
+		sendQueueSoftLimit = AsyncBase.DEFAULT_SENDQ_SOFT_LIMIT;
+		sendQueueHardLimit = AsyncBase.DEFAULT_SENDQ_HARD_LIMIT;
+		floodBudget = AsyncBase.DEFAULT_FLOOD_BUDGET;
+		excessFlood = AsyncBase.DEFAULT_EXCESS_FLOOD;
+		admission = null;
+
+		threadFactory = createVirtualThreadFactory();
+		virtualThreads = (threadFactory != null);
+		if (threadFactory == null) {
+			threadFactory = new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task);
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+		}
+
+		connSequence = new AtomicInteger(0);
+		running = false;
+	}
+
+	/**
+	 * Look up Thread.ofVirtual().factory() by reflection, so that the
+	 * server still builds and runs on JDKs without virtual threads.
+	 */
+	private static ThreadFactory createVirtualThreadFactory()
+	{
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method factory = builderClass.getMethod("factory");
+
+			return (ThreadFactory)factory.invoke(builder);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether connections are served by virtual threads.
+	 */
+	public boolean usesVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+	@Override
+	public void addListenPort(int port)
+	{
+		ports.add(port);
+	}
+
+	@Override
+	public void addConnectionListener(AsyncConnectionListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeConnectionListener(AsyncConnectionListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void setHeartBeat(long interval, long timeout)
+	{
+		this.heartBeatInterval = interval;
+		this.heartBeatTimeout = timeout;
+	}
+
+	@Override
+	public void setSendQueueLimits(int softLimit, int hardLimit)
+	{
+		this.sendQueueSoftLimit = softLimit;
+		this.sendQueueHardLimit = hardLimit;
+	}
+
+	@Override
+	public void setAdmissionController(AdmissionController controller)
+	{
+		this.admission = controller;
+	}
+
+	@Override
+	public void setFloodControl(long budget, long excessFlood)
+	{
+		this.floodBudget = budget;
+		this.excessFlood = excessFlood;
+	}
+
+	@Override
+	public Set<AsyncConnection> getConnections()
+	{
+		return Collections.unmodifiableSet(connections);
+	}
+
+	@Override
+	public void sendMessage(AsyncConnection conn, String message)
+	{
+		sendMessage(conn, new EncodedMessage(message));
+	}
+
+	@Override
+	public void sendMessage(AsyncConnection conn, EncodedMessage message)
+	{
+		if (!conn.addMessage(message, sendQueueSoftLimit, sendQueueHardLimit,
+			AsyncBase.SENDQ_SOFT_GRACE)) {
+
+			// Slow consumers are evicted rather than allowed to
+			// grow their queue without bounds.
+			if (conn.markClosing("SendQ exceeded")) {
+				closeConnection(conn);
+			}
+			return;
+		}
+
+		((BlockingConnection)conn).signalWrite();
+	}
+
+	@Override
+	public void closeConnection(AsyncConnection conn)
+	{
+		// The reader notices that the socket has been closed, and takes
+		// care of the rest.
+		((BlockingConnection)conn).close();
+	}
+
+	@Override
+	public void listen()
+	throws IOException
+	{
+		if (running) {
+			throw new IllegalStateException("Server has already been initialized.");
+		}
+
+		for (int port : ports) {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			serverChannels.add(serverChannel);
+		}
+
+		running = true;
+
+		for (final ServerSocketChannel serverChannel : serverChannels) {
+			Thread thread = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run()
+				{
+					acceptLoop(serverChannel);
+				}
+			});
+			thread.setName("acceptor-" + serverChannel.socket().getLocalPort());
+			thread.start();
+		}
+
+		// The listening thread checks for idle connections
+		while (running) {
+			try {
+				Thread.sleep(HeartBeatMonitor.CHECK_INTERVAL);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+
+			monitor.check(System.currentTimeMillis(), heartBeatInterval, heartBeatTimeout);
+		}
+
+		for (ServerSocketChannel serverChannel : serverChannels) {
+			serverChannel.close();
+		}
+	}
+
+	@Override
+	public void shutdown()
+	{
+		running = false;
+
+		for (ServerSocketChannel serverChannel : serverChannels) {
+			try {
+				serverChannel.close();
+			}
+			catch (IOException e) {
+				// Suppressed
+			}
+		}
+
+		for (AsyncConnection conn : connections) {
+			closeConnection(conn);
+		}
+	}
+
+	private void acceptLoop(ServerSocketChannel serverChannel)
+	{
+		while (running) {
+			final SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			}
+			catch (IOException e) {
+				if (!serverChannel.isOpen()) {
+					return;
+				}
+				continue;
+			}
+
+			Socket socket = channel.socket();
+			InetAddress addr = socket.getInetAddress();
+
+			// Turn away clients over their limits before anything is
+			// allocated for them
+			AdmissionController admission = this.admission;
+			if (admission != null && !admission.admit(addr, System.currentTimeMillis())) {
+				try {
+					channel.close();
+				}
+				catch (IOException e) {
+					// Suppressed
+				}
+				continue;
+			}
+
+			InetSocketAddress host = new InetSocketAddress(addr, socket.getPort());
+
+			final BlockingConnection conn = new BlockingConnection(
+				connSequence.getAndIncrement(), channel, host);
+			conn.setAdmissionController(admission);
+
+			Thread reader = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run()
+				{
+					readLoop(conn);
+				}
+			});
+			reader.setName("reader-" + conn.getSeq());
+			reader.start();
+		}
+	}
+
+	private void readLoop(final BlockingConnection conn)
+	{
+		connections.add(conn);
+
+		// Start the writer first, so that listeners can send messages
+		// as soon as they hear about the connection.
+		Thread writer = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run()
+			{
+				writeLoop(conn);
+			}
+		});
+		writer.setName("writer-" + conn.getSeq());
+		writer.start();
+
+		// Notify listeners
+		for (AsyncConnectionListener listener : listeners) {
+			listener.connected(conn);
+		}
+
+		SocketChannel channel = conn.getChannel();
+		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		LineFramer framer = conn.getLineFramer();
+
+		try {
+			while (true) {
+				readBuffer.clear();
+				int numRead = channel.read(readBuffer);
+				if (numRead == -1) {
+					break;
+				}
+
+				readBuffer.flip();
+				framer.feed(readBuffer);
+
+				// Process one line at a time
+				int lines = 0;
+				String line;
+				while ((line = framer.nextLine()) != null) {
+					lines++;
+
+					// Notify listeners
+					for (AsyncConnectionListener listener : listeners) {
+						listener.messageReceived(conn, line);
+					}
+
+					// Stop reading while the connection is over budget
+					if (!awaitBudget(conn)) {
+						conn.markClosing("Excess Flood");
+						throw new IOException("Excess Flood");
+					}
+				}
+
+				conn.addReceived(numRead, lines);
+				conn.setLastActivity(System.currentTimeMillis());
+			}
+		}
+		catch (IOException e) {
+			// Closed by either side
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+
+		disconnect(conn);
+	}
+
+	/**
+	 * Sleep until the penalty of a connection has decayed to its budget.
+	 * Returns false if it has stayed over budget for too long.
+	 */
+	private boolean awaitBudget(BlockingConnection conn)
+	{
+		long budget = floodBudget;
+		long now = System.currentTimeMillis();
+		if (!conn.isThrottled(now, budget)) {
+			return true;
+		}
+
+		if (!conn.throttle(now, excessFlood)) {
+			return false;
+		}
+
+		try {
+			Thread.sleep(conn.getThrottleDelay(now, budget));
+		}
+		catch (InterruptedException e) {
+			return false;
+		}
+
+		conn.setLastActivity(System.currentTimeMillis());
+		return true;
+	}
+
+	private void writeLoop(BlockingConnection conn)
+	{
+		SocketChannel channel = conn.getChannel();
+		ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+
+		try {
+			while (conn.awaitWrite()) {
+				while (true) {
+					int count = conn.peekMessages(gatherBuffers);
+					if (count == 0) {
+						break;
+					}
+
+					// A blocking channel writes everything before
+					// returning, so the whole batch is complete.
+					long written = channel.write(gatherBuffers, 0, count);
+					Arrays.fill(gatherBuffers, 0, count, null);
+
+					if (conn.removeWritten(written, sendQueueSoftLimit)) {
+						break;
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			conn.close();
+		}
+	}
+
+	private void disconnect(BlockingConnection conn)
+	{
+		if (!connections.remove(conn)) {
+			return;
+		}
+
+		conn.setConnected(false);
+		conn.close();
+		conn.releaseAdmission();
+		conn.getLineFramer().release();
+
+		// Notify listeners
+		for (AsyncConnectionListener listener : listeners) {
+			listener.disconnected(conn);
+		}
+	}
+}
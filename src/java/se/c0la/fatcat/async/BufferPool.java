@@ -0,0 +1,69 @@
+package se.c0la.fatcat.async;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays of a single fixed size. At most capacity free
+ * arrays are kept around, and any released beyond that are left to the
+ * garbage collector. Arrays may be acquired and released on any thread.
+ */
+public class BufferPool
+{
+	private final int bufferSize;
+	private final int capacity;
+
+	private final Queue<byte[]> free;
+	private final AtomicInteger freeCount;
+
+	private final AtomicLong allocated;
+	private final AtomicLong reused;
+
+	public BufferPool(int bufferSize, int capacity)
+	{
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+
+		free = new ConcurrentLinkedQueue<byte[]>();
+		freeCount = new AtomicInteger(0);
+
+		allocated = new AtomicLong(0);
+		reused = new AtomicLong(0);
+	}
+
+	public int getBufferSize() { return bufferSize; }
+
+	public int getFreeCount() { return freeCount.get(); }
+	public long getAllocated() { return allocated.get(); }
+	public long getReused() { return reused.get(); }
+
+	public byte[] acquire()
+	{
+		byte[] buffer = free.poll();
+		if (buffer != null) {
+			freeCount.decrementAndGet();
+			reused.incrementAndGet();
+			return buffer;
+		}
+
+		allocated.incrementAndGet();
+		return new byte[bufferSize];
+	}
+
+	public void release(byte[] buffer)
+	{
+		if (buffer.length != bufferSize) {
+			throw new IllegalArgumentException("Buffer doesn't belong to this pool.");
+		}
+
+		// The count is only a bound, so it's fine if it's briefly off
+		if (freeCount.incrementAndGet() > capacity) {
+			freeCount.decrementAndGet();
+			return;
+		}
+
+		free.offer(buffer);
+	}
+}
@@ -0,0 +1,49 @@
+package se.c0la.fatcat.async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable message that has been encoded for the wire, including
+ * the trailing line break. A single instance can be queued for any
+ * number of connections, which all share the same bytes.
+ */
+public final class EncodedMessage
+{
+	private final ByteBuffer data;
+
+	/**
+	 * Encode a message using the same charset as on the read side, so
+	 * that data relayed from other clients is passed through byte for
+	 * byte.
+	 */
+	public EncodedMessage(String message)
+	{
+		int len = message.length();
+		byte[] bytes = new byte[len + 1];
+		for (int i = 0; i < len; i++) {
+			char c = message.charAt(i);
+			bytes[i] = (byte)(c <= 0xFF ? c : '?');
+		}
+		bytes[len] = '\n';
+
+		this.data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Size of the message in bytes, including the line break.
+	 */
+	public int length()
+	{
+		return data.capacity();
+	}
+
+	/**
+	 * Return a buffer positioned at the start of the message. Each call
+	 * returns a new buffer with its own position, backed by the shared
+	 * bytes.
+	 */
+	protected ByteBuffer newBuffer()
+	{
+		return data.duplicate();
+	}
+}
@@ -0,0 +1,62 @@
+package se.c0la.fatcat.async;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sends heart beats to idle connections, and closes the ones that don't
+ * respond, for transports without a reactor of their own. The reactors
+ * of AsyncBase do this with a timing wheel instead.
+ *
+ * Every connection is visited on each check, so checks should be made
+ * about once a second rather than on every event.
+ */
+public class HeartBeatMonitor
+{
+	public final static long CHECK_INTERVAL = 1000L;
+
+	private AsyncServer server;
+	private Set<AsyncConnection> connections;
+	private List<AsyncConnectionListener> listeners;
+
+	public HeartBeatMonitor(AsyncServer server, Set<AsyncConnection> connections,
+		List<AsyncConnectionListener> listeners)
+	{
+		this.server = server;
+		this.connections = connections;
+		this.listeners = listeners;
+	}
+
+	public void check(long now, long pingInterval, long pingTimeout)
+	{
+		if (pingInterval == 0) {
+			return;
+		}
+
+		for (AsyncConnection conn : connections) {
+			if (!conn.isConnected()) {
+				continue;
+			}
+
+			long lastActivity = conn.getLastActivity();
+			long lastHeartBeat = conn.getLastHeartBeat();
+
+			// A heart beat has been sent, and we haven't heard
+			// anything since.
+			if (lastHeartBeat > lastActivity) {
+				if (now - lastHeartBeat >= pingTimeout) {
+					conn.markClosing("Ping timeout");
+					server.closeConnection(conn);
+				}
+			}
+			else if (now - lastActivity >= pingInterval) {
+				conn.setLastHeartBeat(now);
+
+				// Notify listeners
+				for (AsyncConnectionListener listener : listeners) {
+					listener.heartBeat(conn);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package se.c0la.fatcat.async;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits the byte stream of a connection into lines. Incoming data is
+ * appended to a compact byte region that only ever holds the unprocessed
+ * tail of the stream, and line breaks are searched for directly in that
+ * region. Each complete line costs a single String allocation, and bytes
+ * that have already been scanned are never scanned again.
+ *
+ * The region is a fixed size buffer borrowed from a shared pool while
+ * there is unprocessed data, so idle connections hold no buffer at all.
+ * Lines are limited to MAX_LINE_LENGTH bytes including the line break,
+ * as in rfc1459, and lines starting with IRCv3 message tags get another
+ * MAX_TAGS_LENGTH bytes on top of that. A longer line is cut short at
+ * the limit, and the rest of it is skipped as it arrives.
+ */
+public class LineFramer
+{
+	public final static int MAX_LINE_LENGTH = 512;
+	public final static int MAX_TAGS_LENGTH = 8191;
+
+	// The most any transport in this package reads at once. AsyncReactor
+	// reads 8092 bytes at a time, and the others 1024.
+	public final static int MAX_READ_LENGTH = 8192;
+
+	// Room for the longest line allowed, which may be sitting incomplete
+	// in the buffer, plus a full read. Since transports only read once
+	// the lines they have are processed, the unprocessed data never gets
+	// larger than that.
+	public final static int BUFFER_SIZE = MAX_TAGS_LENGTH + MAX_LINE_LENGTH + MAX_READ_LENGTH;
+	private final static int POOL_CAPACITY = 1024;
+
+	private final static Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private final static BufferPool pool = new BufferPool(BUFFER_SIZE, POOL_CAPACITY);
+	private final static AtomicLong totalOverflows = new AtomicLong(0);
+
+	// Null while there's no unprocessed data
+	private byte[] buffer;
+
+	// buffer[start, end) holds unprocessed data, and buffer[start, scan)
+	// is known not to contain a line break.
+	private int start;
+	private int end;
+	private int scan;
+
+	// Set while the rest of a line that was cut short is being skipped
+	private boolean discarding;
+	private long overflows;
+
+	public LineFramer()
+	{
+		buffer = null;
+		start = 0;
+		end = 0;
+		scan = 0;
+		discarding = false;
+		overflows = 0;
+	}
+
+	public static BufferPool getPool() { return pool; }
+
+	/**
+	 * Number of lines cut short on any connection.
+	 */
+	public static long getTotalOverflows() { return totalOverflows.get(); }
+
+	/**
+	 * Number of lines received on this connection that were cut short.
+	 */
+	public long getOverflows() { return overflows; }
+
+	/**
+	 * Number of bytes received that haven't been returned as a line yet.
+	 */
+	public int getPending()
+	{
+		return end - start;
+	}
+
+	/**
+	 * Append all remaining bytes of src to the framer.
+	 */
+	public void feed(ByteBuffer src)
+	{
+		while (src.hasRemaining()) {
+			if (discarding) {
+				// Skip up to and including the line break ending the
+				// line that was cut short
+				int limit = src.limit();
+				int pos = src.position();
+				while (pos < limit && src.get(pos) != '\n') {
+					pos++;
+				}
+
+				if (pos == limit) {
+					src.position(limit);
+					return;
+				}
+
+				src.position(pos + 1);
+				discarding = false;
+				continue;
+			}
+
+			int len = src.remaining();
+			if (buffer == null) {
+				buffer = pool.acquire();
+			}
+
+			if (end + len > buffer.length) {
+				compact();
+			}
+
+			// Can't happen with the transports in this package, but if
+			// it does, lines are dropped whole until the data fits, so
+			// that no line is ever put together from pieces of others.
+			if (end + len > buffer.length) {
+				dropLine();
+				continue;
+			}
+
+			src.get(buffer, end, len);
+			end += len;
+		}
+	}
+
+	/**
+	 * Return the next complete line, without the line break and with
+	 * surrounding whitespace removed, or null if no complete line has
+	 * been received.
+	 */
+	public String nextLine()
+	{
+		if (buffer == null) {
+			return null;
+		}
+
+		int maxLength = getMaxLength();
+		for (int i = scan; i < end; i++) {
+			if (buffer[i] != '\n') {
+				continue;
+			}
+
+			int to = i;
+			if (i + 1 - start > maxLength) {
+				to = start + maxLength - 2;
+				overflow();
+			}
+
+			String line = decode(start, to);
+
+			start = i + 1;
+			scan = start;
+			if (start == end) {
+				clear();
+			}
+
+			return line;
+		}
+
+		scan = end;
+
+		// A line that can't possibly end within the limit anymore is
+		// returned right away, and the rest of it is skipped.
+		if (end - start >= maxLength) {
+			String line = decode(start, start + maxLength - 2);
+			overflow();
+
+			clear();
+			discarding = true;
+
+			return line;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Whether nextLine() would return a line. Bytes scanned here aren't
+	 * scanned again by nextLine().
+	 */
+	public boolean hasLine()
+	{
+		if (buffer == null) {
+			return false;
+		}
+
+		for (int i = scan; i < end; i++) {
+			if (buffer[i] == '\n') {
+				scan = i;
+				return true;
+			}
+		}
+
+		scan = end;
+
+		// An overlong line is returned without waiting for its end
+		return end - start >= getMaxLength();
+	}
+
+	/**
+	 * Give the buffer back to the pool. Called once the connection has
+	 * been closed, from the thread that was reading it.
+	 */
+	public void release()
+	{
+		clear();
+		discarding = false;
+	}
+
+	/**
+	 * The limit of the line starting at start, including its line break.
+	 */
+	private int getMaxLength()
+	{
+		if (end > start && buffer[start] == '@') {
+			return MAX_TAGS_LENGTH + MAX_LINE_LENGTH;
+		}
+
+		return MAX_LINE_LENGTH;
+	}
+
+	/**
+	 * Drop the incomplete line at the end of the buffer, or if there's
+	 * none, the first line of the data that is yet to be fed.
+	 */
+	private void dropLine()
+	{
+		int lineStart = end;
+		while (lineStart > start && buffer[lineStart - 1] != '\n') {
+			lineStart--;
+		}
+
+		end = lineStart;
+		scan = Math.min(scan, end);
+		if (start == end) {
+			clear();
+		}
+
+		discarding = true;
+		overflow();
+	}
+
+	private void overflow()
+	{
+		overflows++;
+		totalOverflows.incrementAndGet();
+	}
+
+	private void clear()
+	{
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+
+		start = 0;
+		end = 0;
+		scan = 0;
+	}
+
+	private String decode(int from, int to)
+	{
+		// Same semantics as String.trim(), which also takes care
+		// of the carriage return in a CRLF pair.
+		while (from < to && (buffer[from] & 0xFF) <= ' ') {
+			from++;
+		}
+		while (to > from && (buffer[to - 1] & 0xFF) <= ' ') {
+			to--;
+		}
+
+		if (from == to) {
+			return "";
+		}
+
+		return new String(buffer, from, to - from, CHARSET);
+	}
+
+	private void compact()
+	{
+		if (start == 0) {
+			return;
+		}
+
+		System.arraycopy(buffer, start, buffer, 0, end - start);
+		end -= start;
+		scan -= start;
+		start = 0;
+	}
+}
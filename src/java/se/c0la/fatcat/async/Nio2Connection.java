@@ -0,0 +1,96 @@
+package se.c0la.fatcat.async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection of the Nio2SocketServer. At most one read and one write
+ * are outstanding at any time. The next read is only started once the
+ * lines of the previous one have been passed to listeners, which keeps
+ * them in order even though completions may run on any thread of the
+ * channel group.
+ */
+public class Nio2Connection extends AsyncConnection
+{
+	private final static int BUFFER_SIZE = 1024;
+	private final static int MAX_GATHER = 16;
+
+	private AsynchronousSocketChannel channel;
+
+	private ByteBuffer readBuffer;
+	private ByteBuffer[] gatherBuffers;
+	private int gatherCount;
+
+	// Set while a write is outstanding
+	private AtomicBoolean writing;
+
+	protected Nio2Connection(int seq, AsynchronousSocketChannel channel, InetSocketAddress host)
+	{
+		super(seq, host);
+
+		this.channel = channel;
+
+		readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		gatherBuffers = new ByteBuffer[MAX_GATHER];
+		gatherCount = 0;
+
+		writing = new AtomicBoolean(false);
+	}
+
+	protected AsynchronousSocketChannel getAsynchronousChannel()
+	{
+		return channel;
+	}
+
+	protected ByteBuffer getReadBuffer()
+	{
+		return readBuffer;
+	}
+
+	/**
+	 * Claim the right to start a write. Returns false if a write is
+	 * already outstanding, in which case its completion picks up
+	 * whatever has been queued since.
+	 */
+	protected boolean startWrite()
+	{
+		return writing.compareAndSet(false, true);
+	}
+
+	protected void endWrite()
+	{
+		writing.set(false);
+	}
+
+	/**
+	 * Fill the gather buffers with the oldest pending messages, and
+	 * return their number. Only called by the owner of the write.
+	 */
+	protected int fillGatherBuffers()
+	{
+		for (int i = 0; i < gatherCount; i++) {
+			gatherBuffers[i] = null;
+		}
+
+		gatherCount = peekMessages(gatherBuffers);
+		return gatherCount;
+	}
+
+	protected ByteBuffer[] getGatherBuffers()
+	{
+		return gatherBuffers;
+	}
+
+	protected void close()
+	{
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			// Nothing left to do with it anyway
+		}
+	}
+}
@@ -0,0 +1,514 @@
+package se.c0la.fatcat.async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport built on the asynchronous channels of NIO.2. All channels
+ * belong to a single AsynchronousChannelGroup with a fixed number of
+ * threads, and reads and writes complete on whichever of those threads
+ * is free, so the load spreads over the pool without assigning
+ * connections to reactors.
+ *
+ * Listeners are notified of the events of a connection from the
+ * completion of its reads, which never overlap, except for heart beats,
+ * which are sent by the HeartBeatMonitor on the thread that called
+ * listen(). Different connections notify listeners from different pool
+ * threads at once, so as with BlockingSocketServer, ServerContext has to
+ * run channel events on its channel shards.
+ */
+public class Nio2SocketServer implements AsyncServer
+{
+	private List<Integer> ports;
+	private List<AsynchronousServerSocketChannel> serverChannels;
+
+	private List<AsyncConnectionListener> listeners;
+	private Set<AsyncConnection> connections;
+	private HeartBeatMonitor monitor;
+
+	private volatile long heartBeatInterval;
+	private volatile long heartBeatTimeout;
+	private volatile int sendQueueSoftLimit;
+	private volatile int sendQueueHardLimit;
+	private volatile long floodBudget;
+	private volatile long excessFlood;
+
+	private volatile AdmissionController admission;
+
+	private int threadCount;
+	private AsynchronousChannelGroup group;
+
+	// Resumes reading from connections that were over budget
+	private ScheduledExecutorService throttleTimer;
+
+	private CompletionHandler<AsynchronousSocketChannel, AsynchronousServerSocketChannel> acceptHandler;
+	private CompletionHandler<Integer, Nio2Connection> readHandler;
+	private CompletionHandler<Long, Nio2Connection> writeHandler;
+
+	private AtomicInteger connSequence;
+	private volatile boolean running;
+
+	/**
+	 * Create a server whose channel group has the given number of
+	 * threads. Zero means one thread per available processor.
+	 */
+	public Nio2SocketServer(int threadCount)
+	{
+		ports = new ArrayList<Integer>();
+		serverChannels = new CopyOnWriteArrayList<AsynchronousServerSocketChannel>();
+
+		listeners = new CopyOnWriteArrayList<AsyncConnectionListener>();
+		connections = new ConcurrentSkipListSet<AsyncConnection>();
+		monitor = new HeartBeatMonitor(this, connections, listeners);
+
+		heartBeatInterval = 0;
+		heartBeatTimeout = 0;
+		sendQueueSoftLimit = AsyncBase.DEFAULT_SENDQ_SOFT_LIMIT;
+		sendQueueHardLimit = AsyncBase.DEFAULT_SENDQ_HARD_LIMIT;
+		floodBudget = AsyncBase.DEFAULT_FLOOD_BUDGET;
+		excessFlood = AsyncBase.DEFAULT_EXCESS_FLOOD;
+		admission = null;
+
+		if (threadCount == 0) {
+			threadCount = Runtime.getRuntime().availableProcessors();
+		}
+		this.threadCount = threadCount;
+		this.group = null;
+
+		acceptHandler = new AcceptHandler();
+		readHandler = new ReadHandler();
+		writeHandler = new WriteHandler();
+
+		connSequence = new AtomicInteger(0);
+		running = false;
+	}
+
+	public int getThreadCount()
+	{
+		return threadCount;
+	}
+
+	@Override
+	public void addListenPort(int port)
+	{
+		ports.add(port);
+	}
+
+	@Override
+	public void addConnectionListener(AsyncConnectionListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeConnectionListener(AsyncConnectionListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void setHeartBeat(long interval, long timeout)
+	{
+		this.heartBeatInterval = interval;
+		this.heartBeatTimeout = timeout;
+	}
+
+	@Override
+	public void setSendQueueLimits(int softLimit, int hardLimit)
+	{
+		this.sendQueueSoftLimit = softLimit;
+		this.sendQueueHardLimit = hardLimit;
+	}
+
+	@Override
+	public void setAdmissionController(AdmissionController controller)
+	{
+		this.admission = controller;
+	}
+
+	@Override
+	public void setFloodControl(long budget, long excessFlood)
+	{
+		this.floodBudget = budget;
+		this.excessFlood = excessFlood;
+	}
+
+	@Override
+	public Set<AsyncConnection> getConnections()
+	{
+		return Collections.unmodifiableSet(connections);
+	}
+
+	@Override
+	public void sendMessage(AsyncConnection conn, String message)
+	{
+		sendMessage(conn, new EncodedMessage(message));
+	}
+
+	@Override
+	public void sendMessage(AsyncConnection conn, EncodedMessage message)
+	{
+		if (!conn.addMessage(message, sendQueueSoftLimit, sendQueueHardLimit,
+			AsyncBase.SENDQ_SOFT_GRACE)) {
+
+			// Slow consumers are evicted rather than allowed to
+			// grow their queue without bounds.
+			if (conn.markClosing("SendQ exceeded")) {
+				closeConnection(conn);
+			}
+			return;
+		}
+
+		Nio2Connection nio2Conn = (Nio2Connection)conn;
+		if (nio2Conn.startWrite()) {
+			write(nio2Conn);
+		}
+	}
+
+	@Override
+	public void closeConnection(AsyncConnection conn)
+	{
+		// The outstanding read fails once the channel is closed, and
+		// its completion handler takes care of the rest.
+		((Nio2Connection)conn).close();
+	}
+
+	@Override
+	public void listen()
+	throws IOException
+	{
+		if (running) {
+			throw new IllegalStateException("Server has already been initialized.");
+		}
+
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private AtomicInteger sequence = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "nio2-" + sequence.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		group = AsynchronousChannelGroup.withFixedThreadPool(threadCount, threadFactory);
+		throttleTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+		for (int port : ports) {
+			AsynchronousServerSocketChannel serverChannel =
+				AsynchronousServerSocketChannel.open(group);
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannels.add(serverChannel);
+		}
+
+		running = true;
+
+		for (AsynchronousServerSocketChannel serverChannel : serverChannels) {
+			serverChannel.accept(serverChannel, acceptHandler);
+		}
+
+		// The listening thread checks for idle connections
+		while (running) {
+			try {
+				Thread.sleep(HeartBeatMonitor.CHECK_INTERVAL);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+
+			monitor.check(System.currentTimeMillis(), heartBeatInterval, heartBeatTimeout);
+		}
+
+		throttleTimer.shutdownNow();
+		group.shutdownNow();
+	}
+
+	@Override
+	public void shutdown()
+	{
+		running = false;
+
+		for (AsynchronousServerSocketChannel serverChannel : serverChannels) {
+			try {
+				serverChannel.close();
+			}
+			catch (IOException e) {
+				// Suppressed
+			}
+		}
+
+		for (AsyncConnection conn : connections) {
+			closeConnection(conn);
+		}
+	}
+
+	private class AcceptHandler
+		implements CompletionHandler<AsynchronousSocketChannel, AsynchronousServerSocketChannel>
+	{
+		@Override
+		public void completed(AsynchronousSocketChannel channel,
+			AsynchronousServerSocketChannel serverChannel)
+		{
+			// Accept the next connection right away
+			serverChannel.accept(serverChannel, this);
+
+			InetSocketAddress host;
+			try {
+				host = (InetSocketAddress)channel.getRemoteAddress();
+			}
+			catch (IOException e) {
+				host = null;
+			}
+
+			// Turn away clients over their limits before anything is
+			// allocated for them
+			AdmissionController admission = Nio2SocketServer.this.admission;
+			if (host == null || (admission != null
+				&& !admission.admit(host.getAddress(), System.currentTimeMillis()))) {
+
+				try {
+					channel.close();
+				}
+				catch (IOException e) {
+					// Suppressed
+				}
+				return;
+			}
+
+			Nio2Connection conn = new Nio2Connection(connSequence.getAndIncrement(),
+				channel, host);
+			conn.setAdmissionController(admission);
+			connections.add(conn);
+
+			// Notify listeners
+			for (AsyncConnectionListener listener : listeners) {
+				listener.connected(conn);
+			}
+
+			read(conn);
+		}
+
+		@Override
+		public void failed(Throwable e, AsynchronousServerSocketChannel serverChannel)
+		{
+			if (running && serverChannel.isOpen()) {
+				serverChannel.accept(serverChannel, this);
+			}
+		}
+	}
+
+	private class ReadHandler implements CompletionHandler<Integer, Nio2Connection>
+	{
+		@Override
+		public void completed(Integer result, Nio2Connection conn)
+		{
+			int numRead = result.intValue();
+
+			// Connection closed
+			if (numRead == -1) {
+				disconnect(conn);
+				return;
+			}
+
+			ByteBuffer readBuffer = conn.getReadBuffer();
+			readBuffer.flip();
+			conn.getLineFramer().feed(readBuffer);
+
+			int lines = processLines(conn);
+
+			conn.addReceived(numRead, lines);
+			conn.setLastActivity(System.currentTimeMillis());
+
+			if (!throttle(conn)) {
+				read(conn);
+			}
+		}
+
+		@Override
+		public void failed(Throwable e, Nio2Connection conn)
+		{
+			disconnect(conn);
+		}
+	}
+
+	private class WriteHandler implements CompletionHandler<Long, Nio2Connection>
+	{
+		@Override
+		public void completed(Long written, Nio2Connection conn)
+		{
+			if (!conn.removeWritten(written.longValue(), sendQueueSoftLimit)) {
+				write(conn);
+				return;
+			}
+
+			// Let go of the write, and then check whether a message was
+			// queued after the queue was found empty but before the
+			// write was released. Its sender would have seen the write
+			// as outstanding and left it to us.
+			conn.endWrite();
+			if (conn.getSendQueueSize() > 0 && conn.startWrite()) {
+				write(conn);
+			}
+		}
+
+		@Override
+		public void failed(Throwable e, Nio2Connection conn)
+		{
+			conn.endWrite();
+			conn.close();
+		}
+	}
+
+	/**
+	 * Pass the complete lines buffered for a connection to listeners,
+	 * one at a time, until there are none left or the connection runs
+	 * out of budget.
+	 */
+	private int processLines(Nio2Connection conn)
+	{
+		LineFramer framer = conn.getLineFramer();
+		long budget = floodBudget;
+
+		int lines = 0;
+		String line;
+		while ((line = framer.nextLine()) != null) {
+			lines++;
+
+			// Notify listeners
+			for (AsyncConnectionListener listener : listeners) {
+				listener.messageReceived(conn, line);
+			}
+
+			if (conn.isThrottled(System.currentTimeMillis(), budget)) {
+				break;
+			}
+		}
+
+		return lines;
+	}
+
+	/**
+	 * If the connection is over budget, hold off the next read until
+	 * the penalty has decayed, and return true. Connections that stay
+	 * over budget for too long are dropped.
+	 */
+	private boolean throttle(final Nio2Connection conn)
+	{
+		long budget = floodBudget;
+		long now = System.currentTimeMillis();
+		if (!conn.isThrottled(now, budget)) {
+			return false;
+		}
+
+		// With no read outstanding, nothing else notices the close
+		if (!conn.throttle(now, excessFlood)) {
+			conn.markClosing("Excess Flood");
+			disconnect(conn);
+			return true;
+		}
+
+		Runnable resume = new Runnable() {
+			@Override
+			public void run()
+			{
+				int lines = processLines(conn);
+				if (lines > 0) {
+					conn.addReceived(0, lines);
+					conn.setLastActivity(System.currentTimeMillis());
+				}
+
+				if (!throttle(conn)) {
+					read(conn);
+				}
+			}
+		};
+
+		try {
+			throttleTimer.schedule(resume, conn.getThrottleDelay(now, budget),
+				TimeUnit.MILLISECONDS);
+		}
+		catch (RuntimeException e) {
+			// Shut down
+			disconnect(conn);
+		}
+
+		return true;
+	}
+
+	private void read(Nio2Connection conn)
+	{
+		ByteBuffer readBuffer = conn.getReadBuffer();
+		readBuffer.clear();
+
+		try {
+			conn.getAsynchronousChannel().read(readBuffer, conn, readHandler);
+		}
+		catch (RuntimeException e) {
+			// Thrown if the channel or the group has been shut down
+			disconnect(conn);
+		}
+	}
+
+	/**
+	 * Start writing the pending messages of a connection. The caller
+	 * must own the write.
+	 */
+	private void write(Nio2Connection conn)
+	{
+		int count = conn.fillGatherBuffers();
+		if (count == 0) {
+			conn.endWrite();
+			if (conn.getSendQueueSize() > 0 && conn.startWrite()) {
+				write(conn);
+			}
+			return;
+		}
+
+		try {
+			conn.getAsynchronousChannel().write(conn.getGatherBuffers(), 0, count,
+				0L, TimeUnit.MILLISECONDS, conn, writeHandler);
+		}
+		catch (RuntimeException e) {
+			conn.endWrite();
+			conn.close();
+		}
+	}
+
+	private void disconnect(Nio2Connection conn)
+	{
+		// Both a failed read and a closed channel end up here, but
+		// listeners should only hear about it once.
+		if (!connections.remove(conn)) {
+			return;
+		}
+
+		conn.setConnected(false);
+		conn.close();
+		conn.releaseAdmission();
+		conn.getLineFramer().release();
+
+		// Notify listeners
+		for (AsyncConnectionListener listener : listeners) {
+			listener.disconnected(conn);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package se.c0la.fatcat.async;
+
+import java.util.List;
+
+/**
+ * A hashed timing wheel. Time is divided into ticks, and each timer is
+ * linked into the slot for the tick of its deadline. Scheduling and
+ * cancelling a timer are O(1), and advancing the wheel only visits the
+ * timers hashed to the ticks that have passed. Deadlines further away
+ * than one revolution simply stay in their slot until the wheel comes
+ * around enough times.
+ *
+ * The wheel isn't thread safe. Each reactor owns one and only touches
+ * it from its own thread.
+ */
+public class TimingWheel
+{
+	/**
+	 * A timer is an intrusive list node, so that a connection can be
+	 * rescheduled without any allocation.
+	 */
+	public static class Timer
+	{
+		private final AsyncConnection conn;
+
+		private Timer prev = null;
+		private Timer next = null;
+		private long tick = 0;
+
+		public Timer(AsyncConnection conn)
+		{
+			this.conn = conn;
+		}
+
+		public AsyncConnection getConnection() { return conn; }
+
+		public boolean isScheduled() { return prev != null; }
+	}
+
+	private Timer[] slots;
+	private int mask;
+	private long tickMillis;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param slotCount number of slots, which must be a power of two
+	 * @param tickMillis the resolution of the wheel
+	 */
+	public TimingWheel(int slotCount, long tickMillis, long now)
+	{
+		if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0) {
+			throw new IllegalArgumentException("Slot count must be a power of two.");
+		}
+
+		this.slots = new Timer[slotCount];
+		this.mask = slotCount - 1;
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+		this.size = 0;
+
+		// Each slot is a circular list with a sentinel head
+		for (int i = 0; i < slotCount; i++) {
+			Timer head = new Timer(null);
+			head.prev = head;
+			head.next = head;
+			slots[i] = head;
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Schedule a timer, replacing any previous deadline. Deadlines that
+	 * have already passed fire on the next tick.
+	 */
+	public void schedule(Timer timer, long deadline)
+	{
+		cancel(timer);
+
+		long tick = Math.max(deadline / tickMillis, currentTick + 1);
+		Timer head = slots[(int)(tick & mask)];
+
+		timer.tick = tick;
+		timer.prev = head.prev;
+		timer.next = head;
+		head.prev.next = timer;
+		head.prev = timer;
+
+		size++;
+	}
+
+	public void cancel(Timer timer)
+	{
+		if (timer.prev == null) {
+			return;
+		}
+
+		timer.prev.next = timer.next;
+		timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+
+		size--;
+	}
+
+	/**
+	 * Move the wheel forward to now, and collect all timers that expired
+	 * on the way in the expired list. Expired timers are unscheduled.
+	 */
+	public void advance(long now, List<Timer> expired)
+	{
+		long nowTick = now / tickMillis;
+		if (nowTick <= currentTick) {
+			return;
+		}
+
+		// There's no point in visiting a slot more than once
+		long from = currentTick + 1;
+		if (nowTick - from >= slots.length) {
+			from = nowTick - slots.length + 1;
+		}
+
+		for (long tick = from; tick <= nowTick; tick++) {
+			Timer head = slots[(int)(tick & mask)];
+			Timer timer = head.next;
+			while (timer != head) {
+				Timer next = timer.next;
+				if (timer.tick <= nowTick) {
+					cancel(timer);
+					expired.add(timer);
+				}
+				timer = next;
+			}
+		}
+
+		currentTick = nowTick;
+	}
+
+	/**
+	 * Number of milliseconds until the next tick, or zero if there are
+	 * no timers scheduled, which matches the convention of
+	 * Selector.select(long).
+	 */
+	public long getDelay(long now)
+	{
+		if (size == 0) {
+			return 0;
+		}
+
+		return Math.max(1, (currentTick + 1) * tickMillis - now);
+	}
+}
@@ -3,14 +3,21 @@ package se.c0la.fatcat.context;
 public class AttributeParameter
 {
 	private volatile String data = null;
+	private volatile ImmutableAttributeParameter immutableView = null;
 
-	public AttributeParameter(AttributeParameter param)
+	public AttributeParameter()
 	{
-		data = param.getData();
 	}
-	
-	public AttributeParameter()
+
+	public AttributeParameter getImmutableView()
 	{
+		ImmutableAttributeParameter view = immutableView;
+		if (view == null) {
+			view = new ImmutableAttributeParameter(this);
+			immutableView = view;
+		}
+
+		return view;
 	}
 	
 	public void setData(String v)
@@ -0,0 +1,215 @@
+package se.c0la.fatcat.context;
+
+import java.util.*;
+
+/**
+ * Index of the bans of a channel, keyed on the host mask, so that
+ * checking a user against thousands of bans only visits the bans that
+ * could possibly match. Host masks are sorted into three groups:
+ *
+ * - Masks without wildcards, which are kept in hash buckets keyed by
+ *   the folded host.
+ * - Masks with a single leading star, such as *.example.com, which are
+ *   kept in a trie of the reversed host, so that all of them that
+ *   match a host are found by walking the host backwards once.
+ * - Everything else, which is checked linearly.
+ *
+ * Candidates are always verified using Ban.matches(), which also
+ * checks the nick and user masks.
+ */
+public class BanIndex
+{
+	private static class Node
+	{
+		public char[] keys = null;
+		public Node[] children = null;
+		public int childCount = 0;
+
+		// Bans whose host mask is a star followed by the reversed
+		// path to this node
+		public List<Channel.Ban> bans = null;
+
+		public Node getChild(char c)
+		{
+			for (int i = 0; i < childCount; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+
+			return null;
+		}
+
+		public Node addChild(char c)
+		{
+			Node child = getChild(c);
+			if (child != null) {
+				return child;
+			}
+
+			if (keys == null) {
+				keys = new char[2];
+				children = new Node[2];
+			}
+			else if (childCount == keys.length) {
+				keys = Arrays.copyOf(keys, childCount * 2);
+				children = Arrays.copyOf(children, childCount * 2);
+			}
+
+			child = new Node();
+			keys[childCount] = c;
+			children[childCount] = child;
+			childCount++;
+
+			return child;
+		}
+	}
+
+	private Map<String, List<Channel.Ban>> exact;
+	private Node suffixes;
+	private List<Channel.Ban> wild;
+	private int size;
+
+	public BanIndex()
+	{
+		exact = new HashMap<String, List<Channel.Ban>>();
+		suffixes = new Node();
+		wild = new ArrayList<Channel.Ban>();
+		size = 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void add(Channel.Ban ban)
+	{
+		WildcardPattern host = ban.getHostPattern();
+		if (host.isLiteral()) {
+			String key = CaseMapping.toLowerCase(host.getMask());
+			List<Channel.Ban> bucket = exact.get(key);
+			if (bucket == null) {
+				bucket = new ArrayList<Channel.Ban>(1);
+				exact.put(key, bucket);
+			}
+			bucket.add(ban);
+		}
+		else if (isSuffixMask(host.getMask())) {
+			String mask = host.getMask();
+			Node node = suffixes;
+			for (int i = mask.length() - 1; i > 0; i--) {
+				node = node.addChild(CaseMapping.toLowerCase(mask.charAt(i)));
+			}
+
+			if (node.bans == null) {
+				node.bans = new ArrayList<Channel.Ban>(1);
+			}
+			node.bans.add(ban);
+		}
+		else {
+			wild.add(ban);
+		}
+
+		size++;
+	}
+
+	public void remove(Channel.Ban ban)
+	{
+		WildcardPattern host = ban.getHostPattern();
+		boolean removed;
+		if (host.isLiteral()) {
+			String key = CaseMapping.toLowerCase(host.getMask());
+			List<Channel.Ban> bucket = exact.get(key);
+			removed = bucket != null && bucket.remove(ban);
+			if (bucket != null && bucket.isEmpty()) {
+				exact.remove(key);
+			}
+		}
+		else if (isSuffixMask(host.getMask())) {
+			// Empty nodes are left in the trie, which is harmless
+			// and keeps removal simple.
+			String mask = host.getMask();
+			Node node = suffixes;
+			for (int i = mask.length() - 1; i > 0 && node != null; i--) {
+				node = node.getChild(CaseMapping.toLowerCase(mask.charAt(i)));
+			}
+
+			removed = node != null && node.bans != null && node.bans.remove(ban);
+		}
+		else {
+			removed = wild.remove(ban);
+		}
+
+		if (removed) {
+			size--;
+		}
+	}
+
+	/**
+	 * Return the first ban matching the user, or null if the user
+	 * isn't banned.
+	 */
+	public Channel.Ban match(User user)
+	{
+		String host = user.getHost();
+		if (host == null || size == 0) {
+			return null;
+		}
+
+		List<Channel.Ban> bucket = exact.get(CaseMapping.toLowerCase(host));
+		Channel.Ban ban = firstMatch(bucket, user);
+		if (ban != null) {
+			return ban;
+		}
+
+		// The star can match the empty string, so every node on the
+		// path is a candidate, including the root.
+		Node node = suffixes;
+		int i = host.length();
+		while (node != null) {
+			ban = firstMatch(node.bans, user);
+			if (ban != null) {
+				return ban;
+			}
+			if (i == 0) {
+				break;
+			}
+
+			node = node.getChild(CaseMapping.toLowerCase(host.charAt(--i)));
+		}
+
+		return firstMatch(wild, user);
+	}
+
+	private static Channel.Ban firstMatch(List<Channel.Ban> bans, User user)
+	{
+		if (bans == null) {
+			return null;
+		}
+
+		for (Channel.Ban ban : bans) {
+			if (ban.matches(user)) {
+				return ban;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean isSuffixMask(String mask)
+	{
+		if (mask.length() == 0 || mask.charAt(0) != '*') {
+			return false;
+		}
+
+		for (int i = 1; i < mask.length(); i++) {
+			char c = mask.charAt(i);
+			if (c == '*' || c == '?') {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,62 @@
+package se.c0la.fatcat.context;
+
+/**
+ * The rfc1459 case mapping used for nick and channel names, where the
+ * characters []\^ are considered the upper case equivalents of {}|~.
+ */
+public final class CaseMapping
+{
+	private CaseMapping()
+	{
+	}
+
+	public static char toLowerCase(char c)
+	{
+		// 'A' to '^' map onto 'a' to '~', which covers both the
+		// letters and the four special characters.
+		if (c >= 'A' && c <= '^') {
+			return (char)(c + 32);
+		}
+
+		return c;
+	}
+
+	/**
+	 * Fold a string to lower case. The string itself is returned if it
+	 * is already folded.
+	 */
+	public static String toLowerCase(String str)
+	{
+		int len = str.length();
+		int i = 0;
+		while (i < len && toLowerCase(str.charAt(i)) == str.charAt(i)) {
+			i++;
+		}
+
+		if (i == len) {
+			return str;
+		}
+
+		char[] folded = str.toCharArray();
+		for ( ; i < len; i++) {
+			folded[i] = toLowerCase(folded[i]);
+		}
+
+		return new String(folded);
+	}
+
+	public static boolean equalsIgnoreCase(String a, String b)
+	{
+		if (a.length() != b.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < a.length(); i++) {
+			if (toLowerCase(a.charAt(i)) != toLowerCase(b.charAt(i))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
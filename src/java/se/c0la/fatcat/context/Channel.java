@@ -12,6 +12,10 @@ public class Channel
 		private volatile String nickMask;
 		private volatile String userMask;
 		private volatile String hostMask;
+
+		private final WildcardPattern nickPattern;
+		private final WildcardPattern userPattern;
+		private final WildcardPattern hostPattern;
 		
 		private volatile long timestamp;
 	
@@ -20,6 +24,10 @@ public class Channel
 			this.nickMask = nickMask;
 			this.userMask = userMask;
 			this.hostMask = hostMask;
+
+			this.nickPattern = new WildcardPattern(nickMask);
+			this.userPattern = new WildcardPattern(userMask);
+			this.hostPattern = new WildcardPattern(hostMask);
 			
 			this.timestamp = timestamp;
 		}
@@ -27,27 +35,20 @@ public class Channel
 		public String getNickMask() { return nickMask; }
 		public String getUserMask() { return userMask; }
 		public String getHostMask() { return hostMask; }
+
+		public WildcardPattern getNickPattern() { return nickPattern; }
+		public WildcardPattern getUserPattern() { return userPattern; }
+		public WildcardPattern getHostPattern() { return hostPattern; }
 		
 		public long getTimestamp() { return timestamp; }
 		
 		public boolean matches(User user)
 		{
-			String nick = user.getNick();
-			if (!nick.matches(nickMask.replace("*", "(.*)"))) {
-				return false;
-			}
-		
-			String userName = user.getUser();
-			if (!userName.matches(userMask.replace("*", "(.*)"))) {
-				return false;
-			}
-			
-			String host = user.getHost();
-			if (!host.matches(hostMask.replace("*", "(.*)"))) {
-				return false;
-			}
-			
-			return true;
+			// The host is the most selective part of most bans, so
+			// check it first.
+			return hostPattern.matches(user.getHost())
+				&& nickPattern.matches(user.getNick())
+				&& userPattern.matches(user.getUser());
 		}
 		
 		@Override
@@ -81,41 +82,120 @@ public class Channel
 		}
 	}
 
+	/**
+	 * Read-only set view of the members of a channel.
+	 */
+	private class UserSet extends AbstractSet<User>
+	{
+		@Override
+		public int size()
+		{
+			return getUserCount();
+		}
+
+		@Override
+		public boolean contains(Object obj)
+		{
+			if (!(obj instanceof User)) {
+				return false;
+			}
+
+			return isMember(((User)obj).getId());
+		}
+
+		@Override
+		public Iterator<User> iterator()
+		{
+			return readMembers().userIterator();
+		}
+	}
+
 	private volatile String name;
+	private volatile String key;
 	private volatile String topic = "";
 	private volatile String topicChanger = "";
-	private int topicTime = 0;
+	private volatile int topicTime = 0;
 
+	// Attributes and bans are copied on write while holding the lock of
+	// the channel, and the copy is then published. They change rarely,
+	// and readers use whatever copy is current without locking.
 	protected volatile Map<ChannelAttribute, AttributeParameter> attributes;
-	protected volatile Map<User, ChannelMember> users;
-	protected volatile List<Ban> bans;
-	protected volatile Set<String> currentInvites;
+	protected volatile Set<Ban> bans;
+
+	// Members and invites are keyed by user id, so that they stay
+	// valid when a user changes nick. The members are changed in place
+	// while holding the lock of the channel, so that joining and leaving
+	// take constant time. Readers that iterate over the members, such as
+	// the fan-out of a message, get a copy instead, which is made the
+	// first time one is asked for after a change and then shared until
+	// the next change. A change followed by a fan-out costs one copy,
+	// which is no more than the fan-out itself.
+	protected MemberTable members;
+	private volatile MemberTable memberSnapshot;
+	protected volatile Set<User> userSet;
 
-	public Channel(Channel old)
+	// Guarded by the lock of the channel
+	protected BanIndex banIndex;
+	protected IntSet currentInvites;
+
+	// Set when the last member leaves. A closed channel can't be joined,
+	// and is about to be removed from the server.
+	private boolean closed = false;
+
+	private volatile ImmutableChannel immutableView = null;
+
+	/**
+	 * Used by ImmutableChannel, which keeps no state of its own.
+	 */
+	protected Channel()
 	{
-		this.name = old.getName();
-		this.topic = old.getTopic();
-		this.topicChanger = old.getTopicChanger();
-		this.topicTime = old.getTopicTime();
-		
-		this.currentInvites = old.getInvites();
-		
-		this.attributes = new EnumMap<ChannelAttribute, AttributeParameter>(old.attributes);
-		this.users = new HashMap<User, ChannelMember>(old.users);
-		this.bans = new ArrayList<Ban>(old.bans);
 	}
 
 	public Channel(String name)
 	{
 		this.name = name;
+		this.key = CaseMapping.toLowerCase(name);
 		
 		attributes = new EnumMap<ChannelAttribute, AttributeParameter>(ChannelAttribute.class);
-		users = new HashMap<User, ChannelMember>();
-		bans = new ArrayList<Ban>();
-		currentInvites = new HashSet<String>();
+		members = new MemberTable();
+		memberSnapshot = null;
+		userSet = new UserSet();
+		bans = new LinkedHashSet<Ban>();
+		banIndex = new BanIndex();
+		currentInvites = new IntSet();
+	}
+
+	/**
+	 * Return a read-only view of this channel. The view is created once
+	 * and shared, so looking up a channel doesn't depend on the number of
+	 * members.
+	 */
+	public Channel getImmutableView()
+	{
+		ImmutableChannel view = immutableView;
+		if (view == null) {
+			view = new ImmutableChannel(this);
+			immutableView = view;
+		}
+
+		return view;
+	}
+
+	/**
+	 * Return a copy of the name and topic of this channel as they are
+	 * now, for events that are delivered later.
+	 */
+	public synchronized Channel getSnapshot()
+	{
+		return new ChannelSnapshot(this);
 	}
 
 	public String getName() { return name; }
+
+	/**
+	 * The name folded using the rfc1459 case mapping.
+	 */
+	public String getKey() { return key; }
 	
 	public String getTopic() { return this.topic; }
 	public String getTopicChanger() { return this.topicChanger; }
@@ -123,64 +203,153 @@ public class Channel
 
 	public Set<User> getUsers()
 	{
-		return Collections.unmodifiableSet(users.keySet());
+		return userSet;
+	}
+	
+	/**
+	 * Iterate over the members along with their modes. This is cheaper
+	 * than calling getUser() for each of the users in getUsers().
+	 */
+	public MemberTable.Cursor getMembers()
+	{
+		return readMembers().cursor();
 	}
 	
-	public int getUserCount()
+	public synchronized int getUserCount()
 	{
-		return users.size();
+		return members.size();
 	}
 
-	public void addUser(User user)
+	/**
+	 * The members as of the last change, for iterating over without
+	 * holding the lock. The table must not be modified.
+	 */
+	private MemberTable readMembers()
 	{
-		ChannelMember member = new ChannelMember();
-		users.put(user, member);
+		MemberTable snapshot = memberSnapshot;
+		if (snapshot != null) {
+			return snapshot;
+		}
+
+		synchronized (this) {
+			if (memberSnapshot == null) {
+				memberSnapshot = members.copy();
+			}
+
+			return memberSnapshot;
+		}
+	}
+
+	private synchronized boolean isMember(int id)
+	{
+		return members.contains(id);
+	}
+
+	/**
+	 * Add a user to the channel. Returns false if the channel has been
+	 * closed, in which case it has to be looked up or created again.
+	 */
+	public synchronized boolean addUser(User user)
+	{
+		if (closed) {
+			return false;
+		}
+
+		members.add(user);
+		memberSnapshot = null;
+
+		return true;
+	}
+
+	/**
+	 * Remove a user from the channel. Returns true if the user was the
+	 * last member, in which case the channel is closed and should be
+	 * removed from the server.
+	 */
+	public synchronized boolean removeUser(User user)
+	{
+		if (!members.remove(user.getId())) {
+			return false;
+		}
+
+		memberSnapshot = null;
+
+		if (members.size() == 0) {
+			closed = true;
+		}
+
+		return closed;
 	}
 
-	public void removeUser(User user)
+	public synchronized boolean isClosed()
 	{
-		users.remove(user);
+		return closed;
 	}
 	
 	public ChannelMember getUser(User user)
 	{
-		return users.get(user);
+		// Callers pass whatever a nick lookup returned
+		if (user == null) {
+			return null;
+		}
+
+		int id = user.getId();
+		if (!isMember(id)) {
+			return null;
+		}
+
+		return new ChannelMember(this, id);
+	}
+
+	synchronized boolean getMemberAttribute(int id, ChannelAttribute attr)
+	{
+		return members.getAttribute(id, attr);
+	}
+
+	synchronized void setMemberAttribute(int id, ChannelAttribute attr)
+	{
+		members.setAttribute(id, attr);
+		memberSnapshot = null;
+	}
+
+	synchronized void removeMemberAttribute(int id, ChannelAttribute attr)
+	{
+		members.removeAttribute(id, attr);
+		memberSnapshot = null;
 	}
 
-	public void setTopic(String topic, String nick)
+	public synchronized void setTopic(String topic, String nick)
 	{
 		this.topic = topic;
 		this.topicChanger = nick;
 		this.topicTime = (int)(System.currentTimeMillis()/1000);
 	}
 	
-	public void addInvite(String nick)
+	public synchronized void addInvite(User user)
 	{
-		currentInvites.add(nick);
+		currentInvites.add(user.getId());
 	}
 	
-	public boolean getInvite(String nick)
+	public synchronized boolean getInvite(User user)
 	{
-		return currentInvites.contains(nick);
+		return currentInvites.contains(user.getId());
 	}
 	
-	public Set<String> getInvites()
+	public synchronized void removeInvite(User user)
 	{
-		return currentInvites;
-	}
-	
-	public void removeInvite(String nick)
-	{
-		currentInvites.remove(nick);
+		currentInvites.remove(user.getId());
 	}
 
-	public void setAttribute(ChannelAttribute attr, AttributeParameter param)
+	public synchronized void setAttribute(ChannelAttribute attr, AttributeParameter param)
 	{
 		if (attr.isMemberAttribute()) {
 			throw new IllegalArgumentException("Cannot use channel member attributes on channel.");
 		}
 	
-		attributes.put(attr, param);
+		Map<ChannelAttribute, AttributeParameter> copy = 
+			new EnumMap<ChannelAttribute, AttributeParameter>(attributes);
+		copy.put(attr, param);
+		attributes = copy;
 	}
 	
 	public AttributeParameter getAttribute(ChannelAttribute attr)
@@ -192,13 +361,16 @@ public class Channel
 		return attributes.get(attr);
 	}
 	
-	public void removeAttribute(ChannelAttribute attr)
+	public synchronized void removeAttribute(ChannelAttribute attr)
 	{
 		if (attr.isMemberAttribute()) {
 			throw new IllegalArgumentException("Cannot use channel member attributes on channel.");
 		}
 	
-		attributes.remove(attr);
+		Map<ChannelAttribute, AttributeParameter> copy = 
+			new EnumMap<ChannelAttribute, AttributeParameter>(attributes);
+		copy.remove(attr);
+		attributes = copy;
 	}
 	
 	public Map<ChannelAttribute, AttributeParameter> getAttributes()
@@ -206,18 +378,46 @@ public class Channel
 		return Collections.unmodifiableMap(attributes);
 	}
 	
-	public void addBan(Ban mask)
+	public synchronized void addBan(Ban mask)
 	{
-		bans.add(mask);
+		if (bans.contains(mask)) {
+			return;
+		}
+
+		Set<Ban> copy = new LinkedHashSet<Ban>(bans);
+		copy.add(mask);
+		bans = copy;
+
+		banIndex.add(mask);
 	}
 	
-	public void removeBan(Ban mask)
+	public synchronized void removeBan(Ban mask)
 	{
-		bans.remove(mask);
+		if (!bans.contains(mask)) {
+			return;
+		}
+
+		Set<Ban> copy = new LinkedHashSet<Ban>(bans);
+		copy.remove(mask);
+		bans = copy;
+
+		banIndex.remove(mask);
 	}
 	
-	public List<Ban> getBans()
+	/**
+	 * The bans, in the order they were set.
+	 */
+	public Collection<Ban> getBans()
+	{
+		return Collections.unmodifiableCollection(bans);
+	}
+
+	/**
+	 * Check if the user matches any of the bans of this channel. Only
+	 * the bans that could match the host of the user are checked.
+	 */
+	public synchronized boolean isBanned(User user)
 	{
-		return new ArrayList<Ban>(bans);
+		return banIndex.match(user) != null;
 	}
 }
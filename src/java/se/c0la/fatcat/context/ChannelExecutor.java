@@ -0,0 +1,146 @@
+package se.c0la.fatcat.context;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs channel events on a fixed set of shards, each being a single
+ * thread with a mailbox of its own. A channel is always owned by the
+ * shard picked by the hash of its folded name, so the events of a
+ * channel are processed one at a time and in the order they were
+ * submitted, while different channels make progress on different cores.
+ */
+public class ChannelExecutor
+{
+	private static class Shard implements Runnable
+	{
+		private final BlockingQueue<Runnable> mailbox;
+		private final Thread thread;
+
+		private Shard(String name)
+		{
+			mailbox = new LinkedBlockingQueue<Runnable>();
+
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			while (true) {
+				Runnable task;
+				try {
+					task = mailbox.take();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					task.run();
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private Shard[] shards;
+
+	public ChannelExecutor(int count)
+	{
+		if (count <= 0) {
+			throw new IllegalArgumentException("Invalid number of shards: " + count);
+		}
+
+		shards = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			shards[i] = new Shard("Channel-" + i);
+			shards[i].thread.start();
+		}
+	}
+
+	public int getShardCount()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Queue a task on the shard owning the channel with the given key,
+	 * and return immediately.
+	 */
+	public void execute(String key, Runnable task)
+	{
+		shardFor(key).mailbox.add(task);
+	}
+
+	/**
+	 * Run a task on the shard owning the channel with the given key, and
+	 * wait for it to complete. Tasks submitted from the owning shard
+	 * itself are run directly.
+	 */
+	public void executeAndWait(String key, Runnable task)
+	{
+		Shard shard = shardFor(key);
+		if (Thread.currentThread() == shard.thread) {
+			task.run();
+			return;
+		}
+
+		FutureTask<Object> future = new FutureTask<Object>(task, null);
+		shard.mailbox.add(future);
+
+		try {
+			future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * The number of tasks waiting on each shard.
+	 */
+	public int[] getBacklog()
+	{
+		int[] backlog = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			backlog[i] = shards[i].mailbox.size();
+		}
+
+		return backlog;
+	}
+
+	/**
+	 * Stop the shards, discarding any tasks that haven't run yet.
+	 */
+	public void shutdown()
+	{
+		for (Shard shard : shards) {
+			shard.thread.interrupt();
+		}
+	}
+
+	private Shard shardFor(String key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+
+		return shards[(h & 0x7fffffff) % shards.length];
+	}
+}
@@ -2,22 +2,39 @@ package se.c0la.fatcat.context;
 
 import java.util.*;
 
+/**
+ * The membership of a user in a channel. The modes of the member are
+ * stored in the MemberTable of the channel, so a ChannelMember is only
+ * a lightweight handle that can be created on demand. Since readers
+ * get a new copy of the table whenever it changes, the handle refers to
+ * the channel rather than to the table.
+ */
 public class ChannelMember
 {
-	private EnumSet<ChannelAttribute> attributes;
-	
-	public ChannelMember(ChannelMember member)
-	{
-		attributes = member.attributes.clone();
-	}
+	private Channel channel;
+	private int id;
 
-	public ChannelMember()
+	public ChannelMember(Channel channel, int id)
 	{
-		attributes = EnumSet.noneOf(ChannelAttribute.class);
+		this.channel = channel;
+		this.id = id;
 	}
 	
+	public ChannelMember getImmutableView()
+	{
+		return new ImmutableChannelMember(channel, id);
+	}
+
 	public Set<ChannelAttribute> getAttributes() 
 	{ 
+		EnumSet<ChannelAttribute> attributes = EnumSet.noneOf(ChannelAttribute.class);
+		for (ChannelAttribute attr : ChannelAttribute.values()) {
+			if (attr != ChannelAttribute.BAN && attr.isMemberAttribute() 
+				&& channel.getMemberAttribute(id, attr)) {
+				attributes.add(attr);
+			}
+		}
+
 		return Collections.unmodifiableSet(attributes);
 	}
 	
@@ -27,7 +44,7 @@ public class ChannelMember
 			throw new IllegalArgumentException("Cannot use channel attributes on channel members.");
 		}
 	
-		attributes.add(attr);
+		channel.setMemberAttribute(id, attr);
 	}
 	
 	public void removeAttribute(ChannelAttribute attr)
@@ -36,7 +53,7 @@ public class ChannelMember
 			throw new IllegalArgumentException("Cannot use channel attributes on channel members.");
 		}
 	
-		attributes.remove(attr);
+		channel.removeMemberAttribute(id, attr);
 	}
 	
 	public boolean getAttribute(ChannelAttribute attr)
@@ -45,6 +62,6 @@ public class ChannelMember
 			throw new IllegalArgumentException("Cannot use channel attributes on channel members.");
 		}
 	
-		return attributes.contains(attr);
+		return channel.getMemberAttribute(id, attr);
 	}
 }
@@ -0,0 +1,45 @@
+package se.c0la.fatcat.context;
+
+/**
+ * A read-only copy of the name and topic of a channel, as they were when
+ * the snapshot was taken. Everything else, such as the members, is read
+ * from the channel, as with ImmutableChannel. Snapshots are obtained
+ * through Channel.getSnapshot().
+ */
+public class ChannelSnapshot extends ImmutableChannel
+{
+	private final String name;
+	private final String key;
+	private final String topic;
+	private final String topicChanger;
+	private final int topicTime;
+
+	protected ChannelSnapshot(Channel channel)
+	{
+		super(channel);
+
+		this.name = channel.getName();
+		this.key = channel.getKey();
+		this.topic = channel.getTopic();
+		this.topicChanger = channel.getTopicChanger();
+		this.topicTime = channel.getTopicTime();
+	}
+
+	@Override
+	public Channel getSnapshot() { return this; }
+
+	@Override
+	public String getName() { return name; }
+
+	@Override
+	public String getKey() { return key; }
+
+	@Override
+	public String getTopic() { return topic; }
+
+	@Override
+	public String getTopicChanger() { return topicChanger; }
+
+	@Override
+	public int getTopicTime() { return topicTime; }
+}
@@ -4,5 +4,6 @@ public enum ErrorCondition
 {
 	E_NEED_MORE_PARAMS,
 	E_NOT_REGISTERED,
-	E_HAS_REGISTERED
+	E_HAS_REGISTERED,
+	E_NICK_IN_USE
 }
@@ -0,0 +1,551 @@
+package se.c0la.fatcat.context;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import se.c0la.fatcat.Client;
+import se.c0la.fatcat.Protocol;
+
+/**
+ * Delivers events to EventListeners on threads of their own, so that a
+ * slow listener never holds up the reactor that published the event.
+ *
+ * Every listener is subscribed with a bounded ring buffer of preallocated
+ * slots, which is drained in order by a dedicated consumer thread. What
+ * happens when a ring is full is decided by the policy of the
+ * subscription. Users and channels are handed to listeners as snapshots
+ * taken when the event is published, so the nick, user name and host of
+ * a user, and the name and topic of a channel, are the ones they had at
+ * the time of the event, however late it is delivered. Other state, such
+ * as the members of a channel, is read from the live object.
+ */
+public class EventBus implements EventListener
+{
+	public final static int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * What to do with an event published to a full ring.
+	 */
+	public enum Policy
+	{
+		/**
+		 * Discard the new event.
+		 */
+		DROP,
+
+		/**
+		 * Wait for the consumer to make room. This stalls the publishing
+		 * reactor, so listeners must never call back into the server
+		 * context from a subscription with this policy.
+		 */
+		BLOCK,
+
+		/**
+		 * Merge idle events with one already queued for the same user,
+		 * whether the ring is full or not, and discard other events if
+		 * the ring is full.
+		 */
+		COALESCE
+	}
+
+	private enum EventType
+	{
+		USER_CONNECTED,
+		USER_DISCONNECTED,
+		USER_IDENTIFICATION,
+		NICK,
+		MESSAGE,
+		NOTICE,
+		JOIN,
+		INVITE,
+		TOPIC,
+		PART,
+		KICK,
+		OPER,
+		KILL,
+		USER_ATTRIBUTE,
+		CHANNEL_ATTRIBUTE,
+		QUIT,
+		AWAY,
+		NOT_AWAY,
+		IDLE
+	}
+
+	// A slot of a ring. Slots are allocated once and reused.
+	private static class Event
+	{
+		EventType type;
+		Object a, b, c, d;
+
+		void clear()
+		{
+			type = null;
+			a = b = c = d = null;
+		}
+	}
+
+	/**
+	 * A listener along with its ring and consumer thread.
+	 */
+	public static class Subscription implements Runnable
+	{
+		private final EventListener listener;
+		private final Policy policy;
+
+		private final Event[] ring;
+		private int head;
+		private int size;
+
+		private final ReentrantLock lock;
+		private final Condition notEmpty;
+		private final Condition notFull;
+
+		// Ids of the users with an idle event in the ring, for coalescing
+		private final IntSet pendingIdle;
+
+		private final AtomicLong published;
+		private final AtomicLong delivered;
+		private final AtomicLong dropped;
+		private final AtomicLong coalesced;
+		private final AtomicLong failed;
+
+		private volatile boolean running;
+
+		private Subscription(EventListener listener, int capacity, Policy policy)
+		{
+			this.listener = listener;
+			this.policy = policy;
+
+			ring = new Event[capacity];
+			for (int i = 0; i < capacity; i++) {
+				ring[i] = new Event();
+			}
+			head = 0;
+			size = 0;
+
+			lock = new ReentrantLock();
+			notEmpty = lock.newCondition();
+			notFull = lock.newCondition();
+
+			pendingIdle = new IntSet();
+
+			published = new AtomicLong();
+			delivered = new AtomicLong();
+			dropped = new AtomicLong();
+			coalesced = new AtomicLong();
+			failed = new AtomicLong();
+
+			running = true;
+		}
+
+		public EventListener getListener() { return listener; }
+		public Policy getPolicy() { return policy; }
+		public int getCapacity() { return ring.length; }
+
+		public long getPublishedCount() { return published.get(); }
+		public long getDeliveredCount() { return delivered.get(); }
+		public long getDroppedCount() { return dropped.get(); }
+		public long getCoalescedCount() { return coalesced.get(); }
+		public long getFailedCount() { return failed.get(); }
+
+		/**
+		 * The number of events waiting to be delivered.
+		 */
+		public int getPending()
+		{
+			lock.lock();
+			try {
+				return size;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private void publish(EventType type, Object a, Object b, Object c, Object d)
+		{
+			published.incrementAndGet();
+
+			lock.lock();
+			try {
+				if (policy == Policy.COALESCE && type == EventType.IDLE) {
+					int id = ((User)a).getId();
+					if (pendingIdle.contains(id)) {
+						coalesced.incrementAndGet();
+						return;
+					}
+				}
+
+				if (size == ring.length) {
+					if (policy != Policy.BLOCK) {
+						dropped.incrementAndGet();
+						return;
+					}
+
+					while (size == ring.length && running) {
+						notFull.awaitUninterruptibly();
+					}
+
+					if (!running) {
+						dropped.incrementAndGet();
+						return;
+					}
+				}
+
+				if (policy == Policy.COALESCE && type == EventType.IDLE) {
+					pendingIdle.add(((User)a).getId());
+				}
+
+				Event event = ring[(head + size) % ring.length];
+				event.type = type;
+				event.a = a;
+				event.b = b;
+				event.c = c;
+				event.d = d;
+				size++;
+
+				notEmpty.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			while (true) {
+				EventType type;
+				Object a, b, c, d;
+
+				lock.lock();
+				try {
+					while (size == 0 && running) {
+						notEmpty.awaitUninterruptibly();
+					}
+
+					if (size == 0) {
+						return;
+					}
+
+					Event event = ring[head];
+					type = event.type;
+					a = event.a;
+					b = event.b;
+					c = event.c;
+					d = event.d;
+					event.clear();
+
+					head = (head + 1) % ring.length;
+					size--;
+
+					if (type == EventType.IDLE) {
+						pendingIdle.remove(((User)a).getId());
+					}
+
+					notFull.signal();
+				}
+				finally {
+					lock.unlock();
+				}
+
+				try {
+					deliver(type, a, b, c, d);
+				}
+				catch (RuntimeException e) {
+					failed.incrementAndGet();
+					e.printStackTrace();
+				}
+
+				delivered.incrementAndGet();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void deliver(EventType type, Object a, Object b, Object c, Object d)
+		{
+			switch (type) {
+				case USER_CONNECTED:
+					listener.userConnectedEvent((Client)a, (Protocol)b);
+					break;
+				case USER_DISCONNECTED:
+					listener.userDisconnectedEvent((Client)a);
+					break;
+				case USER_IDENTIFICATION:
+					listener.userIdentificationEvent((User)a, (String)b, (String)c, (String)d);
+					break;
+				case NICK:
+					listener.nickEvent((User)a, (String)b);
+					break;
+				case MESSAGE:
+					listener.messageEvent((User)a, (String)b, (String)c);
+					break;
+				case NOTICE:
+					listener.noticeEvent((User)a, (String)b, (String)c);
+					break;
+				case JOIN:
+					listener.joinEvent((User)a, (String)b);
+					break;
+				case INVITE:
+					listener.inviteEvent((User)a, (Channel)b, (User)c);
+					break;
+				case TOPIC:
+					listener.topicEvent((Channel)a, (User)b, (String)c);
+					break;
+				case PART:
+					listener.partEvent((User)a, (String)b, (String)c);
+					break;
+				case KICK:
+					listener.kickEvent((User)a, (String)b, (User)c, (String)d);
+					break;
+				case OPER:
+					listener.operEvent((User)a);
+					break;
+				case KILL:
+					listener.killEvent((User)a, (User)b, (String)c);
+					break;
+				case USER_ATTRIBUTE:
+					listener.userAttributeEvent((User)a, (List<AttributeChange>)b);
+					break;
+				case CHANNEL_ATTRIBUTE:
+					listener.channelAttributeEvent((User)a, (Channel)b,
+						(List<AttributeChange>)c);
+					break;
+				case QUIT:
+					listener.quitEvent((User)a, (String)b);
+					break;
+				case AWAY:
+					listener.awayEvent((User)a, (String)b);
+					break;
+				case NOT_AWAY:
+					listener.notAwayEvent((User)a);
+					break;
+				case IDLE:
+					listener.idleEvent((User)a);
+					break;
+			}
+		}
+
+		/**
+		 * Stop the consumer once the events already in the ring have
+		 * been delivered.
+		 */
+		private void shutdown()
+		{
+			lock.lock();
+			try {
+				running = false;
+				notEmpty.signalAll();
+				notFull.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private int defaultCapacity;
+	private Policy defaultPolicy;
+
+	private List<Subscription> subscriptions;
+	private int threadSequence;
+
+	public EventBus()
+	{
+		defaultCapacity = DEFAULT_CAPACITY;
+		defaultPolicy = Policy.DROP;
+
+		subscriptions = new CopyOnWriteArrayList<Subscription>();
+		threadSequence = 0;
+	}
+
+	/**
+	 * Set the capacity and policy used by subscribe(EventListener).
+	 */
+	public void setDefaults(int capacity, Policy policy)
+	{
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		this.defaultCapacity = capacity;
+		this.defaultPolicy = policy;
+	}
+
+	public int getDefaultCapacity() { return defaultCapacity; }
+	public Policy getDefaultPolicy() { return defaultPolicy; }
+
+	public Subscription subscribe(EventListener listener)
+	{
+		return subscribe(listener, defaultCapacity, defaultPolicy);
+	}
+
+	/**
+	 * Subscribe a listener, and start the thread delivering events to it.
+	 */
+	public synchronized Subscription subscribe(EventListener listener, int capacity,
+		Policy policy)
+	{
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		Subscription subscription = new Subscription(listener, capacity, policy);
+
+		Thread thread = new Thread(subscription, "EventBus-" + threadSequence++);
+		thread.setDaemon(true);
+		thread.start();
+
+		subscriptions.add(subscription);
+
+		return subscription;
+	}
+
+	/**
+	 * Unsubscribe a listener. Events already queued for it are still
+	 * delivered.
+	 */
+	public void unsubscribe(Subscription subscription)
+	{
+		if (subscriptions.remove(subscription)) {
+			subscription.shutdown();
+		}
+	}
+
+	public List<Subscription> getSubscriptions()
+	{
+		return subscriptions;
+	}
+
+	public boolean hasSubscriptions()
+	{
+		return !subscriptions.isEmpty();
+	}
+
+	private void publish(EventType type, Object a, Object b, Object c, Object d)
+	{
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+
+		// One snapshot is shared by all subscriptions
+		a = snapshot(a);
+		b = snapshot(b);
+		c = snapshot(c);
+		d = snapshot(d);
+
+		for (Subscription subscription : subscriptions) {
+			subscription.publish(type, a, b, c, d);
+		}
+	}
+
+	private static Object snapshot(Object obj)
+	{
+		if (obj instanceof User) {
+			return ((User)obj).getSnapshot();
+		}
+		if (obj instanceof Channel) {
+			return ((Channel)obj).getSnapshot();
+		}
+
+		return obj;
+	}
+
+	public void userConnectedEvent(Client client, Protocol protocol)
+	{
+		publish(EventType.USER_CONNECTED, client, protocol, null, null);
+	}
+
+	public void userDisconnectedEvent(Client client)
+	{
+		publish(EventType.USER_DISCONNECTED, client, null, null, null);
+	}
+
+	public void userIdentificationEvent(User user, String userName, String mode, String realName)
+	{
+		publish(EventType.USER_IDENTIFICATION, user, userName, mode, realName);
+	}
+
+	public void nickEvent(User user, String newNick)
+	{
+		publish(EventType.NICK, user, newNick, null, null);
+	}
+
+	public void messageEvent(User sourceUser, String targetName, String message)
+	{
+		publish(EventType.MESSAGE, sourceUser, targetName, message, null);
+	}
+
+	public void noticeEvent(User sourceUser, String targetName, String message)
+	{
+		publish(EventType.NOTICE, sourceUser, targetName, message, null);
+	}
+
+	public void joinEvent(User user, String name)
+	{
+		publish(EventType.JOIN, user, name, null, null);
+	}
+
+	public void inviteEvent(User sourceUser, Channel channel, User targetUser)
+	{
+		publish(EventType.INVITE, sourceUser, channel, targetUser, null);
+	}
+
+	public void topicEvent(Channel channel, User user, String newTopic)
+	{
+		publish(EventType.TOPIC, channel, user, newTopic, null);
+	}
+
+	public void partEvent(User user, String name, String message)
+	{
+		publish(EventType.PART, user, name, message, null);
+	}
+
+	public void kickEvent(User user, String channelName, User kickUser, String message)
+	{
+		publish(EventType.KICK, user, channelName, kickUser, message);
+	}
+
+	public void operEvent(User user)
+	{
+		publish(EventType.OPER, user, null, null, null);
+	}
+
+	public void killEvent(User targetUser, User sourceUser, String quitMessage)
+	{
+		publish(EventType.KILL, targetUser, sourceUser, quitMessage, null);
+	}
+
+	public void userAttributeEvent(User user, List<AttributeChange> userAttrs)
+	{
+		publish(EventType.USER_ATTRIBUTE, user, userAttrs, null, null);
+	}
+
+	public void channelAttributeEvent(User user, Channel channel, List<AttributeChange> channelAttrs)
+	{
+		publish(EventType.CHANNEL_ATTRIBUTE, user, channel, channelAttrs, null);
+	}
+
+	public void quitEvent(User user, String message)
+	{
+		publish(EventType.QUIT, user, message, null, null);
+	}
+
+	public void awayEvent(User user, String message)
+	{
+		publish(EventType.AWAY, user, message, null, null);
+	}
+
+	public void notAwayEvent(User user)
+	{
+		publish(EventType.NOT_AWAY, user, null, null, null);
+	}
+
+	public void idleEvent(User user)
+	{
+		publish(EventType.IDLE, user, null, null, null);
+	}
+}
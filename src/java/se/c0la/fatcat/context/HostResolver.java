@@ -0,0 +1,404 @@
+package se.c0la.fatcat.context;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks up the host names of connecting clients on a small pool of
+ * threads of its own, so that a slow DNS server never holds up a
+ * reactor. A name is only used if it resolves back to the address it
+ * was found for, since whoever controls the reverse zone of an address
+ * can claim any name they like.
+ *
+ * Results are kept in a bounded LRU cache, names for POSITIVE_TTL and
+ * failures for NEGATIVE_TTL. Connections from an address that is
+ * already being looked up share the lookup in progress. If no answer
+ * arrives within the timeout, the numeric address is used instead.
+ */
+public class HostResolver
+{
+	public final static int DEFAULT_THREADS = 2;
+	public final static long DEFAULT_TIMEOUT = 5000L;
+	public final static int DEFAULT_CACHE_SIZE = 4096;
+
+	public final static long POSITIVE_TTL = 3600 * 1000L;
+	public final static long NEGATIVE_TTL = 300 * 1000L;
+
+	// Addresses being looked up at once. Beyond this, new addresses
+	// get their numeric form right away.
+	private final static int MAX_PENDING = 1024;
+
+	// The longest name allowed by DNS
+	private final static int MAX_HOST_LENGTH = 253;
+
+	/**
+	 * The DNS queries made by the resolver. The default asks the name
+	 * service of the JVM, but a stub can be used to run without DNS.
+	 */
+	public interface NameService
+	{
+		/**
+		 * Return the name of an address, or null if it has none.
+		 */
+		public String reverse(InetAddress addr)
+		throws UnknownHostException;
+
+		public InetAddress[] forward(String host)
+		throws UnknownHostException;
+	}
+
+	public interface Callback
+	{
+		/**
+		 * Called exactly once with either the confirmed name of the
+		 * address or its numeric form, on whichever thread happened to
+		 * finish the lookup.
+		 */
+		public void resolved(String host);
+	}
+
+	public final static NameService SYSTEM = new NameService() {
+		@Override
+		public String reverse(InetAddress addr)
+		throws UnknownHostException
+		{
+			// A fresh instance, so that we don't get a name that the
+			// address was created with rather than looked up.
+			InetAddress fresh = InetAddress.getByAddress(addr.getAddress());
+			String name = fresh.getHostName();
+			if (name.equals(fresh.getHostAddress())) {
+				return null;
+			}
+
+			return name;
+		}
+
+		@Override
+		public InetAddress[] forward(String host)
+		throws UnknownHostException
+		{
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	private static class CacheEntry
+	{
+		// Null if the address has no usable name
+		private final String host;
+		private final long expires;
+
+		private CacheEntry(String host, long expires)
+		{
+			this.host = host;
+			this.expires = expires;
+		}
+	}
+
+	private class Request implements Runnable
+	{
+		private final InetAddress addr;
+		private final Callback callback;
+		private final AtomicBoolean done;
+		private volatile ScheduledFuture<?> timer;
+
+		private Request(InetAddress addr, Callback callback)
+		{
+			this.addr = addr;
+			this.callback = callback;
+			this.done = new AtomicBoolean(false);
+			this.timer = null;
+		}
+
+		private boolean complete(String host)
+		{
+			if (!done.compareAndSet(false, true)) {
+				return false;
+			}
+
+			ScheduledFuture<?> timer = this.timer;
+			if (timer != null) {
+				timer.cancel(false);
+			}
+
+			callback.resolved(host);
+			return true;
+		}
+
+		/**
+		 * Give up waiting. The lookup keeps going, and still ends up
+		 * in the cache.
+		 */
+		@Override
+		public void run()
+		{
+			if (complete(addr.getHostAddress())) {
+				timeouts.incrementAndGet();
+			}
+		}
+	}
+
+	private class Lookup implements Runnable
+	{
+		private final InetAddress addr;
+
+		private Lookup(InetAddress addr)
+		{
+			this.addr = addr;
+		}
+
+		@Override
+		public void run()
+		{
+			String host = lookup(addr);
+
+			long ttl = (host != null ? POSITIVE_TTL : NEGATIVE_TTL);
+			synchronized (cache) {
+				cache.put(addr, new CacheEntry(host, System.currentTimeMillis() + ttl));
+			}
+
+			finish(addr, host != null ? host : addr.getHostAddress());
+		}
+	}
+
+	private NameService nameService;
+	private long timeout;
+
+	private ThreadPoolExecutor pool;
+	private ScheduledExecutorService timers;
+
+	private Map<InetAddress, CacheEntry> cache;
+	private Map<InetAddress, List<Request>> pending;
+
+	private AtomicLong requests;
+	private AtomicLong cacheHits;
+	private AtomicLong lookups;
+	private AtomicLong confirmed;
+	private AtomicLong failed;
+	private AtomicLong timeouts;
+	private AtomicLong rejected;
+
+	public HostResolver(int threads, long timeout)
+	{
+		this(threads, timeout, DEFAULT_CACHE_SIZE, SYSTEM);
+	}
+
+	public HostResolver(int threads, long timeout, final int cacheSize,
+		NameService nameService)
+	{
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+
+		this.nameService = nameService;
+		this.timeout = timeout;
+
+		pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("resolver-"));
+		ScheduledThreadPoolExecutor timerPool = new ScheduledThreadPoolExecutor(1,
+			new NamedThreadFactory("resolver-timer-"));
+		timerPool.setRemoveOnCancelPolicy(true);
+		timers = timerPool;
+
+		cache = new LinkedHashMap<InetAddress, CacheEntry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InetAddress, CacheEntry> eldest)
+			{
+				return size() > cacheSize;
+			}
+		};
+		pending = new HashMap<InetAddress, List<Request>>();
+
+		requests = new AtomicLong(0);
+		cacheHits = new AtomicLong(0);
+		lookups = new AtomicLong(0);
+		confirmed = new AtomicLong(0);
+		failed = new AtomicLong(0);
+		timeouts = new AtomicLong(0);
+		rejected = new AtomicLong(0);
+	}
+
+	public long getTimeout() { return timeout; }
+
+	public long getRequests() { return requests.get(); }
+	public long getCacheHits() { return cacheHits.get(); }
+	public long getLookups() { return lookups.get(); }
+	public long getConfirmed() { return confirmed.get(); }
+	public long getFailed() { return failed.get(); }
+	public long getTimeouts() { return timeouts.get(); }
+	public long getRejected() { return rejected.get(); }
+
+	/**
+	 * Find the host name of an address. The callback is run right away
+	 * if the answer is cached, and otherwise once the lookup finishes or
+	 * the timeout expires, whichever comes first.
+	 */
+	public void resolve(InetAddress addr, Callback callback)
+	{
+		requests.incrementAndGet();
+
+		CacheEntry entry;
+		synchronized (cache) {
+			entry = cache.get(addr);
+		}
+
+		if (entry != null && entry.expires > System.currentTimeMillis()) {
+			cacheHits.incrementAndGet();
+			callback.resolved(entry.host != null ? entry.host : addr.getHostAddress());
+			return;
+		}
+
+		Request request = new Request(addr, callback);
+
+		boolean start = false;
+		synchronized (pending) {
+			List<Request> waiting = pending.get(addr);
+			if (waiting == null) {
+				if (pending.size() >= MAX_PENDING) {
+					waiting = null;
+				}
+				else {
+					waiting = new ArrayList<Request>();
+					pending.put(addr, waiting);
+					start = true;
+				}
+			}
+
+			if (waiting != null) {
+				waiting.add(request);
+			}
+			else {
+				request = null;
+			}
+		}
+
+		if (request == null) {
+			rejected.incrementAndGet();
+			callback.resolved(addr.getHostAddress());
+			return;
+		}
+
+		try {
+			request.timer = timers.schedule(request, timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			// Shut down
+		}
+
+		if (start) {
+			try {
+				pool.execute(new Lookup(addr));
+			}
+			catch (RejectedExecutionException e) {
+				finish(addr, addr.getHostAddress());
+			}
+		}
+	}
+
+	public void shutdown()
+	{
+		pool.shutdownNow();
+		timers.shutdownNow();
+	}
+
+	/**
+	 * Return the forward confirmed name of an address, or null.
+	 */
+	private String lookup(InetAddress addr)
+	{
+		lookups.incrementAndGet();
+
+		try {
+			String name = nameService.reverse(addr);
+			if (name != null && isValidHost(name)) {
+				for (InetAddress forward : nameService.forward(name)) {
+					if (forward.equals(addr)) {
+						confirmed.incrementAndGet();
+						return name;
+					}
+				}
+			}
+		}
+		catch (UnknownHostException e) {
+			// Falls through
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+
+		failed.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Only letters, digits, dashes and dots, so that a name can't break
+	 * the messages it's sent in.
+	 */
+	private static boolean isValidHost(String name)
+	{
+		if (name.length() == 0 || name.length() > MAX_HOST_LENGTH) {
+			return false;
+		}
+
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9') || c == '-' || c == '.')) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void finish(InetAddress addr, String host)
+	{
+		List<Request> waiting;
+		synchronized (pending) {
+			waiting = pending.remove(addr);
+		}
+
+		if (waiting == null) {
+			return;
+		}
+
+		for (Request request : waiting) {
+			request.complete(host);
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger sequence;
+
+		private NamedThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+			this.sequence = new AtomicInteger(0);
+		}
+
+		@Override
+		public Thread newThread(Runnable task)
+		{
+			Thread thread = new Thread(task, prefix + sequence.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -1,14 +1,29 @@
 package se.c0la.fatcat.context;
 
+/**
+ * A read-only view of a channel attribute parameter.
+ */
 public class ImmutableAttributeParameter extends AttributeParameter
 {
-	public ImmutableAttributeParameter(AttributeParameter param)
+	private final AttributeParameter param;
+
+	protected ImmutableAttributeParameter(AttributeParameter param)
 	{
-		super(param);
+		this.param = param;
 	}
-	
+
+	@Override
+	public AttributeParameter getImmutableView() { return this; }
+
+	@Override
 	public void setData(String v)
 	{
 		throw new UnsupportedOperationException();
 	}
+
+	@Override
+	public String getData()
+	{
+		return param.getData();
+	}
 }
@@ -5,66 +5,142 @@ import java.util.*;
 import se.c0la.fatcat.*;
 import se.c0la.fatcat.async.*;
 
+/**
+ * A read-only view of a channel. Nothing is copied, so the view always
+ * reflects the current state of the channel it was created for. Views
+ * are obtained through Channel.getImmutableView().
+ */
 public class ImmutableChannel extends Channel
 {
-	public ImmutableChannel(Channel channel)
+	private final Channel channel;
+
+	protected ImmutableChannel(Channel channel)
 	{
-		super(channel);
+		super();
+		this.channel = channel;
 	}
 
 	@Override
-	public void addUser(User user)
+	public Channel getImmutableView() { return this; }
+
+	@Override
+	public Channel getSnapshot() { return channel.getSnapshot(); }
+
+	@Override
+	public String getName() { return channel.getName(); }
+
+	@Override
+	public String getKey() { return channel.getKey(); }
+
+	@Override
+	public String getTopic() { return channel.getTopic(); }
+
+	@Override
+	public String getTopicChanger() { return channel.getTopicChanger(); }
+
+	@Override
+	public int getTopicTime() { return channel.getTopicTime(); }
+
+	@Override
+	public Set<User> getUsers() { return channel.getUsers(); }
+
+	@Override
+	public MemberTable.Cursor getMembers() { return channel.getMembers(); }
+
+	@Override
+	public int getUserCount() { return channel.getUserCount(); }
+
+	@Override
+	public boolean addUser(User user)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
 	@Override
-	public void removeUser(User user)
+	public boolean removeUser(User user)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
+	public boolean isClosed() { return channel.isClosed(); }
+
 	@Override
 	public ChannelMember getUser(User user)
 	{
-		ChannelMember member = users.get(user);
+		ChannelMember member = channel.getUser(user);
 		if (member == null) {
 			return null;
 		}
 
-		return new ImmutableChannelMember(member);
+		return member.getImmutableView();
 	}
-	
+
 	@Override
 	public void setTopic(String topic, String nick)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
+	public void addInvite(User user)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean getInvite(User user) { return channel.getInvite(user); }
+
+	@Override
+	public void removeInvite(User user)
+	{
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public AttributeParameter getAttribute(ChannelAttribute attr)
 	{
-		if (attr.isMemberAttribute()) {
-			throw new IllegalArgumentException("Cannot use channel member attributes on channel.");
-		}
-	
-		AttributeParameter param = attributes.get(attr);
+		AttributeParameter param = channel.getAttribute(attr);
 		if (param == null) {
 			return null;
 		}
 
-		return new ImmutableAttributeParameter(param);
+		return param.getImmutableView();
 	}
-	
+
 	@Override
 	public void setAttribute(ChannelAttribute attr, AttributeParameter param)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
 	@Override
 	public void removeAttribute(ChannelAttribute attr)
 	{
 		throw new UnsupportedOperationException();
 	}
+
+	@Override
+	public Map<ChannelAttribute, AttributeParameter> getAttributes()
+	{
+		return channel.getAttributes();
+	}
+
+	@Override
+	public void addBan(Ban mask)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void removeBan(Ban mask)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Collection<Ban> getBans() { return channel.getBans(); }
+
+	@Override
+	public boolean isBanned(User user) { return channel.isBanned(user); }
 }
@@ -2,18 +2,26 @@ package se.c0la.fatcat.context;
 
 import java.util.*;
 
+/**
+ * A read-only view of the membership of a user in a channel.
+ */
 public class ImmutableChannelMember extends ChannelMember
 {
-	public ImmutableChannelMember(ChannelMember member)
+	protected ImmutableChannelMember(Channel channel, int id)
 	{
-		super(member);
+		super(channel, id);
 	}
 
+	@Override
+	public ChannelMember getImmutableView() { return this; }
+
+	@Override
 	public void setAttribute(ChannelAttribute attr)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
 	public void removeAttribute(ChannelAttribute attr)
 	{
 		throw new UnsupportedOperationException();
@@ -5,58 +5,207 @@ import java.util.*;
 import se.c0la.fatcat.*;
 import se.c0la.fatcat.async.*;
 
+/**
+ * A read-only view of a user. Nothing is copied, so the view always
+ * reflects the current state of the user it was created for. Views are
+ * obtained through User.getImmutableView().
+ */
 public class ImmutableUser extends User
 {
-	public ImmutableUser(User old)
+	private final User user;
+
+	protected ImmutableUser(User user)
 	{
-		super(old);
+		super();
+		this.user = user;
 	}
 
 	@Override
-	public void setProtocol(Protocol v) 
-	{ 
+	public User getImmutableView() { return this; }
+
+	@Override
+	public User getSnapshot() { return user.getSnapshot(); }
+
+	@Override
+	public int getId() { return user.getId(); }
+
+	@Override
+	public Client getClient() { return user.getClient(); }
+
+	@Override
+	public Protocol getProtocol() { return user.getProtocol(); }
+
+	@Override
+	public void setProtocol(Protocol v)
+	{
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public ReceiverProtocol getReceiverProtocol()
+	{
+		return user.getReceiverProtocol();
+	}
+
+	@Override
+	public PropagationProtocol getPropagationProtocol()
+	{
+		return user.getPropagationProtocol();
+	}
+
+	@Override
+	public boolean hasRegistered() { return user.hasRegistered(); }
+
 	@Override
 	public void setRegistered()
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
+	public boolean markRegistered()
+	{
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
-	public void setNick(String v) 
-	{ 
+	public String getNick() { return user.getNick(); }
+
+	@Override
+	public void setNick(String v)
+	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
+	public String getNickKey() { return user.getNickKey(); }
+
+	@Override
+	public String getUser() { return user.getUser(); }
+
 	@Override
 	public void setUser(String v)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
+	public String getRealName() { return user.getRealName(); }
+
 	@Override
 	public void setRealName(String v)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
+	public String getPassword() { return user.getPassword(); }
+
+	@Override
+	public void setPassword(String v)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getHost() { return user.getHost(); }
+
+	@Override
+	public void setHost(String v)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isHostPending() { return user.isHostPending(); }
+
+	@Override
+	public void setHostPending(boolean v)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getQuitMessage() { return user.getQuitMessage(); }
+
 	@Override
 	public void setQuitMessage(String v)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
+	@Override
+	public String getAwayMessage() { return user.getAwayMessage(); }
+
+	@Override
+	public void setAwayMessage(String v)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public long getIdleSince() { return user.getIdleSince(); }
+
+	@Override
+	public void setIdleSince(long v)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Set<Channel> getChannels() { return user.getChannels(); }
+
 	@Override
 	public void addChannel(Channel channel)
 	{
 		throw new UnsupportedOperationException();
 	}
-	
+
 	@Override
 	public void removeChannel(Channel channel)
 	{
 		throw new UnsupportedOperationException();
 	}
+
+	@Override
+	public void setAttribute(UserAttribute attr)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean getAttribute(UserAttribute attr)
+	{
+		return user.getAttribute(attr);
+	}
+
+	@Override
+	public void removeAttribute(UserAttribute attr)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Set<UserAttribute> getAttributes() { return user.getAttributes(); }
+
+	@Override
+	public long getIdleTime() { return user.getIdleTime(); }
+
+	@Override
+	public int hashCode()
+	{
+		return user.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return user.equals(obj);
+	}
+
+	@Override
+	public String toString()
+	{
+		return user.toString();
+	}
 }
@@ -0,0 +1,209 @@
+package se.c0la.fatcat.context;
+
+import java.util.*;
+
+/**
+ * A hash map from int keys to objects, using open addressing with
+ * linear probing, so that neither the keys nor the entries are boxed.
+ * Null values aren't allowed, since a null value marks an empty slot.
+ * Removal shifts back the entries following the removed one rather than
+ * leaving tombstones, so lookups never get slower over time.
+ *
+ * The map isn't thread safe.
+ */
+public class IntObjectMap<V>
+{
+	private final static int INITIAL_CAPACITY = 8;
+
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private int modCount;
+
+	public IntObjectMap()
+	{
+		keys = new int[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+		size = 0;
+		modCount = 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public boolean containsKey(int key)
+	{
+		return get(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		for (int i = slot(key); ; i = (i + 1) & mask) {
+			Object value = values[i];
+			if (value == null) {
+				return null;
+			}
+			if (keys[i] == key) {
+				return (V)value;
+			}
+		}
+	}
+
+	/**
+	 * Associate value with key, and return the previous value if there
+	 * was one.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if (value == null) {
+			throw new NullPointerException();
+		}
+
+		int i = slot(key);
+		for ( ; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V)values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		modCount++;
+
+		// Keep the load factor at or below one half
+		if (size * 2 > values.length) {
+			resize(values.length * 2);
+		}
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(int key)
+	{
+		int i = slot(key);
+		for ( ; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				break;
+			}
+		}
+
+		V old = (V)values[i];
+		if (old == null) {
+			return null;
+		}
+
+		// Move any following entries of the same probe sequence back
+		// into the hole, so that they can still be found.
+		int hole = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+
+		values[hole] = null;
+		size--;
+		modCount++;
+
+		return old;
+	}
+
+	/**
+	 * Iterate over all values, in no particular order. The map must not
+	 * be modified while iterating.
+	 */
+	public Iterator<V> valueIterator()
+	{
+		return new Iterator<V>() {
+			private final int expectedModCount = modCount;
+			private int index = nextIndex(0);
+
+			private int nextIndex(int from)
+			{
+				while (from < values.length && values[from] == null) {
+					from++;
+				}
+
+				return from;
+			}
+
+			@Override
+			public boolean hasNext()
+			{
+				return index < values.length;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public V next()
+			{
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (index >= values.length) {
+					throw new NoSuchElementException();
+				}
+
+				V value = (V)values[index];
+				index = nextIndex(index + 1);
+
+				return value;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private int slot(int key)
+	{
+		// Ids are allocated sequentially, so spread them out
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void resize(int capacity)
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null) {
+				continue;
+			}
+
+			int j = slot(oldKeys[i]);
+			while (values[j] != null) {
+				j = (j + 1) & mask;
+			}
+
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+}
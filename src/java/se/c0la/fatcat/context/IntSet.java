@@ -0,0 +1,48 @@
+package se.c0la.fatcat.context;
+
+/**
+ * A set of ints, backed by an IntObjectMap so that the elements aren't
+ * boxed. The set isn't thread safe.
+ */
+public class IntSet
+{
+	private final static Object PRESENT = new Object();
+
+	private IntObjectMap<Object> map;
+
+	public IntSet()
+	{
+		map = new IntObjectMap<Object>();
+	}
+
+	public int size()
+	{
+		return map.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return map.isEmpty();
+	}
+
+	public boolean contains(int value)
+	{
+		return map.get(value) != null;
+	}
+
+	/**
+	 * Add a value, and return true if it wasn't already present.
+	 */
+	public boolean add(int value)
+	{
+		return map.put(value, PRESENT) == null;
+	}
+
+	/**
+	 * Remove a value, and return true if it was present.
+	 */
+	public boolean remove(int value)
+	{
+		return map.remove(value) != null;
+	}
+}
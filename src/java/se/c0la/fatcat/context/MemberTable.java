@@ -0,0 +1,326 @@
+package se.c0la.fatcat.context;
+
+import java.util.*;
+
+/**
+ * The members of a channel. Members are stored densely in parallel
+ * arrays of users, ids and mode bits, so that fanning out a message to
+ * a channel is a linear scan over an array. An open addressing index
+ * maps user ids to positions in the arrays. Removing a member moves the
+ * last member into its place, so the arrays never contain holes and
+ * the order of the members isn't preserved.
+ *
+ * The table isn't thread safe. Channel changes its table while holding
+ * its lock, and hands out copies for reading without it.
+ */
+public class MemberTable
+{
+	private final static int INITIAL_CAPACITY = 4;
+
+	/**
+	 * Iterates over the members of a table by position. A cursor reads
+	 * straight from the arrays of the table, so the table must not be
+	 * modified while a cursor is in use.
+	 */
+	public class Cursor
+	{
+		private final int expectedModCount = modCount;
+		private int index = -1;
+
+		/**
+		 * Move to the next member, and return false if there are no
+		 * more members.
+		 */
+		public boolean next()
+		{
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+
+			if (index + 1 >= size) {
+				return false;
+			}
+
+			index++;
+			return true;
+		}
+
+		public User getUser()
+		{
+			return users[index];
+		}
+
+		public boolean getAttribute(ChannelAttribute attr)
+		{
+			return (modes[index] & bit(attr)) != 0;
+		}
+	}
+
+	private User[] users;
+	private int[] ids;
+	private byte[] modes;
+	private int size;
+
+	// Position + 1 of the member with the id hashed to each slot,
+	// or zero for empty slots.
+	private int[] slots;
+	private int mask;
+
+	private int modCount;
+
+	public MemberTable()
+	{
+		users = new User[INITIAL_CAPACITY];
+		ids = new int[INITIAL_CAPACITY];
+		modes = new byte[INITIAL_CAPACITY];
+		size = 0;
+
+		slots = new int[INITIAL_CAPACITY * 2];
+		mask = slots.length - 1;
+
+		modCount = 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Return an independent copy of this table.
+	 */
+	public MemberTable copy()
+	{
+		MemberTable copy = new MemberTable();
+		copy.users = users.clone();
+		copy.ids = ids.clone();
+		copy.modes = modes.clone();
+		copy.size = size;
+		copy.slots = slots.clone();
+		copy.mask = mask;
+
+		return copy;
+	}
+
+	public Cursor cursor()
+	{
+		return new Cursor();
+	}
+
+	/**
+	 * Return the position of the member with the given id, or -1 if
+	 * there is no such member.
+	 */
+	public int indexOf(int id)
+	{
+		for (int s = slot(id); ; s = (s + 1) & mask) {
+			int v = slots[s];
+			if (v == 0) {
+				return -1;
+			}
+			if (ids[v - 1] == id) {
+				return v - 1;
+			}
+		}
+	}
+
+	public boolean contains(int id)
+	{
+		return indexOf(id) != -1;
+	}
+
+	public User getUser(int index)
+	{
+		return users[index];
+	}
+
+	/**
+	 * Add a user without any modes. Adding a user that is already a
+	 * member does nothing.
+	 */
+	public void add(User user)
+	{
+		int id = user.getId();
+		if (indexOf(id) != -1) {
+			return;
+		}
+
+		if (size == users.length) {
+			int capacity = size * 2;
+			users = Arrays.copyOf(users, capacity);
+			ids = Arrays.copyOf(ids, capacity);
+			modes = Arrays.copyOf(modes, capacity);
+		}
+
+		users[size] = user;
+		ids[size] = id;
+		modes[size] = 0;
+		size++;
+		modCount++;
+
+		// Keep the load factor of the index at or below one half
+		if (size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		else {
+			insert(size - 1);
+		}
+	}
+
+	public boolean remove(int id)
+	{
+		int s = slot(id);
+		for ( ; slots[s] != 0; s = (s + 1) & mask) {
+			if (ids[slots[s] - 1] == id) {
+				break;
+			}
+		}
+
+		if (slots[s] == 0) {
+			return false;
+		}
+
+		int index = slots[s] - 1;
+		deleteSlot(s);
+
+		// Fill the hole with the last member
+		int last = size - 1;
+		if (index != last) {
+			users[index] = users[last];
+			ids[index] = ids[last];
+			modes[index] = modes[last];
+
+			s = slot(ids[index]);
+			while (slots[s] != last + 1) {
+				s = (s + 1) & mask;
+			}
+			slots[s] = index + 1;
+		}
+
+		users[last] = null;
+		size--;
+		modCount++;
+
+		return true;
+	}
+
+	public boolean getAttribute(int id, ChannelAttribute attr)
+	{
+		int index = indexOf(id);
+		if (index == -1) {
+			return false;
+		}
+
+		return (modes[index] & bit(attr)) != 0;
+	}
+
+	public void setAttribute(int id, ChannelAttribute attr)
+	{
+		int index = indexOf(id);
+		if (index != -1) {
+			modes[index] |= bit(attr);
+		}
+	}
+
+	public void removeAttribute(int id, ChannelAttribute attr)
+	{
+		int index = indexOf(id);
+		if (index != -1) {
+			modes[index] &= ~bit(attr);
+		}
+	}
+
+	/**
+	 * Iterate over the users of the table, in storage order.
+	 */
+	public Iterator<User> userIterator()
+	{
+		return new Iterator<User>() {
+			private final int expectedModCount = modCount;
+			private int index = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return index < size;
+			}
+
+			@Override
+			public User next()
+			{
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+
+				return users[index++];
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * The bit used for a member attribute in the mode bitmask.
+	 */
+	private static int bit(ChannelAttribute attr)
+	{
+		switch (attr) {
+			case FOUNDER: return 0x01;
+			case OP: return 0x02;
+			case HALFOP: return 0x04;
+			case VOICE: return 0x08;
+			case PROTECTED: return 0x10;
+		}
+
+		throw new IllegalArgumentException("Cannot use channel attributes on channel members.");
+	}
+
+	private int slot(int id)
+	{
+		int h = id * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void insert(int index)
+	{
+		int s = slot(ids[index]);
+		while (slots[s] != 0) {
+			s = (s + 1) & mask;
+		}
+
+		slots[s] = index + 1;
+	}
+
+	private void deleteSlot(int s)
+	{
+		// Shift back any following entries of the same probe sequence
+		// so that they can still be found.
+		int hole = s;
+		for (int j = (s + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+			int home = slot(ids[slots[j] - 1]);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				slots[hole] = slots[j];
+				hole = j;
+			}
+		}
+
+		slots[hole] = 0;
+	}
+
+	private void rehash(int capacity)
+	{
+		slots = new int[capacity];
+		mask = capacity - 1;
+
+		for (int i = 0; i < size; i++) {
+			insert(i);
+		}
+	}
+}
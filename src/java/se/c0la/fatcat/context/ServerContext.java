@@ -2,6 +2,9 @@ package se.c0la.fatcat.context;
 
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import se.c0la.fatcat.*;
 import se.c0la.fatcat.async.*;
@@ -12,29 +15,45 @@ import se.c0la.fatcat.irc.*;
  * events to all other clients, but any reply messages
  * to the sender should be handled by the Protocol
  * implementation of the source user.
+ *
+ * Events may be called concurrently from several reactor threads. The
+ * registries are concurrent maps, nicks and channel names are claimed
+ * atomically, and each channel guards its own state. Fanning out a
+ * message to a channel iterates over a copy of its members that is
+ * shared until the next change, so it never holds the lock of the
+ * channel.
+ *
+ * With channel shards, every event that reaches the members of a channel
+ * runs on the owner of the channel, or waits for it to catch up, so the
+ * members see the events of a user in the order they were sent.
  */
 public class ServerContext
 {
-	private static class CaseInsensitiveStringComparator implements Comparator<String>
-	{
-		public int compare(String a, String b)
-		{
-			return a.compareToIgnoreCase(b);
-		}
-	}
-
-	private AsyncSocketServer server;
-    private EventListener listener;
+	private AsyncServer server;
+    private EventBus eventBus;
     private volatile PasswordCallback passwordCallback;
 
 	private Date startDate;
 	private Map<String, Operator> operators;
 
 	// Invariant: users.values() == nicks.values()
-	private Map<Client, User> users;
-	private Map<String, User> nicks;
+	// Nicks and channels are keyed by their name folded using the
+	// rfc1459 case mapping, as returned by getNickKey() and getKey().
+	private ConcurrentMap<Client, User> users;
+	private ConcurrentMap<String, User> nicks;
+
+	// Ids are never reused, so a stale id can't refer to a new user
+	private AtomicInteger userIdSequence;
+
+	private volatile ConcurrentMap<String, Channel> channels;
 
-	private volatile Map<String, Channel> channels;
+	// Runs channel events when channels are sharded, or null to run
+	// them on the calling thread
+	private volatile ChannelExecutor channelExecutor;
+
+	// Looks up the host names of new users, or null to leave them
+	// with their numeric addresses
+	private volatile HostResolver hostResolver;
 	
 	private volatile int maxUserCount;
 	private volatile int maxChannelCount;
@@ -45,33 +64,78 @@ public class ServerContext
 	private volatile long maxUserCountHappened;
 	private volatile long maxChannelCountHappened;
 
-	public ServerContext(AsyncSocketServer server)
+	public ServerContext(AsyncServer server)
 	{
 		this.server = server;
-        this.listener = new EventAdapter();
+        this.eventBus = new EventBus();
 
 		this.startDate = new Date();
         
         operators = new HashMap<String, Operator>();
 
-		users = new HashMap<Client, User>();
-		nicks = new TreeMap<String, User>(new CaseInsensitiveStringComparator());
+		users = new ConcurrentHashMap<Client, User>();
+		userIdSequence = new AtomicInteger(0);
+		nicks = new ConcurrentHashMap<String, User>();
 
-		channels = new TreeMap<String, Channel>(new CaseInsensitiveStringComparator());
+		channels = new ConcurrentHashMap<String, Channel>();
+		channelExecutor = null;
+		hostResolver = new HostResolver(HostResolver.DEFAULT_THREADS,
+			HostResolver.DEFAULT_TIMEOUT);
 	}
     
-    public void setEventListener(EventListener listener)
+    /**
+     * Listeners are notified asynchronously through the event bus, using
+     * its default capacity and policy.
+     */
+    public EventBus.Subscription addEventListener(EventListener listener)
     {
-        this.listener = listener;
+        return eventBus.subscribe(listener);
     }
 
+    public EventBus getEventBus() { return eventBus; }
+
+    /**
+     * Run the events of channels on the given number of shards, each
+     * owning the channels that hash to it. With zero shards, which is the
+     * default, they run on the reactor thread of the user causing them.
+     */
+    public void setChannelShards(int count)
+    {
+        ChannelExecutor old = channelExecutor;
+        channelExecutor = (count > 0 ? new ChannelExecutor(count) : null);
+
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    public ChannelExecutor getChannelExecutor() { return channelExecutor; }
+
+    /**
+     * Look up the host names of new users on the given number of
+     * threads, waiting at most timeout milliseconds before registering
+     * them with their numeric addresses. Zero threads turns host name
+     * lookups off.
+     */
+    public void setHostLookup(int threads, long timeout)
+    {
+        HostResolver old = hostResolver;
+        hostResolver = (threads > 0 ? new HostResolver(threads, timeout) : null);
+
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    public HostResolver getHostResolver() { return hostResolver; }
+
     public void setPasswordCallback(PasswordCallback callback)
     {
         this.passwordCallback = callback;
     }
 
 	// Active helper objects
-	public AsyncSocketServer getServer() { return server; }
+	public AsyncServer getServer() { return server; }
 	public void addOperator(String name, Operator o) {
 		operators.put(name, o);
 	}
@@ -107,27 +171,27 @@ public class ServerContext
 			return null;
 		}
 
-		return new ImmutableUser(user);
+		return user.getImmutableView();
 	}
 	
 	public User getUser(String nick)
 	{
-		User user = nicks.get(nick);
+		User user = nicks.get(CaseMapping.toLowerCase(nick));
 		if (user == null) {
 			return null;
 		}
 
-		return new ImmutableUser(user);
+		return user.getImmutableView();
 	}
 	
 	public Channel getChannel(String name)
 	{
-		Channel channel = channels.get(name);
+		Channel channel = channels.get(CaseMapping.toLowerCase(name));
 		if (channel == null) {
 			return null;
 		}
 
-		return new ImmutableChannel(channel);
+		return channel.getImmutableView();
 	}
 
 	public Operator getOperator(String name)
@@ -139,23 +203,116 @@ public class ServerContext
 	{
 		return Collections.unmodifiableCollection(channels.values());
 	}
+
+	/**
+	 * All connected users, including the ones that haven't completed
+	 * registration yet.
+	 */
+	public Collection<User> getUsers()
+	{
+		return Collections.unmodifiableCollection(users.values());
+	}
+	
+	/**
+	 * Run a task as the owner of the channel with the given key. Events
+	 * that change the state of a channel wait for the task, so that the
+	 * replies to the user see the change. Message fan-out doesn't.
+	 */
+	private void onChannel(String key, boolean wait, Runnable task)
+	{
+		ChannelExecutor executor = channelExecutor;
+		if (executor == null) {
+			task.run();
+		} else if (wait) {
+			executor.executeAndWait(key, task);
+		} else {
+			executor.execute(key, task);
+		}
+	}
+
+	/**
+	 * Group the recipients of an event by their propagation protocol, so
+	 * that each protocol only has to serialize the event once for all of
+	 * its users.
+	 */
+	private Map<PropagationProtocol, List<User>> groupByProtocol(Collection<User> targetUsers, 
+		User exclude)
+	{
+		Map<PropagationProtocol, List<User>> groups = 
+			new IdentityHashMap<PropagationProtocol, List<User>>();
+
+		for (User targetUser : targetUsers) {
+			if (exclude != null && targetUser.equals(exclude)) {
+				continue;
+			}
+
+			PropagationProtocol propProtocol = targetUser.getPropagationProtocol();
+			List<User> group = groups.get(propProtocol);
+			if (group == null) {
+				group = new ArrayList<User>(targetUsers.size());
+				groups.put(propProtocol, group);
+			}
+
+			group.add(targetUser);
+		}
+
+		return groups;
+	}
 	
 	// State setters
 	public void setQuitMessage(Client client, String message)
 	{
 		User user = users.get(client);
+		if (user == null) {
+			return;
+		}
+
 		user.setQuitMessage(message);
 	}
 	
 	// Events
-	public void userConnectedEvent(Client client, Protocol protocol)
+	public void userConnectedEvent(final Client client, Protocol protocol)
 	{
-		User user = new User(client);
+		User user = new User(client, userIdSequence.getAndIncrement());
 		user.setProtocol(protocol);
 
+		// Users start out with their numeric address, and registration
+		// waits for the lookup, or for it to time out.
+		HostResolver resolver = hostResolver;
+		if (resolver != null) {
+			user.setHostPending(true);
+		}
+
 		users.put(client, user);
+
+		if (resolver != null) {
+			resolver.resolve(client.getInetAddress(), new HostResolver.Callback() {
+				@Override
+				public void resolved(String host)
+				{
+					hostResolvedEvent(client, host);
+				}
+			});
+		}
         
-        listener.userConnectedEvent(client, protocol);
+        eventBus.userConnectedEvent(client, protocol);
+	}
+
+	/**
+	 * Called on the resolver thread, or on the reactor thread if the
+	 * name was cached.
+	 */
+	private void hostResolvedEvent(Client client, String host)
+	{
+		User user = users.get(client);
+		if (user == null) {
+			return;
+		}
+
+		user.setHost(host);
+		user.setHostPending(false);
+
+		registerUser(user);
 	}
 
 	public void userDisconnectedEvent(Client client)
@@ -171,36 +328,39 @@ public class ServerContext
 
 		users.remove(client);
 		if (user.getNick() != null) {
-			nicks.remove(user.getNick());
+			nicks.remove(user.getNickKey(), user);
 		} else {
 			// not registered
 			return;
 		}
 
-		Set<Channel> channels = user.getChannels();
-		Set<User> sentTo = new HashSet<User>();
-		for (Channel channel : channels) {
-			if (channel.getUserCount() == 0) {
-				channels.remove(channel.getName());
-				continue;
-			}
-			
-			channel.removeUser(user);
-			
-			Set<User> users = channel.getUsers();
-			for (User targetUser : users) {
-				if (sentTo.contains(targetUser)) {
-					continue;
+		// Leave each channel on its owner, after anything the user sent
+		// to it earlier has gone out
+		final User quitUser = user;
+		final Set<User> sentTo = new HashSet<User>();
+		for (final Channel channel : user.getChannels()) {
+			onChannel(channel.getKey(), true, new Runnable() {
+				@Override
+				public void run()
+				{
+					if (channel.removeUser(quitUser)) {
+						channels.remove(channel.getKey(), channel);
+						return;
+					}
+
+					sentTo.addAll(channel.getUsers());
 				}
-			
-				PropagationProtocol propProtocol = targetUser.getPropagationProtocol();
-				propProtocol.quit(targetUser, user, message);
-				
-				sentTo.add(targetUser);
-			}
+			});
+		}
+
+		for (Map.Entry<PropagationProtocol, List<User>> group : 
+			groupByProtocol(sentTo, null).entrySet()) {
+
+			PropagationProtocol propProtocol = group.getKey();
+			propProtocol.quit(group.getValue(), user, message);
 		}
         
-        listener.userDisconnectedEvent(client);
+        eventBus.userDisconnectedEvent(client);
 	}
 
     private void registerUser(User user)
@@ -211,11 +371,16 @@ public class ServerContext
             return;
         }
 
-        // ...and a username.
+        // ...and a username...
         if (user.getUser() == null) {
             return;
         }
 
+        // ...and that we're done looking up the host name.
+        if (user.isHostPending()) {
+            return;
+        }
+
         // If password auth is enabled, some extra checking is needed
         if (passwordCallback != null) {
             // Don't do anything unless there is a password.
@@ -235,7 +400,12 @@ public class ServerContext
             }
         }
 
-        user.setRegistered();
+        // The lookup may finish on a resolver thread just as the user
+        // registers on a reactor thread, but only one of them gets to
+        // send the welcome.
+        if (!user.markRegistered()) {
+            return;
+        }
 
         PropagationProtocol propProt = user.getPropagationProtocol();
         propProt.welcomeSequence(user);
@@ -273,60 +443,64 @@ public class ServerContext
 
 	    registerUser(user);	
         
-        listener.userIdentificationEvent(user, userName, mode, realName);
-        
-        listener.userIdentificationEvent(user, userName, mode, realName);
+        eventBus.userIdentificationEvent(user, userName, mode, realName);
 	}
 	
 	public void nickEvent(User user, String newNick)
 	throws ErrorConditionException
 	{
-		if (user.getNick() != null) {
-			nicks.remove(user.getNick());
-		}
-
 		// User objects are read-only when we receive them from
 		// an outside source. Lets retrieve a writable instance.
 		user = users.get(user.getClient());
 
+		// Claim the new nick before letting go of the old one. Someone
+		// else may have taken it since the protocol checked.
+		String newKey = CaseMapping.toLowerCase(newNick);
+		User owner = nicks.putIfAbsent(newKey, user);
+		if (owner != null && owner != user) {
+			throw new ErrorConditionException(ErrorCondition.E_NICK_IN_USE);
+		}
+
+		if (user.getNick() != null && !newKey.equals(user.getNickKey())) {
+			nicks.remove(user.getNickKey(), user);
+		}
+
 		// propagate to users on the same channels as
 		// the source user
-		Set<User> sentTo = new HashSet<User>();
-        PropagationProtocol propProtocol;
-        
+		final Set<User> sentTo = new HashSet<User>();
         if (user.getNick() != null) {
-            propProtocol = user.getPropagationProtocol();
-            propProtocol.nickChange(user, user, newNick);
             sentTo.add(user);
         }
         
-		Set<Channel> channels = user.getChannels();
-		for (Channel channel : channels) {
-			Set<User> users = channel.getUsers();
-			
-			for (User targetUser : users) {
-				if (sentTo.contains(targetUser)) {
-					continue;
+		// The members are collected on the owner of each channel, so
+		// that anything the user sent to it earlier goes out before
+		// the nick change.
+		for (final Channel channel : user.getChannels()) {
+			onChannel(channel.getKey(), true, new Runnable() {
+				@Override
+				public void run()
+				{
+					sentTo.addAll(channel.getUsers());
 				}
-                
-				propProtocol = targetUser.getPropagationProtocol();
-				propProtocol.nickChange(targetUser, user, newNick);
-				
-				sentTo.add(targetUser);
-			}
+			});
+		}
+
+		for (Map.Entry<PropagationProtocol, List<User>> group : 
+			groupByProtocol(sentTo, null).entrySet()) {
+
+			PropagationProtocol propProtocol = group.getKey();
+			propProtocol.nickChange(group.getValue(), user, newNick);
 		}
 
-		nicks.put(newNick, user);
 		user.setNick(newNick);
 
 	    registerUser(user);	
         
-        listener.nickEvent(user, newNick);
-        
-        listener.nickEvent(user, newNick);
+        eventBus.nickEvent(user, newNick);
 	}
 	
-	public void messageEvent(User sourceUser, String targetName, String message)
+	public void messageEvent(final User sourceUser, final String targetName, 
+		final String message)
 	throws ErrorConditionException
 	{
 		// If a user exist with the value of targetName, send a 
@@ -339,25 +513,35 @@ public class ServerContext
 			return;
 		}
 
-		Channel channel = channels.get(targetName);
+		final Channel channel = channels.get(CaseMapping.toLowerCase(targetName));
 		if (channel == null) {
 			return;
 		}
 
-		Set<User> users = channel.getUsers();
-		for (User recvUser : users) {
-			if (recvUser.equals(sourceUser)) {
-				continue;
-			}
+		// The fan-out is queued, so take the prefix of the sender now
+		// rather than whatever it is once the owner gets to it
+		final User source = sourceUser.getSnapshot();
+
+		onChannel(channel.getKey(), false, new Runnable() {
+			@Override
+			public void run()
+			{
+				// Serialize the message once per protocol, and share it
+				// between all recipients
+				for (Map.Entry<PropagationProtocol, List<User>> group : 
+					groupByProtocol(channel.getUsers(), source).entrySet()) {
+
+					PropagationProtocol propProtocol = group.getKey();
+					propProtocol.message(group.getValue(), source, targetName, message);
+				}
 
-			PropagationProtocol propProtocol = recvUser.getPropagationProtocol();
-			propProtocol.message(recvUser, sourceUser, targetName, message);
-		}
-        
-        listener.messageEvent(sourceUser, targetName, message);
+				eventBus.messageEvent(source, targetName, message);
+			}
+		});
 	}
 	
-	public void noticeEvent(User sourceUser, String targetName, String message)
+	public void noticeEvent(final User sourceUser, final String targetName, 
+		final String message)
 	{
 		// If a user exist with the value of targetName, send a 
 		// private message to her instead
@@ -369,46 +553,80 @@ public class ServerContext
 			return;
 		}
 
-		Channel channel = channels.get(targetName);
+		final Channel channel = channels.get(CaseMapping.toLowerCase(targetName));
 		if (channel == null) {
 			return;
 		}
 
-		Set<User> users = channel.getUsers();
-		for (User recvUser : users) {
-			if (recvUser.equals(sourceUser)) {
-				continue;
-			}
+		// The fan-out is queued, so take the prefix of the sender now
+		// rather than whatever it is once the owner gets to it
+		final User source = sourceUser.getSnapshot();
+
+		onChannel(channel.getKey(), false, new Runnable() {
+			@Override
+			public void run()
+			{
+				// Serialize the message once per protocol, and share it
+				// between all recipients
+				for (Map.Entry<PropagationProtocol, List<User>> group : 
+					groupByProtocol(channel.getUsers(), source).entrySet()) {
+
+					PropagationProtocol propProtocol = group.getKey();
+					propProtocol.notice(group.getValue(), source, targetName, message);
+				}
 
-			PropagationProtocol propProtocol = recvUser.getPropagationProtocol();
-			propProtocol.notice(recvUser, sourceUser, targetName, message);
-		}
-        
-        listener.noticeEvent(sourceUser, targetName, message);
+				eventBus.noticeEvent(source, targetName, message);
+			}
+		});
 	}
 	
-	public void joinEvent(User user, String name)
+	public void joinEvent(User user, final String name)
 	throws ErrorConditionException
 	{
 		// User objects are read-only when we receive them from
 		// an outside source. Lets retrieve a writable instance.
-		user = users.get(user.getClient());
+		final User writableUser = users.get(user.getClient());
+
+		final String key = CaseMapping.toLowerCase(name);
+		onChannel(key, true, new Runnable() {
+			@Override
+			public void run()
+			{
+				joinChannel(writableUser, key, name);
+			}
+		});
+	}
 
-		Channel channel = channels.get(name);
-		boolean newChannel = false;
-		if (channel == null) {
-			channel = new Channel(name);
-			channels.put(name, channel);
-			
-			newChannel = true;
-			
-			if(channels.size() > maxChannelCount) {
-				maxChannelCount = channels.size();
-				maxChannelCountHappened = System.currentTimeMillis();
+	private void joinChannel(User user, String key, String name)
+	{
+		Channel channel;
+		boolean newChannel;
+		while (true) {
+			channel = channels.get(key);
+			newChannel = false;
+			if (channel == null) {
+				Channel created = new Channel(name);
+				channel = channels.putIfAbsent(key, created);
+				if (channel == null) {
+					channel = created;
+					newChannel = true;
+				}
+			}
+
+			if (channel.addUser(user)) {
+				break;
 			}
+
+			// The last member left the channel after we looked it up.
+			// Make sure it's gone, and try again.
+			channels.remove(key, channel);
+		}
+
+		if (newChannel && channels.size() > maxChannelCount) {
+			maxChannelCount = channels.size();
+			maxChannelCountHappened = System.currentTimeMillis();
 		}
 
-		channel.addUser(user);
 		user.addChannel(channel);
 		
 		if (newChannel) {
@@ -416,95 +634,165 @@ public class ServerContext
 			member.setAttribute(ChannelAttribute.OP);
 		}
 		else {
-			channel.removeInvite(user.getNick());
+			channel.removeInvite(user);
 		}
 
 		// propagate to all other users on the channel
-		Set<User> users = channel.getUsers();
-		for (User targetUser : users) {
-			PropagationProtocol propProtocol = targetUser.getPropagationProtocol();
-			propProtocol.joinedChannel(targetUser, user, channel);
+		for (Map.Entry<PropagationProtocol, List<User>> group : 
+			groupByProtocol(channel.getUsers(), null).entrySet()) {
+
+			PropagationProtocol propProtocol = group.getKey();
+			propProtocol.joinedChannel(group.getValue(), user, channel);
 		}
         
-        listener.joinEvent(user, name);
+        eventBus.joinEvent(user, name);
 	}
 	
-	public void inviteEvent(User sourceUser, Channel channel, User targetUser)
+	public void inviteEvent(final User sourceUser, Channel channel, final User targetUser)
 	throws ErrorConditionException
 	{
-		channel.addInvite(targetUser.getNick());
+		final String key = channel.getKey();
+		onChannel(key, true, new Runnable() {
+			@Override
+			public void run()
+			{
+				inviteToChannel(sourceUser, key, targetUser);
+			}
+		});
+	}
+
+	private void inviteToChannel(User sourceUser, String key, User targetUser)
+	{
+		// Channel objects are read-only when we receive them from
+		// an outside source. Lets retrieve a writable instance.
+		Channel channel = channels.get(key);
+		if (channel == null) {
+			return;
+		}
+
+		channel.addInvite(targetUser);
 		
 		PropagationProtocol propProtocol = targetUser.getPropagationProtocol();
 		propProtocol.inviteToChannel(targetUser, sourceUser, channel);
         
-        listener.inviteEvent(sourceUser, channel, targetUser);
+        eventBus.inviteEvent(sourceUser, channel, targetUser);
 	}
 	
-	public void topicEvent(Channel channel, User user, String newTopic)
+	public void topicEvent(Channel channel, final User user, final String newTopic)
 	throws ErrorConditionException
 	{
-		channel = channels.get(channel.getName());
+		final String key = channel.getKey();
+		onChannel(key, true, new Runnable() {
+			@Override
+			public void run()
+			{
+				changeTopic(key, user, newTopic);
+			}
+		});
+	}
+
+	private void changeTopic(String key, User user, String newTopic)
+	{
+		Channel channel = channels.get(key);
+		if (channel == null) {
+			return;
+		}
+
 		channel.setTopic(newTopic, user.getNick());
 		
-		Set<User> users = channel.getUsers();
-		for (User targetUser : users) {
-			PropagationProtocol propProtocol = targetUser.getPropagationProtocol();
-			propProtocol.topicChanged(targetUser, user, channel, newTopic);
+		for (Map.Entry<PropagationProtocol, List<User>> group : 
+			groupByProtocol(channel.getUsers(), null).entrySet()) {
+
+			PropagationProtocol propProtocol = group.getKey();
+			propProtocol.topicChanged(group.getValue(), user, channel, newTopic);
 		}
         
-        listener.topicEvent(channel, user, newTopic);
+        eventBus.topicEvent(channel, user, newTopic);
 	}
 
-	public void partEvent(User user, String name, String message)
+	public void partEvent(User user, final String name, final String message)
 	throws ErrorConditionException
 	{
-		Channel channel = channels.get(name);
+		// User objects are read-only when we receive them from
+		// an outside source. Lets retrieve a writable instance.
+		final User writableUser = users.get(user.getClient());
+
+		final String key = CaseMapping.toLowerCase(name);
+		onChannel(key, true, new Runnable() {
+			@Override
+			public void run()
+			{
+				partChannel(writableUser, key, name, message);
+			}
+		});
+	}
+
+	private void partChannel(User user, String key, String name, String message)
+	{
+		Channel channel = channels.get(key);
 		if (channel == null) {
 			return;
 		}
 
-		// User objects are read-only when we receive them from
-		// an outside source. Lets retrieve a writable instance.
-		user = users.get(user.getClient());
-
 		// propagate to all other users on the channel
-		Set<User> users = channel.getUsers();
-		for (User targetUser : users) {
-			PropagationProtocol propProtocol = targetUser.getPropagationProtocol();
-			propProtocol.partedChannel(targetUser, user, channel, message);
+		for (Map.Entry<PropagationProtocol, List<User>> group : 
+			groupByProtocol(channel.getUsers(), null).entrySet()) {
+
+			PropagationProtocol propProtocol = group.getKey();
+			propProtocol.partedChannel(group.getValue(), user, channel, message);
 		}
 
-		channel.removeUser(user);
 		user.removeChannel(channel);
-		
-		if (channel.getUserCount() == 0) {
-			channels.remove(channel.getName());
+		if (channel.removeUser(user)) {
+			channels.remove(channel.getKey(), channel);
 		}
         
-        listener.partEvent(user, name, message);
+        eventBus.partEvent(user, name, message);
 	}
 	
-	public void kickEvent(User user, String channelName, User kickUser, String message)
+	public void kickEvent(final User user, final String channelName, User kickUser, 
+		final String message)
 	throws ErrorConditionException
 	{
-		Channel channel = channels.get(channelName);
+		// User objects are read-only when we receive them from
+		// an outside source. Lets retrieve a writable instance.
+		final User writableKickUser = users.get(kickUser.getClient());
+		if (writableKickUser == null) {
+			return;
+		}
+
+		final String key = CaseMapping.toLowerCase(channelName);
+		onChannel(key, true, new Runnable() {
+			@Override
+			public void run()
+			{
+				kickFromChannel(user, key, channelName, writableKickUser, message);
+			}
+		});
+	}
+
+	private void kickFromChannel(User user, String key, String channelName, User kickUser, 
+		String message)
+	{
+		Channel channel = channels.get(key);
 		if (channel == null) {
 			return;
 		}
 		
-		kickUser = users.get(kickUser.getClient());
-		
-		Set<User> users = channel.getUsers();
-		for (User targetUser : users) {
-			PropagationProtocol propProtocol = user.getPropagationProtocol();
-			propProtocol.kickedFromChannel(targetUser, user, channel, kickUser,
+		for (Map.Entry<PropagationProtocol, List<User>> group : 
+			groupByProtocol(channel.getUsers(), null).entrySet()) {
+
+			PropagationProtocol propProtocol = group.getKey();
+			propProtocol.kickedFromChannel(group.getValue(), user, channel, kickUser,
 				message);
 		}
 		
-		channel.removeUser(kickUser);
 		kickUser.removeChannel(channel);
+		if (channel.removeUser(kickUser)) {
+			channels.remove(channel.getKey(), channel);
+		}
         
-        listener.kickEvent(user, channelName, kickUser, message);
+        eventBus.kickEvent(user, channelName, kickUser, message);
 	}
 
 	public void operEvent(User user)
@@ -514,7 +802,7 @@ public class ServerContext
 
 		user.setAttribute(UserAttribute.OPERATOR);
         
-        listener.operEvent(user);
+        eventBus.operEvent(user);
 	}
 
 	public void killEvent(User targetUser, User sourceUser, String quitMessage)
@@ -529,7 +817,7 @@ public class ServerContext
         Client client = targetUser.getClient();
 		client.closeConnection();
         
-        listener.killEvent(targetUser, sourceUser, quitMessage);
+        eventBus.killEvent(targetUser, sourceUser, quitMessage);
 	}
 
 	public void userAttributeEvent(User user, List<AttributeChange> userAttrs)
@@ -547,14 +835,30 @@ public class ServerContext
 			}
 		}
         
-        listener.userAttributeEvent(user, userAttrs);
+        eventBus.userAttributeEvent(user, userAttrs);
 	}
 	
-	public void channelAttributeEvent(User user, Channel channel, 
-		List<AttributeChange> channelAttrs)
+	public void channelAttributeEvent(final User user, Channel channel, 
+		final List<AttributeChange> channelAttrs)
 	throws ErrorConditionException
 	{
-		channel = channels.get(channel.getName());
+		final String key = channel.getKey();
+		onChannel(key, true, new Runnable() {
+			@Override
+			public void run()
+			{
+				changeChannelAttributes(user, key, channelAttrs);
+			}
+		});
+	}
+
+	private void changeChannelAttributes(User user, String key, 
+		List<AttributeChange> channelAttrs)
+	{
+		Channel channel = channels.get(key);
+		if (channel == null) {
+			return;
+		}
 		
 		for (AttributeChange attrChange : channelAttrs) {
 			ChannelAttribute attr = (ChannelAttribute)attrChange.getAttribute();
@@ -574,12 +878,16 @@ public class ServerContext
 			if (attr.isMemberAttribute()) {
 				String nick = (String)attrChange.getParameter();
 				
-				User changeUser = nicks.get(nick);
+				User changeUser = nicks.get(CaseMapping.toLowerCase(nick));
 				if (changeUser == null) {
 					continue;
 				}
 				
 				ChannelMember member = channel.getUser(changeUser);
+				if (member == null) {
+					continue;
+				}
+
 				if (attrChange.isSet()) {
 					member.setAttribute(attr);
 				} else {
@@ -598,13 +906,14 @@ public class ServerContext
 			}
 		}
 		
-		Set<User> users = channel.getUsers();
-		for (User targetUser : users) {
-			PropagationProtocol propProtocol = user.getPropagationProtocol();
-			propProtocol.attributeChange(targetUser, user, channel, channelAttrs);
+		for (Map.Entry<PropagationProtocol, List<User>> group : 
+			groupByProtocol(channel.getUsers(), null).entrySet()) {
+
+			PropagationProtocol propProtocol = group.getKey();
+			propProtocol.attributeChange(group.getValue(), user, channel, channelAttrs);
 		}
         
-        listener.channelAttributeEvent(user, channel, channelAttrs);
+        eventBus.channelAttributeEvent(user, channel, channelAttrs);
 	}
 	
 	public void quitEvent(User user, String message)
@@ -618,7 +927,7 @@ public class ServerContext
 	
 		client.closeConnection();
         
-        listener.quitEvent(user, message);
+        eventBus.quitEvent(user, message);
 	}
 	
 	public void awayEvent(User user, String message)
@@ -629,7 +938,7 @@ public class ServerContext
 		user.setAwayMessage(message);
 		user.setAttribute(UserAttribute.AWAY);
         
-        listener.awayEvent(user, message);
+        eventBus.awayEvent(user, message);
 	}
 	
 	public void notAwayEvent(User user)
@@ -640,7 +949,7 @@ public class ServerContext
 		user.setAwayMessage(null);
 		user.removeAttribute(UserAttribute.AWAY);
         
-        listener.notAwayEvent(user);
+        eventBus.notAwayEvent(user);
 	}
 	
 	public void idleEvent(User user) 
@@ -650,6 +959,6 @@ public class ServerContext
 		user = users.get(user.getClient());
 		user.setIdleSince(System.currentTimeMillis());
         
-        listener.idleEvent(user);
+        eventBus.idleEvent(user);
 	}
 }
@@ -1,18 +1,22 @@
 package se.c0la.fatcat.context;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import se.c0la.fatcat.*;
 import se.c0la.fatcat.async.*;
 
 public class User
 {
+	private int id;
 	private volatile Client client;
 	private volatile Protocol protocol;
 	
 	private volatile boolean hasRegistered = false;
+	private volatile boolean hostPending = false;
 
 	private volatile String nick;
+	private volatile String nickKey;
 	private volatile String user;
 	private volatile String host;
 	private volatile String realName;
@@ -25,34 +29,55 @@ public class User
 	private volatile String awayMessage = null;
 	private volatile long idleSince;
 	
-	public User(User old)
+	private volatile ImmutableUser immutableView = null;
+
+	/**
+	 * Used by ImmutableUser, which keeps no state of its own.
+	 */
+	protected User()
 	{
-		this.client = old.getClient();
-		this.protocol = old.getProtocol();
-		
-		this.hasRegistered = old.hasRegistered();
-		
-		this.nick = old.getNick();
-		this.user = old.getUser();
-		this.host = client.getHost();
-		this.realName = old.getRealName();
-		this.quitMessage = old.getQuitMessage();
-		this.awayMessage = old.getAwayMessage();
-		
-		this.channels = new HashSet<Channel>(old.channels);
-		this.attributes = old.attributes.clone();
-		this.idleSince = old.idleSince;
 	}
 
-	public User(Client client)
+	public User(Client client, int id)
 	{
+		this.id = id;
 		this.client = client;
 		this.host = client.getHost();
 		
-		channels = new HashSet<Channel>();
+		channels = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
 		attributes = EnumSet.noneOf(UserAttribute.class);
 	}
 	
+	/**
+	 * Return a read-only view of this user. The view is created once and
+	 * shared, so this is cheap enough to call for every message.
+	 */
+	public User getImmutableView()
+	{
+		ImmutableUser view = immutableView;
+		if (view == null) {
+			view = new ImmutableUser(this);
+			immutableView = view;
+		}
+
+		return view;
+	}
+
+	/**
+	 * Return a copy of the nick, user name and host of this user as they
+	 * are now, for events that are sent later.
+	 */
+	public User getSnapshot()
+	{
+		return new UserSnapshot(this);
+	}
+
+	/**
+	 * An id that identifies the user for as long as it is connected,
+	 * regardless of nick changes.
+	 */
+	public int getId() { return id; }
+
 	public Client getClient() { return client; }
 	
 	public Protocol getProtocol()  { return protocol; }
@@ -70,9 +95,33 @@ public class User
 
 	public boolean hasRegistered() {  return hasRegistered; }
 	public void setRegistered() { this.hasRegistered = true; }
+
+	/**
+	 * Mark the user as registered, and return false if someone else
+	 * already did.
+	 */
+	public synchronized boolean markRegistered()
+	{
+		if (hasRegistered) {
+			return false;
+		}
+
+		hasRegistered = true;
+		return true;
+	}
 	
 	public String getNick() { return nick; }
-	public void setNick(String v) { this.nick = v; }
+	public void setNick(String v) 
+	{ 
+		this.nickKey = (v != null ? CaseMapping.toLowerCase(v) : null);
+		this.nick = v; 
+	}
+
+	/**
+	 * The nick folded using the rfc1459 case mapping, which is what
+	 * nicks are compared by.
+	 */
+	public String getNickKey() { return nickKey; }
 	
 	public String getUser() { return user; }
 	public void setUser(String v) { this.user = v; }
@@ -84,6 +133,14 @@ public class User
     public void setPassword(String v) { this.password = v; }
 	
 	public String getHost() { return host; }
+	public void setHost(String v) { this.host = v; }
+
+	/**
+	 * Whether the host name of the user is still being looked up, in
+	 * which case the host is the numeric address for now.
+	 */
+	public boolean isHostPending() { return hostPending; }
+	public void setHostPending(boolean v) { this.hostPending = v; }
 	
 	public String getQuitMessage() { return quitMessage; }
 	public void setQuitMessage(String v) { this.quitMessage = v; }
@@ -109,9 +166,13 @@ public class User
 		channels.remove(channel);
 	}
 	
-	public void setAttribute(UserAttribute attr)
+	// Attributes are read by other threads, for instance when listing
+	// users, so they're copied on write rather than modified in place.
+	public synchronized void setAttribute(UserAttribute attr)
 	{
-		attributes.add(attr);
+		EnumSet<UserAttribute> copy = attributes.clone();
+		copy.add(attr);
+		attributes = copy;
 	}
 	
 	public boolean getAttribute(UserAttribute attr)
@@ -119,9 +180,11 @@ public class User
 		return attributes.contains(attr);
 	}
 	
-	public void removeAttribute(UserAttribute attr)
+	public synchronized void removeAttribute(UserAttribute attr)
 	{
-		attributes.remove(attr);
+		EnumSet<UserAttribute> copy = attributes.clone();
+		copy.remove(attr);
+		attributes = copy;
 	}
 	
 	public Set<UserAttribute> getAttributes()
@@ -136,7 +199,7 @@ public class User
 	@Override
 	public int hashCode()
 	{
-		return nick.hashCode();
+		return getId();
 	}
 	
 	@Override
@@ -146,21 +209,18 @@ public class User
 			return false;
 		}
 		
-		User b = (User)obj;
-		if (nick == null) {
-			return false;
-		}
-		
-		return nick.equals(b.getNick());
+		return getId() == ((User)obj).getId();
 	}
 	
 	@Override
 	public String toString()
 	{
+		// This is part of nearly every message sent, so avoid the
+		// overhead of String.format().
 		if (user == null) {
-			return String.format("%s@%s", nick, host);
+			return nick + "@" + host;
 		}
 	
-		return String.format("%s!%s@%s", nick, user, host);
+		return nick + "!" + user + "@" + host;
 	}
 }
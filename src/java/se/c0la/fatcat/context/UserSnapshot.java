@@ -0,0 +1,50 @@
+package se.c0la.fatcat.context;
+
+/**
+ * A read-only copy of the identity of a user, that is its nick, user name
+ * and host, as they were when the snapshot was taken. Everything else is
+ * read from the user, as with ImmutableUser. Events that are queued rather
+ * than run right away carry a snapshot of their source, so that they go out
+ * under the prefix the user had when they were sent. Snapshots are obtained
+ * through User.getSnapshot().
+ */
+public class UserSnapshot extends ImmutableUser
+{
+	private final String nick;
+	private final String nickKey;
+	private final String userName;
+	private final String host;
+	private final String prefix;
+
+	protected UserSnapshot(User user)
+	{
+		super(user);
+
+		this.nick = user.getNick();
+		this.nickKey = user.getNickKey();
+		this.userName = user.getUser();
+		this.host = user.getHost();
+		this.prefix = user.toString();
+	}
+
+	@Override
+	public User getSnapshot() { return this; }
+
+	@Override
+	public String getNick() { return nick; }
+
+	@Override
+	public String getNickKey() { return nickKey; }
+
+	@Override
+	public String getUser() { return userName; }
+
+	@Override
+	public String getHost() { return host; }
+
+	@Override
+	public String toString()
+	{
+		return prefix;
+	}
+}
@@ -0,0 +1,101 @@
+package se.c0la.fatcat.context;
+
+/**
+ * An IRC mask, where '*' matches any number of characters and '?'
+ * matches exactly one. Matching is case insensitive according to the
+ * rfc1459 case mapping. The mask is folded and normalized once when the
+ * pattern is created, and matching doesn't allocate.
+ */
+public final class WildcardPattern
+{
+	private final String mask;
+	private final char[] pattern;
+	private final boolean literal;
+
+	public WildcardPattern(String mask)
+	{
+		this.mask = mask;
+
+		// Runs of stars are equivalent to a single one, and collapsing
+		// them keeps the backtracking in matches() cheap.
+		char[] compiled = new char[mask.length()];
+		int len = 0;
+		boolean wildcards = false;
+		for (int i = 0; i < mask.length(); i++) {
+			char c = CaseMapping.toLowerCase(mask.charAt(i));
+			if (c == '*' || c == '?') {
+				wildcards = true;
+				if (c == '*' && len > 0 && compiled[len - 1] == '*') {
+					continue;
+				}
+			}
+
+			compiled[len++] = c;
+		}
+
+		this.pattern = new char[len];
+		System.arraycopy(compiled, 0, pattern, 0, len);
+		this.literal = !wildcards;
+	}
+
+	public String getMask() { return mask; }
+
+	/**
+	 * True if the mask doesn't contain any wildcards, in which case it
+	 * only matches strings that are equal to it ignoring case.
+	 */
+	public boolean isLiteral() { return literal; }
+
+	public boolean matches(String str)
+	{
+		if (str == null) {
+			return false;
+		}
+
+		int len = str.length();
+		int p = 0;
+		int s = 0;
+
+		// Position of the last star seen, and the position in the
+		// string it's currently assumed to extend to.
+		int star = -1;
+		int starMatch = 0;
+
+		while (s < len) {
+			if (p < pattern.length) {
+				char c = pattern[p];
+				if (c == '*') {
+					star = p++;
+					starMatch = s;
+					continue;
+				}
+				if (c == '?' || c == CaseMapping.toLowerCase(str.charAt(s))) {
+					p++;
+					s++;
+					continue;
+				}
+			}
+
+			// Mismatch, so let the last star swallow one more
+			// character and try again from there.
+			if (star == -1) {
+				return false;
+			}
+
+			p = star + 1;
+			s = ++starMatch;
+		}
+
+		while (p < pattern.length && pattern[p] == '*') {
+			p++;
+		}
+
+		return p == pattern.length;
+	}
+
+	@Override
+	public String toString()
+	{
+		return mask;
+	}
+}
@@ -0,0 +1,94 @@
+package se.c0la.fatcat.irc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A command that can be received from users, along with the checks
+ * that are made before its handler is invoked and statistics about its
+ * use. The statistics are updated by the reactor threads and can be
+ * read at any time.
+ */
+public class Command
+{
+	private final String name;
+	private final int minParams;
+	private final boolean requiresRegistration;
+	private final boolean countsAsActivity;
+	private final long penalty;
+	private final CommandHandler handler;
+
+	private final AtomicLong invocations;
+	private final AtomicLong errors;
+	private final AtomicLong bytes;
+	private final LatencyHistogram latency;
+
+	/**
+	 * The flood control penalty of most commands, which is the two
+	 * seconds suggested by rfc1459.
+	 */
+	public final static long DEFAULT_PENALTY = 2000L;
+
+	public Command(String name, int minParams, boolean requiresRegistration,
+		boolean countsAsActivity, CommandHandler handler)
+	{
+		this(name, minParams, requiresRegistration, countsAsActivity,
+			DEFAULT_PENALTY, handler);
+	}
+
+	/**
+	 * @param name the command, which is matched ignoring case
+	 * @param minParams the number of parameters below which the command
+	 * is rejected with ERR_NEEDMOREPARAMS
+	 * @param requiresRegistration if the command is rejected with
+	 * ERR_NOTREGISTERED for users that haven't registered
+	 * @param countsAsActivity if the command resets the idle time of the
+	 * user
+	 * @param penalty the number of milliseconds the command adds to the
+	 * penalty clock of the connection it was received on
+	 */
+	public Command(String name, int minParams, boolean requiresRegistration,
+		boolean countsAsActivity, long penalty, CommandHandler handler)
+	{
+		this.name = name.toUpperCase();
+		this.minParams = minParams;
+		this.requiresRegistration = requiresRegistration;
+		this.countsAsActivity = countsAsActivity;
+		this.penalty = penalty;
+		this.handler = handler;
+
+		this.invocations = new AtomicLong(0);
+		this.errors = new AtomicLong(0);
+		this.bytes = new AtomicLong(0);
+		this.latency = new LatencyHistogram();
+	}
+
+	public String getName() { return name; }
+	public int getMinParams() { return minParams; }
+	public boolean requiresRegistration() { return requiresRegistration; }
+	public boolean countsAsActivity() { return countsAsActivity; }
+	public long getPenalty() { return penalty; }
+	public CommandHandler getHandler() { return handler; }
+
+	public long getInvocations() { return invocations.get(); }
+	public long getErrors() { return errors.get(); }
+	public long getBytes() { return bytes.get(); }
+	public LatencyHistogram getLatency() { return latency; }
+
+	/**
+	 * Record one invocation of the command.
+	 *
+	 * @param nanos the time it took to handle the command
+	 * @param length the length of the line
+	 * @param success false if the command resulted in an error reply
+	 */
+	public void record(long nanos, int length, boolean success)
+	{
+		invocations.incrementAndGet();
+		bytes.addAndGet(length);
+		if (!success) {
+			errors.incrementAndGet();
+		}
+
+		latency.record(nanos);
+	}
+}
@@ -0,0 +1,12 @@
+package se.c0la.fatcat.irc;
+
+import se.c0la.fatcat.context.*;
+
+/**
+ * Handles a single command received from a user.
+ */
+public interface CommandHandler
+{
+	public void handle(User user, IRCMessage message)
+	throws ErrorConditionException, NumericErrorException;
+}
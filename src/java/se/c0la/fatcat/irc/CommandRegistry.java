@@ -0,0 +1,53 @@
+package se.c0la.fatcat.irc;
+
+import java.util.*;
+
+/**
+ * The commands understood by a protocol. Commands are registered when
+ * the protocol is created, and looked up by name for every message
+ * received.
+ */
+public class CommandRegistry
+{
+	private CommandTable<Command> table;
+	private List<Command> commands;
+
+	public CommandRegistry()
+	{
+		table = new CommandTable<Command>();
+		commands = new ArrayList<Command>();
+	}
+
+	/**
+	 * Register a command, replacing any previous command with the same
+	 * name.
+	 */
+	public synchronized void register(Command command)
+	{
+		Command old = table.get(command.getName());
+		if (old != null) {
+			commands.remove(old);
+		}
+
+		table.put(command.getName(), command);
+		commands.add(command);
+	}
+
+	public Command get(String name)
+	{
+		return table.get(name);
+	}
+
+	public Command get(IRCMessage message)
+	{
+		return table.get(message);
+	}
+
+	/**
+	 * All commands, in the order they were registered.
+	 */
+	public synchronized List<Command> getCommands()
+	{
+		return new ArrayList<Command>(commands);
+	}
+}
@@ -0,0 +1,124 @@
+package se.c0la.fatcat.irc;
+
+/**
+ * A map from command names to values, where a command can be looked up
+ * directly from a region of a line. Lookups ignore ASCII case and don't
+ * allocate. Commands are registered once at startup, and the table is
+ * read-only after that, so lookups can be made from any thread.
+ */
+public class CommandTable<T>
+{
+	private String[] names;
+	private Object[] values;
+	private int mask;
+	private int size;
+
+	public CommandTable()
+	{
+		names = new String[64];
+		values = new Object[64];
+		mask = names.length - 1;
+		size = 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void put(String name, T value)
+	{
+		String upper = name.toUpperCase();
+		int slot = find(upper, 0, upper.length());
+		if (names[slot] == null) {
+			size++;
+		}
+
+		names[slot] = upper;
+		values[slot] = value;
+
+		if (size * 2 > names.length) {
+			resize();
+		}
+	}
+
+	public T get(String name)
+	{
+		return get(name, 0, name.length());
+	}
+
+	/**
+	 * Look up the command in str[start, end).
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(String str, int start, int end)
+	{
+		return (T)values[find(str, start, end)];
+	}
+
+	public T get(IRCMessage message)
+	{
+		return get(message.getLine(), message.getCommandStart(), message.getCommandEnd());
+	}
+
+	/**
+	 * Return the slot holding the command, or the empty slot where it
+	 * would be inserted.
+	 */
+	private int find(String str, int start, int end)
+	{
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + toUpper(str.charAt(i));
+		}
+
+		for (int slot = (h ^ (h >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+			String name = names[slot];
+			if (name == null || matches(name, str, start, end)) {
+				return slot;
+			}
+		}
+	}
+
+	private static boolean matches(String name, String str, int start, int end)
+	{
+		if (name.length() != end - start) {
+			return false;
+		}
+
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != toUpper(str.charAt(start + i))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static char toUpper(char c)
+	{
+		if (c >= 'a' && c <= 'z') {
+			return (char)(c - 32);
+		}
+
+		return c;
+	}
+
+	private void resize()
+	{
+		String[] oldNames = names;
+		Object[] oldValues = values;
+
+		names = new String[oldNames.length * 2];
+		values = new Object[oldValues.length * 2];
+		mask = names.length - 1;
+
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] != null) {
+				int slot = find(oldNames[i], 0, oldNames[i].length());
+				names[slot] = oldNames[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
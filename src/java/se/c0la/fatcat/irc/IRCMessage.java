@@ -0,0 +1,272 @@
+package se.c0la.fatcat.irc;
+
+/**
+ * A parsed IRC message. Parsing only records the offsets of the tags,
+ * prefix, command and parameters within the line, and the strings are
+ * extracted the first time they're asked for. An instance is meant to
+ * be reused for one line after another by the same thread.
+ *
+ * The format is the one of rfc1459, with the IRCv3 extension of an
+ * optional set of tags before the prefix:
+ *
+ * [@tags] [:prefix] command [params] [:trailing]
+ */
+public class IRCMessage
+{
+	/**
+	 * The maximum number of parameters. The last parameter receives the
+	 * rest of the line, even if it isn't marked as trailing.
+	 */
+	public final static int MAX_PARAMS = 15;
+
+	private String line;
+
+	private int tagsStart, tagsEnd;
+	private int prefixStart, prefixEnd;
+	private int commandStart, commandEnd;
+
+	private int paramCount;
+	private int[] paramStart;
+	private int[] paramEnd;
+
+	// Lazily extracted strings
+	private String command;
+	private String[] params;
+
+	public IRCMessage()
+	{
+		paramStart = new int[MAX_PARAMS];
+		paramEnd = new int[MAX_PARAMS];
+		params = new String[MAX_PARAMS];
+	}
+
+	/**
+	 * Create a message from a line. This is meant for messages that the
+	 * server generates internally, rather than the ones received.
+	 */
+	public IRCMessage(String line)
+	{
+		this();
+		parse(line);
+	}
+
+	/**
+	 * Parse a line, replacing whatever this message held before. Returns
+	 * false if the line doesn't contain a command, in which case it
+	 * should be ignored.
+	 */
+	public boolean parse(String line)
+	{
+		this.line = line;
+
+		tagsStart = tagsEnd = -1;
+		prefixStart = prefixEnd = -1;
+		commandStart = commandEnd = -1;
+		command = null;
+		for (int i = 0; i < paramCount; i++) {
+			params[i] = null;
+		}
+		paramCount = 0;
+
+		int len = line.length();
+		int pos = skipSpaces(line, 0);
+
+		if (pos < len && line.charAt(pos) == '@') {
+			tagsStart = pos + 1;
+			tagsEnd = nextSpace(line, tagsStart);
+			pos = skipSpaces(line, tagsEnd);
+		}
+
+		if (pos < len && line.charAt(pos) == ':') {
+			prefixStart = pos + 1;
+			prefixEnd = nextSpace(line, prefixStart);
+			pos = skipSpaces(line, prefixEnd);
+		}
+
+		if (pos == len) {
+			return false;
+		}
+
+		commandStart = pos;
+		commandEnd = nextSpace(line, pos);
+		pos = skipSpaces(line, commandEnd);
+
+		while (pos < len) {
+			if (line.charAt(pos) == ':') {
+				paramStart[paramCount] = pos + 1;
+				paramEnd[paramCount] = len;
+				paramCount++;
+				break;
+			}
+
+			if (paramCount == MAX_PARAMS - 1) {
+				paramStart[paramCount] = pos;
+				paramEnd[paramCount] = len;
+				paramCount++;
+				break;
+			}
+
+			int end = nextSpace(line, pos);
+			paramStart[paramCount] = pos;
+			paramEnd[paramCount] = end;
+			paramCount++;
+
+			pos = skipSpaces(line, end);
+		}
+
+		return true;
+	}
+
+	public String getLine() { return line; }
+
+	public boolean hasTags() { return tagsStart != -1; }
+
+	/**
+	 * The raw tags, without the leading '@', or null if there are none.
+	 */
+	public String getTags()
+	{
+		if (tagsStart == -1) {
+			return null;
+		}
+
+		return line.substring(tagsStart, tagsEnd);
+	}
+
+	/**
+	 * Return the unescaped value of a tag, the empty string if the tag
+	 * is present without a value, or null if it isn't present.
+	 */
+	public String getTag(String key)
+	{
+		if (tagsStart == -1) {
+			return null;
+		}
+
+		int pos = tagsStart;
+		while (pos < tagsEnd) {
+			int end = line.indexOf(';', pos);
+			if (end == -1 || end > tagsEnd) {
+				end = tagsEnd;
+			}
+
+			int keyEnd = line.indexOf('=', pos);
+			if (keyEnd == -1 || keyEnd > end) {
+				keyEnd = end;
+			}
+
+			if (keyEnd - pos == key.length() && line.regionMatches(pos, key, 0, key.length())) {
+				if (keyEnd == end) {
+					return "";
+				}
+
+				return unescapeTagValue(line, keyEnd + 1, end);
+			}
+
+			pos = end + 1;
+		}
+
+		return null;
+	}
+
+	public boolean hasPrefix() { return prefixStart != -1; }
+
+	/**
+	 * The prefix, without the leading ':', or null if there is none.
+	 */
+	public String getPrefix()
+	{
+		if (prefixStart == -1) {
+			return null;
+		}
+
+		return line.substring(prefixStart, prefixEnd);
+	}
+
+	/**
+	 * The command exactly as it was sent.
+	 */
+	public String getCommand()
+	{
+		if (command == null) {
+			command = line.substring(commandStart, commandEnd);
+		}
+
+		return command;
+	}
+
+	public int getCommandStart() { return commandStart; }
+	public int getCommandEnd() { return commandEnd; }
+
+	public int getParamCount() { return paramCount; }
+
+	public String getParam(int i)
+	{
+		if (i >= paramCount) {
+			throw new IndexOutOfBoundsException("No parameter " + i);
+		}
+
+		String param = params[i];
+		if (param == null) {
+			param = line.substring(paramStart[i], paramEnd[i]);
+			params[i] = param;
+		}
+
+		return param;
+	}
+
+	/**
+	 * Return parameter i, or def if there are fewer parameters.
+	 */
+	public String getParam(int i, String def)
+	{
+		return i < paramCount ? getParam(i) : def;
+	}
+
+	private static int skipSpaces(String line, int pos)
+	{
+		while (pos < line.length() && line.charAt(pos) == ' ') {
+			pos++;
+		}
+
+		return pos;
+	}
+
+	private static int nextSpace(String line, int pos)
+	{
+		int end = line.indexOf(' ', pos);
+		return end == -1 ? line.length() : end;
+	}
+
+	private static String unescapeTagValue(String line, int start, int end)
+	{
+		int escape = line.indexOf('\\', start);
+		if (escape == -1 || escape >= end) {
+			return line.substring(start, end);
+		}
+
+		StringBuilder value = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+
+			if (++i == end) {
+				break;
+			}
+
+			c = line.charAt(i);
+			switch (c) {
+				case ':': value.append(';'); break;
+				case 's': value.append(' '); break;
+				case 'r': value.append('\r'); break;
+				case 'n': value.append('\n'); break;
+				default: value.append(c); break;
+			}
+		}
+
+		return value.toString();
+	}
+}
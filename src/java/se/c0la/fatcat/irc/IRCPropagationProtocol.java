@@ -11,7 +11,7 @@ public class IRCPropagationProtocol implements PropagationProtocol
 	private IRCProtocol protocol;
 
 	private ServerContext ctx;
-	private AsyncSocketServer server;
+	private AsyncServer server;
 
 	public IRCPropagationProtocol(IRCProtocol protocol)
 	{
@@ -75,8 +75,8 @@ public class IRCPropagationProtocol implements PropagationProtocol
 		// Send /lusers and /motd when connecting
 		IRCReceiverProtocol recvProp = protocol.getReceiverProtocol();
 		try {
-			recvProp.motdMessage(targetUser, new String[] { "MOTD" });
-			recvProp.lusersMessage(targetUser, new String[] { "LUSERS" });
+			recvProp.motdMessage(targetUser, new IRCMessage("MOTD"));
+			recvProp.lusersMessage(targetUser, new IRCMessage("LUSERS"));
 		}
 		catch (ErrorConditionException e) {
 			recvProp.errorMessage(targetUser, e.getCode());
@@ -113,48 +113,106 @@ public class IRCPropagationProtocol implements PropagationProtocol
 	@Override
 	public void message(User targetUser, User source, String target, String message)
 	{
-		String data = String.format(":%s PRIVMSG %s :%s", source, target, message);
+		String data = messageData(source, target, message);
         
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
+	
+	@Override
+	public void message(Collection<User> targetUsers, User source, String target, 
+		String message)
+	{
+		broadcast(targetUsers, messageData(source, target, message));
+	}
+	
+	private String messageData(User source, String target, String message)
+	{
+		return String.format(":%s PRIVMSG %s :%s", source, target, message);
+	}
 
 	@Override
 	public void notice(User targetUser, User source, String target,
 			String message) {
-		String data = String.format(":%s NOTICE %s :%s", source, target, message);
+		String data = noticeData(source, target, message);
         
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
 	
+	@Override
+	public void notice(Collection<User> targetUsers, User source, String target, 
+		String message)
+	{
+		broadcast(targetUsers, noticeData(source, target, message));
+	}
+	
+	private String noticeData(User source, String target, String message)
+	{
+		return String.format(":%s NOTICE %s :%s", source, target, message);
+	}
+	
 	@Override
 	public void nickChange(User targetUser, User source, String newNick)
 	{
-		String data = String.format(":%s NICK :%s", source, newNick);
+		String data = nickChangeData(source, newNick);
         
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
 	
+	@Override
+	public void nickChange(Collection<User> targetUsers, User source, String newNick)
+	{
+		broadcast(targetUsers, nickChangeData(source, newNick));
+	}
+	
+	private String nickChangeData(User source, String newNick)
+	{
+		return String.format(":%s NICK :%s", source, newNick);
+	}
+	
 	@Override
 	public void joinedChannel(User targetUser, User source, Channel channel)
 	{
-		String data = String.format(":%s JOIN %s", source, channel.getName());
+		String data = joinedChannelData(source, channel);
         
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
 	
+	@Override
+	public void joinedChannel(Collection<User> targetUsers, User source, Channel channel)
+	{
+		broadcast(targetUsers, joinedChannelData(source, channel));
+	}
+	
+	private String joinedChannelData(User source, Channel channel)
+	{
+		return String.format(":%s JOIN %s", source, channel.getName());
+	}
+	
 	@Override
 	public void partedChannel(User targetUser, User source, Channel channel, String message)
 	{
-		String data = String.format(":%s PART %s :%s", source, channel.getName(), message);
+		String data = partedChannelData(source, channel, message);
         
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
 	
+	@Override
+	public void partedChannel(Collection<User> targetUsers, User source, Channel channel, 
+		String message)
+	{
+		broadcast(targetUsers, partedChannelData(source, channel, message));
+	}
+	
+	private String partedChannelData(User source, Channel channel, String message)
+	{
+		return String.format(":%s PART %s :%s", source, channel.getName(), message);
+	}
+	
 	@Override
 	public void inviteToChannel(User targetUser, User sourceUser, Channel channel)
 	{
@@ -168,43 +226,104 @@ public class IRCPropagationProtocol implements PropagationProtocol
 	public void kickedFromChannel(User targetUser, User source, Channel channel, 
 		User kickedUser, String message)
 	{
-		String data = String.format(":%s KICK %s %s :%s", source, channel.getName(), 
-			kickedUser.getNick(), message);
+		String data = kickedFromChannelData(source, channel, kickedUser, message);
             
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
 	
+	@Override
+	public void kickedFromChannel(Collection<User> targetUsers, User source, Channel channel, 
+		User kickedUser, String message)
+	{
+		broadcast(targetUsers, kickedFromChannelData(source, channel, kickedUser, message));
+	}
+	
+	private String kickedFromChannelData(User source, Channel channel, User kickedUser, 
+		String message)
+	{
+		return String.format(":%s KICK %s %s :%s", source, channel.getName(), 
+			kickedUser.getNick(), message);
+	}
+	
 	@Override
 	public void topicChanged(User targetUser, User sourceUser, Channel channel, String message)
 	{
-		String data = String.format(":%s TOPIC %s :%s", sourceUser.getNick(), 
-			channel.getName(), message);
+		String data = topicChangedData(sourceUser, channel, message);
             
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
 	
+	@Override
+	public void topicChanged(Collection<User> targetUsers, User sourceUser, Channel channel, 
+		String message)
+	{
+		broadcast(targetUsers, topicChangedData(sourceUser, channel, message));
+	}
+	
+	private String topicChangedData(User sourceUser, Channel channel, String message)
+	{
+		return String.format(":%s TOPIC %s :%s", sourceUser.getNick(), 
+			channel.getName(), message);
+	}
+	
 	@Override
 	public void quit(User targetUser, User source, String message)
 	{
-		String data = String.format(":%s QUIT :%s", source, message);
+		String data = quitData(source, message);
         
         Client client = targetUser.getClient();
 		client.sendMessage(data);
 	}
 	
+	@Override
+	public void quit(Collection<User> targetUsers, User source, String message)
+	{
+		broadcast(targetUsers, quitData(source, message));
+	}
+	
+	private String quitData(User source, String message)
+	{
+		return String.format(":%s QUIT :%s", source, message);
+	}
+	
 	@Override
 	public void attributeChange(User targetUser, User sourceUser, Channel channel, 
 		List<AttributeChange> channelAttrs)
+	{
+		String message = attributeChangeData(sourceUser, channel, channelAttrs);
+            
+        Client client = targetUser.getClient();
+		client.sendMessage(message);
+	}
+	
+	@Override
+	public void attributeChange(Collection<User> targetUsers, User sourceUser, Channel channel, 
+		List<AttributeChange> channelAttrs)
+	{
+		broadcast(targetUsers, attributeChangeData(sourceUser, channel, channelAttrs));
+	}
+	
+	private String attributeChangeData(User sourceUser, Channel channel, 
+		List<AttributeChange> channelAttrs)
 	{
 		Modes<ChannelAttribute> channelModes = protocol.getChannelModes();
 		String modeString = channelModes.serialize(channelAttrs);
 		
-		String message = String.format(":%s MODE %s %s", sourceUser.toString(), 
+		return String.format(":%s MODE %s %s", sourceUser.toString(), 
 			channel.getName(), modeString.toString());
-            
-        Client client = targetUser.getClient();
-		client.sendMessage(message);
+	}
+	
+	/**
+	 * Encode a line once and queue the same bytes for all recipients.
+	 */
+	private void broadcast(Collection<User> targetUsers, String data)
+	{
+		EncodedMessage payload = new EncodedMessage(data);
+		for (User targetUser : targetUsers) {
+			Client client = targetUser.getClient();
+			client.sendMessage(payload);
+		}
 	}
 }
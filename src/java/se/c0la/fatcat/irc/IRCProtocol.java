@@ -9,6 +9,8 @@ import se.c0la.fatcat.async.*;
 
 public class IRCProtocol implements Protocol
 {
+	private final static Pattern BAN_PATTERN = Pattern.compile("([^!]+)!?([^@]*)@(.+)");
+
 	private ServerContext ctx;
 	
 	private IRCReceiverProtocol receiverProtocol;
@@ -72,7 +74,7 @@ public class IRCProtocol implements Protocol
 		return ctx;
 	}
 	
-	public AsyncSocketServer getServer()
+	public AsyncServer getServer()
 	{
 		return ctx.getServer();
 	}
@@ -91,8 +93,7 @@ public class IRCProtocol implements Protocol
 	
 	public Channel.Ban parseBan(String banString)
 	{
-		Pattern splitPattern = Pattern.compile("([^!]+)!?([^@]*)@(.+)");
-		Matcher matcher = splitPattern.matcher(banString);
+		Matcher matcher = BAN_PATTERN.matcher(banString);
 		if (!matcher.matches()) {
 			return null;
 		}
@@ -10,10 +10,22 @@ import se.c0la.fatcat.context.*;
 
 public class IRCReceiverProtocol implements ReceiverProtocol
 {
+	// Messages are handled on the thread of the reactor that received
+	// them, so each thread reuses its own parsed message.
+	private final static ThreadLocal<IRCMessage> parsers = new ThreadLocal<IRCMessage>() {
+		@Override
+		protected IRCMessage initialValue()
+		{
+			return new IRCMessage();
+		}
+	};
+
 	private IRCProtocol protocol;
 
 	private ServerContext ctx;
-	private AsyncSocketServer server;
+	private AsyncServer server;
+
+	private CommandRegistry registry;
 
 	public IRCReceiverProtocol(IRCProtocol protocol)
 	{
@@ -21,109 +33,275 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 
 		ctx = protocol.getServerContext();
 		server = protocol.getServer();
+
+		registry = new CommandRegistry();
+		registerCommands();
 	}
 
-	@Override
-	public void translateMessage(User user, String message)
+	public CommandRegistry getCommandRegistry()
 	{
-		boolean isIdle = true;
-		try {
-            System.out.println(message);
-			String[] messageParts = MessageTokenizer.tokenize(message);
-			String command = messageParts[0].toUpperCase();
-
-			if ("USER".equals(command)) {
-				userMessage(user, messageParts);
-			} 
-            else if ("PASS".equals(command)) {
-				passMessage(user, messageParts);
+		return registry;
+	}
+
+	/**
+	 * Register the commands of the protocol. Additional commands can be
+	 * added through getCommandRegistry() before the server is started.
+	 */
+	private void registerCommands()
+	{
+		registry.register(new Command("USER", 4, false, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				userMessage(user, message);
 			}
-			else if ("NICK".equals(command)) {
-				nickMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("PASS", 1, false, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				passMessage(user, message);
 			}
-			else if ("PRIVMSG".equals(command)) {
-				privmsgMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("NICK", 0, false, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				nickMessage(user, message);
 			}
-			else if("NOTICE".equals(command)) {
-				noticeMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("PRIVMSG", 2, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				privmsgMessage(user, message);
 			}
-			else if ("JOIN".equals(command)) {
-				joinMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("NOTICE", 0, false, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				noticeMessage(user, message);
 			}
-			else if ("INVITE".equals(command)) {
-				inviteMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("JOIN", 1, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				joinMessage(user, message);
 			}
-			else if ("PART".equals(command)) {
-				partMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("INVITE", 2, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				inviteMessage(user, message);
 			}
-			else if ("KICK".equals(command)) {
-				kickMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("PART", 1, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				partMessage(user, message);
 			}
-			else if ("QUIT".equals(command)) {
-				quitMessage(user, messageParts);
-				isIdle = false; // :P
+		}));
+
+		registry.register(new Command("KICK", 2, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				kickMessage(user, message);
 			}
-			else if ("NAMES".equals(command)) {
-				namesMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("QUIT", 0, false, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				quitMessage(user, message);
 			}
-			else if ("TOPIC".equals(command)) {
-				topicMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("NAMES", 1, true, false, 2 * Command.DEFAULT_PENALTY, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				namesMessage(user, message);
 			}
-			else if ("LUSERS".equals(command)) {
-				lusersMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("TOPIC", 1, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				topicMessage(user, message);
 			}
-			else if ("MOTD".equals(command)) {
-				motdMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("LUSERS", 0, true, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				lusersMessage(user, message);
 			}
-			else if ("VERSION".equals(command)) {
-				versionMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("MOTD", 0, true, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				motdMessage(user, message);
 			}
-			else if ("PING".equals(command)) {
-				pingMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("VERSION", 0, false, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				versionMessage(user, message);
 			}
-			else if ("MODE".equals(command)) {
-				modeMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("PING", 1, false, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				pingMessage(user, message);
 			}
-			else if ("WHOIS".equals(command)) {
-				whoisMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("PONG", 0, false, false, 0, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				// accept quietly.
 			}
-			else if ("WHO".equals(command)) {
-				whoMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("MODE", 1, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				modeMessage(user, message);
 			}
-			else if ("PONG".equals(command)) {
-				// accept quietly.
+		}));
+
+		registry.register(new Command("WHOIS", 0, true, false, 2 * Command.DEFAULT_PENALTY, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				whoisMessage(user, message);
 			}
-			else if ("LIST".equals(command)) {
-				listMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("WHO", 1, true, false, 2 * Command.DEFAULT_PENALTY, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				whoMessage(user, message);
 			}
-			else if ("OPER".equals(command)) {
-				operMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("LIST", 0, true, false, 2 * Command.DEFAULT_PENALTY, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				listMessage(user, message);
 			}
-			else if ("KILL".equals(command)) {
-				killMessage(user, messageParts);
-				isIdle = false;
+		}));
+
+		registry.register(new Command("OPER", 2, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				operMessage(user, message);
 			}
-			else if("AWAY".equals(command)) {
-				awayMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("KILL", 2, true, true, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				killMessage(user, message);
+			}
+		}));
+
+		registry.register(new Command("AWAY", 0, true, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				awayMessage(user, message);
 			}
-			else if("TIME".equals(command)) {
-				timeMessage(user, messageParts);
+		}));
+
+		registry.register(new Command("TIME", 0, false, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				timeMessage(user, message);
 			}
-			else {
+		}));
+
+		registry.register(new Command("STATS", 0, true, false, new CommandHandler() {
+			public void handle(User user, IRCMessage message)
+			throws ErrorConditionException, NumericErrorException
+			{
+				statsMessage(user, message);
+			}
+		}));
+	}
+
+	@Override
+	public void translateMessage(User user, String line)
+	{
+		IRCMessage message = parsers.get();
+		if (!message.parse(line)) {
+			// Empty messages are silently ignored
+			return;
+		}
+
+		Command command = registry.get(message);
+
+		// Charge for the command up front, so that failing commands
+		// count as well
+		user.getClient().addPenalty(command != null ? command.getPenalty()
+			: Command.DEFAULT_PENALTY);
+
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			if (command == null) {
 				String responseText = NumericResponse.ERR_UNKNOWNCOMMAND.getText()
-					.replace("<command>", messageParts[0]);
+					.replace("<command>", message.getCommand());
 				throw new NumericErrorException(NumericResponse.ERR_UNKNOWNCOMMAND, responseText);
 			}
+
+			if (command.requiresRegistration() && !user.hasRegistered()) {
+				throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
+			}
+
+			if (message.getParamCount() < command.getMinParams()) {
+				NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
+				String text = num.getText().replace("<command>", message.getCommand());
+				throw new NumericErrorException(num, text);
+			}
+
+			command.getHandler().handle(user, message);
+			success = true;
+
+			/*
+			 * Update user idle time
+			 */
+			if (command.countsAsActivity()) {
+				ctx.idleEvent(user);
+			}
 		}
 		catch (ErrorConditionException e) {
 			errorMessage(user, e.getCode());
@@ -131,21 +309,19 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		catch (NumericErrorException e) {
 			errorMessage(user, e.getCode(), e.getText());
 		}
-
-		/*
-		 * Update user idle time
-		 */
-		if(!isIdle) {
-			ctx.idleEvent(user);
+		finally {
+			if (command != null) {
+				command.record(System.nanoTime() - start, line.length(), success);
+			}
 		}
 	}
 
-	public void userMessage(User user, String[] messageParts)
+	public void userMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
-		if (messageParts.length < 4) {
+		if (message.getParamCount() < 3) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
@@ -153,15 +329,15 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_ALREADYREGISTRED);
 		}
 
-		ctx.userIdentificationEvent(user, messageParts[1], messageParts[2], messageParts[4]);
+		ctx.userIdentificationEvent(user, message.getParam(0), message.getParam(1), message.getParam(3));
 	}
 
-    public void passMessage(User user, String[] messageParts)
+    public void passMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
@@ -169,18 +345,18 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_ALREADYREGISTRED);
 		}
 
-		ctx.passwordEvent(user, messageParts[1]);
+		ctx.passwordEvent(user, message.getParam(0));
 	}
 
-	public void nickMessage(User user, String[] messageParts)
+	public void nickMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			throw new NumericErrorException(NumericResponse.ERR_NONICKNAMEGIVEN);
 		}
 
-		String nick = messageParts[1];
+		String nick = message.getParam(0);
 
 		String valid = protocol.getNickPattern();
 		if (!nick.matches(valid)) {
@@ -208,23 +384,35 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		// ERR_UNAVAILRESOURCE
 		// ERR_RESTRICTED
 
-		ctx.nickEvent(user, messageParts[1]);
+		try {
+			ctx.nickEvent(user, nick);
+		}
+		catch (ErrorConditionException e) {
+			if (e.getCode() != ErrorCondition.E_NICK_IN_USE) {
+				throw e;
+			}
+
+			// Someone else claimed the nick after the check above
+			NumericResponse num = NumericResponse.ERR_NICKNAMEINUSE;
+			String text = num.getText().replace("<nick>", nick);
+			throw new NumericErrorException(num, text);
+		}
 	}
 
-	public void privmsgMessage(User user, String[] messageParts)
+	public void privmsgMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		if (!user.hasRegistered()) {
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 3) {
+		if (message.getParamCount() < 2) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
-		String target = messageParts[1];
+		String target = message.getParam(0);
 
 		// Messages can't be sent to empty channels.
 		Channel channel = ctx.getChannel(target);
@@ -265,26 +453,26 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(num, text);
 		}
 
-		ctx.messageEvent(user, messageParts[1], messageParts[2]);
+		ctx.messageEvent(user, message.getParam(0), message.getParam(1));
 	}
 
 	/**
 	 * This method must not return errors to sender
 	 * @param user
-	 * @param messageParts
+	 * @param message
 	 * @throws ErrorConditionException
 	 */
-	public void noticeMessage(User user, String[] messageParts)
+	public void noticeMessage(User user, IRCMessage message)
 	{
 		if (!user.hasRegistered()) {
 			return;
 		}
 
-		if (messageParts.length < 3) {
+		if (message.getParamCount() < 2) {
 			return;
 		}
 
-		String target = messageParts[1];
+		String target = message.getParam(0);
 
 		// Messages can't be sent to empty channels.
 		Channel channel = ctx.getChannel(target);
@@ -319,23 +507,23 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			return;
 		}
 
-		ctx.noticeEvent(user, messageParts[1], messageParts[2]);
+		ctx.noticeEvent(user, message.getParam(0), message.getParam(1));
 	}
 
-	public void joinMessage(User user, String[] messageParts)
+	public void joinMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		if (!user.hasRegistered()) {
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
-		String[] channelList = messageParts[1].split(",");
+		String[] channelList = message.getParam(0).split(",");
         
         // Prevalidate all channel names
         for (String channelName : channelList) {
@@ -354,29 +542,26 @@ public class IRCReceiverProtocol implements ReceiverProtocol
             }
 
             if (channel != null) {
-                List<Channel.Ban> bans = channel.getBans();
-                for (Channel.Ban ban : bans) {
-                    if (ban.matches(user)) {
-                        NumericResponse num = NumericResponse.ERR_BANNEDFROMCHAN;
-                        String text = num.getText().replace("<channel>", channelName);
-                        throw new NumericErrorException(num, text);
-                    }
+                if (channel.isBanned(user)) {
+                    NumericResponse num = NumericResponse.ERR_BANNEDFROMCHAN;
+                    String text = num.getText().replace("<channel>", channelName);
+                    throw new NumericErrorException(num, text);
                 }
 
                 // Don't let the user join if the channel is invite only
-                if (channel.getAttribute(ChannelAttribute.INVITE_ONLY) != null && !channel.getInvite(user.getNick())) {
+                if (channel.getAttribute(ChannelAttribute.INVITE_ONLY) != null && !channel.getInvite(user)) {
                         NumericResponse num = NumericResponse.ERR_INVITEONLYCHAN;
                         String text = num.getText().replace("<channel>", channelName);
                         throw new NumericErrorException(num, text);
                 }
 
                 // Don't let the user join if the channel has a key and the user hasn't provided it
-                if (channel.getAttribute(ChannelAttribute.KEY) != null && messageParts.length < 3) {
+                if (channel.getAttribute(ChannelAttribute.KEY) != null && message.getParamCount() < 2) {
                         NumericResponse num = NumericResponse.ERR_BADCHANNELKEY;
                         String text = num.getText().replace("<channel>", channelName);
                         throw new NumericErrorException(num, text);
                 }
-                else if (channel.getAttribute(ChannelAttribute.KEY) != null && !messageParts[2].equals(channel.getAttribute(ChannelAttribute.KEY).getData())) {
+                else if (channel.getAttribute(ChannelAttribute.KEY) != null && !message.getParam(1).equals(channel.getAttribute(ChannelAttribute.KEY).getData())) {
                         NumericResponse num = NumericResponse.ERR_BADCHANNELKEY;
                         String text = num.getText().replace("<channel>", channelName);
                         throw new NumericErrorException(num, text);
@@ -385,27 +570,27 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 
             ctx.joinEvent(user, channelName);
 
-            modeMessage(user, new String[] { "MODE", channelName });
-            topicMessage(user, new String[] { "TOPIC", channelName });
-            namesMessage(user, new String[] { "NAMES", channelName });
+            modeMessage(user, new IRCMessage("MODE " + channelName));
+            topicMessage(user, new IRCMessage("TOPIC " + channelName));
+            namesMessage(user, new IRCMessage("NAMES " + channelName));
         }
 	}
 
 
-	public void inviteMessage(User user, String[] messageParts)
+	public void inviteMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		if (!user.hasRegistered()) {
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
-		String channelName = messageParts[2];
+		String channelName = message.getParam(1);
 		Channel channel = ctx.getChannel(channelName);
 		if (channel == null) {
 			return;
@@ -416,7 +601,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(num, text);
 		}
 
-		User targetUser = ctx.getUser(messageParts[1]);
+		User targetUser = ctx.getUser(message.getParam(0));
 		ChannelMember member = channel.getUser(user);
 
 		if (channel.getAttribute(ChannelAttribute.INVITE_ONLY) != null && !member.getAttribute(ChannelAttribute.OP)) {
@@ -431,20 +616,20 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		ctx.inviteEvent(user, channel, targetUser);
 	}
 
-	public void partMessage(User user, String[] messageParts)
+	public void partMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		if (!user.hasRegistered()) {
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
-		String channelName = messageParts[1];
+		String channelName = message.getParam(0);
 		Channel channel = ctx.getChannel(channelName);
 		if (channel == null) {
 			NumericResponse num = NumericResponse.ERR_NOSUCHCHANNEL;
@@ -459,11 +644,11 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(num, text);
 		}
 
-		String partMessage = (messageParts.length > 2 ? messageParts[2] : user.getNick());
+		String partMessage = (message.getParamCount() > 1 ? message.getParam(1) : user.getNick());
 		ctx.partEvent(user, channelName, partMessage);
 	}
 
-	public void kickMessage(User user, String[] messageParts)
+	public void kickMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		if (!user.hasRegistered()) {
@@ -471,13 +656,13 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		}
 
 		// KICK #channel target :message
-		if (messageParts.length < 3) {
+		if (message.getParamCount() < 2) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
-		String channelName = messageParts[1];
+		String channelName = message.getParam(0);
 		Channel channel = ctx.getChannel(channelName);
 		if (channel == null) {
 			NumericResponse num = NumericResponse.ERR_NOSUCHCHANNEL;
@@ -498,7 +683,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(num, text);
 		}
 
-		String kickNick = messageParts[2];
+		String kickNick = message.getParam(1);
 		User kickUser = ctx.getUser(kickNick);
 		ChannelMember kickMember = channel.getUser(kickUser);
 		if (kickMember == null) {
@@ -509,11 +694,11 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(num, text);
 		}
 
-		String kickMessage = (messageParts.length > 3 ? messageParts[3] : user.getNick());
+		String kickMessage = (message.getParamCount() > 2 ? message.getParam(2) : user.getNick());
 		ctx.kickEvent(user, channelName, kickUser, kickMessage);
 	}
 
-	public void modeMessage(User user, String[] messageParts)
+	public void modeMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -522,17 +707,17 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
 		// Mode operations on a user.
-		if (messageParts[1].compareToIgnoreCase(user.getNick()) == 0) {
+		if (CaseMapping.equalsIgnoreCase(message.getParam(0), user.getNick())) {
 
 			Modes<UserAttribute> userModes = protocol.getUserModes();
-			if (messageParts.length == 2) {
+			if (message.getParamCount() == 1) {
 				Set<UserAttribute> attrs = user.getAttributes();
 				String modeString = userModes.serialize(attrs);
 
@@ -541,14 +726,14 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 				String text = modeIs.getText()
 					.replace("<umode>", modeString);
 
-				String message = String.format(":%s %d %s %s", ctx.getServerName(),
+				String data = String.format(":%s %d %s %s", ctx.getServerName(),
 					modeIs.getNum(), user.getNick(), text);
-				client.sendMessage(message);
+				client.sendMessage(data);
 
 				return;
 			}
 
-			String mode = messageParts[2];
+			String mode = message.getParam(1);
 
 			List<AttributeChange> userAttrs =
 				userModes.parseAttributes(mode, new String[0]);
@@ -567,14 +752,14 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 
 			String modeString = userModes.serialize(userAttrs);
 
-			String message = String.format(":%s MODE %s %s", user.toString(),
+			String data = String.format(":%s MODE %s %s", user.toString(),
 				user.getNick(), modeString.toString());
-			client.sendMessage(message);
+			client.sendMessage(data);
 		}
 		// Mode operations on a channel.
 		else {
 			// Non-existent channels doesn't have modes.
-			String channelName = messageParts[1];
+			String channelName = message.getParam(0);
 			Channel channel = ctx.getChannel(channelName);
 			if (channel == null) {
 				NumericResponse num = NumericResponse.ERR_NOSUCHCHANNEL;
@@ -583,7 +768,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			}
 
 			// User requests the current mode
-			if (messageParts.length == 2) {
+			if (message.getParamCount() == 1) {
 				Map<ChannelAttribute, AttributeParameter> attrs =
 					channel.getAttributes();
 
@@ -596,9 +781,9 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 					.replace("<channel>", channel.getName())
 					.replace("<mode> <mode params>", mode);
 
-				String message = String.format(":%s %d %s %s", ctx.getServerName(),
+				String data = String.format(":%s %d %s %s", ctx.getServerName(),
 					modeIs.getNum(), user.getNick(), text);
-				client.sendMessage(message);
+				client.sendMessage(data);
 
 				return;
 			}
@@ -615,11 +800,11 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 				throw new NumericErrorException(num, text);
 			}
 
-			String mode = messageParts[2];
+			String mode = message.getParam(1);
 
 			// Request for bans list
 			if ("b".equals(mode)) {
-				List<Channel.Ban> bans = channel.getBans();
+				Collection<Channel.Ban> bans = channel.getBans();
 				for (Channel.Ban ban : bans) {
 					NumericResponse banListCode = NumericResponse.RPL_BANLIST;
 					String banListText = banListCode.getText()
@@ -655,10 +840,12 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			// might be incompatible. Section 3.2.3 specifies that
 			// the following is a legal command:
 			// MODE &oulu +b *!*@*.edu +e *!*@*.bu.edu
-			int paramCount = messageParts.length - 3;
+			int paramCount = message.getParamCount() - 2;
 			String[] params = new String[paramCount];
 			if (paramCount > 0) {
-				System.arraycopy(messageParts, 3, params, 0, paramCount);
+				for (int i = 0; i < paramCount; i++) {
+					params[i] = message.getParam(i + 2);
+				}
 			}
 
 			Modes<ChannelAttribute> channelModes = protocol.getChannelModes();
@@ -683,7 +870,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		}
 	}
 
-	public void topicMessage(User user, String[] messageParts)
+	public void topicMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -692,14 +879,14 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
 		// You can't retrieve the topic for a channel that doesn't exist.
-		String channelName = messageParts[1];
+		String channelName = message.getParam(0);
 		Channel channel = ctx.getChannel(channelName);
 		if (channel == null) {
 			NumericResponse num = NumericResponse.ERR_NOSUCHCHANNEL;
@@ -708,7 +895,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		}
 
 		// User wants to change topic
-		if (messageParts.length > 2) {
+		if (message.getParamCount() > 1) {
 
 			// Users that isn't on the channel are never allowed to change
 			// the topic.
@@ -729,7 +916,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 				throw new NumericErrorException(num, text);
 			}
 
-			ctx.topicEvent(channel, user, messageParts[2]);
+			ctx.topicEvent(channel, user, message.getParam(1));
 			return;
 		}
 
@@ -777,7 +964,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 	}
 
 	@SuppressWarnings({ "unchecked" })
-	public void namesMessage(User user, String[] messageParts)
+	public void namesMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -786,9 +973,9 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
@@ -796,7 +983,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		// when a request is made for a non-existant channel. Instead
 		// it returns an empty list of nicks, by sending just the
 		// end of names reply.
-		String channelName = messageParts[1];
+		String channelName = message.getParam(0);
 		Channel channel = ctx.getChannel(channelName);
 		if (channel != null) {
 
@@ -807,49 +994,46 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			String prepend = String.format(":%s %03d %s = %s :",
 				ctx.getServerName(), namReply.getNum(), user.getNick(), channelName);
 
-			Set<User> channelUsers = channel.getUsers();
-
 			// Use StringBuffers for speed. For large channels with hundreds of users,
 			// this might make a real difference.
-			StringBuffer message = new StringBuffer();
-			message.append(prepend);
+			StringBuffer reply = new StringBuffer();
+			reply.append(prepend);
+
+			ChannelAttribute[] attrs = new ChannelAttribute[] {
+					ChannelAttribute.OP,
+					ChannelAttribute.HALFOP,
+					ChannelAttribute.VOICE
+				};
 
 			// Return an arbitrary number of users per row.
 			int i = 0, perRow = 10;
 			Modes channelModes = protocol.getChannelModes();
-			for (User channelUser : channelUsers) {
+			MemberTable.Cursor members = channel.getMembers();
+			while (members.next()) {
 
 				// Send a reply every perRow users, and allocate a new buffer.
 				if (i % perRow == 0 && i != 0) {
-					client.sendMessage(message.toString());
+					client.sendMessage(reply.toString());
 
-					message = new StringBuffer();
-					message.append(prepend);
+					reply = new StringBuffer();
+					reply.append(prepend);
 				}
 
-				ChannelMember member = channel.getUser(channelUser);
-
-				ChannelAttribute[] attrs = new ChannelAttribute[] {
-						ChannelAttribute.OP,
-						ChannelAttribute.HALFOP,
-						ChannelAttribute.VOICE
-					};
-
 				String prefix = "";
 				for (ChannelAttribute attr : attrs) {
-					if (member.getAttribute(attr)) {
+					if (members.getAttribute(attr)) {
 						prefix = channelModes.getNickPrefix(attr);
 						break;
 					}
 				}
 
-				message.append(prefix + channelUser.getNick() + " ");
+				reply.append(prefix).append(members.getUser().getNick()).append(' ');
 				i++;
 			}
 
 			// If userCount % perRow != 0, there will be a number of users
 			// remaining in the buffer. Send the last few remaining.
-			client.sendMessage(message.toString());
+			client.sendMessage(reply.toString());
 		}
 
 		// Send end of names message.
@@ -861,7 +1045,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(endOfNamesData);
 	}
 
-	public void listMessage(User user, String[] messageParts)
+	public void listMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -895,7 +1079,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(infoData);
 	}
 
-	public void operMessage(User user, String[] messageParts)
+	public void operMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		try {
@@ -905,18 +1089,18 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 				throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 			}
 
-			if (messageParts.length < 2) {
+			if (message.getParamCount() < 1) {
 				NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-				String text = num.getText().replace("<command>", messageParts[0]);
+				String text = num.getText().replace("<command>", message.getCommand());
 				throw new NumericErrorException(num, text);
 			}
 
-			Operator operator = ctx.getOperator(messageParts[1]);
+			Operator operator = ctx.getOperator(message.getParam(0));
 			if (operator == null) {
 				NumericResponse num = NumericResponse.ERR_NOOPERHOST;
 				throw new NumericErrorException(num, num.getText());
 			} else
-					if (!operator.tryPassword(messageParts[2])) {
+					if (!operator.tryPassword(message.getParam(1))) {
 						NumericResponse num = NumericResponse.ERR_PASSWDMISMATCH;
 						throw new NumericErrorException(num, num.getText());
 					}
@@ -935,16 +1119,16 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		}
 	}
 
-	public void killMessage(User user, String[] messageParts)
+	public void killMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		if (!user.hasRegistered()) {
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
@@ -953,16 +1137,16 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(num, num.getText());
 		}
 
-		User userToKill = ctx.getUser(messageParts[1]);
+		User userToKill = ctx.getUser(message.getParam(0));
 		if (userToKill == null) {
 			NumericResponse num = NumericResponse.ERR_NOSUCHNICK;
 			throw new NumericErrorException(num, num.getText());
 		}
 
-		ctx.killEvent(userToKill, user, "Killed by "+user.getNick()+": "+messageParts[2]);
+		ctx.killEvent(userToKill, user, "Killed by "+user.getNick()+": "+message.getParam(1));
 	}
 
-	public void awayMessage(User user, String[] messageParts)
+	public void awayMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -971,7 +1155,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if(messageParts.length == 1 || messageParts[1].length() == 0) {
+		if(message.getParamCount() == 0 || message.getParam(0).length() == 0) {
 			ctx.notAwayEvent(user);
 			NumericResponse infoCode = NumericResponse.RPL_UNAWAY;
 			String text = String.format(":%s %03d %s %s", ctx.getServerName(), infoCode.getNum(), user.getNick(), infoCode.getText());
@@ -979,21 +1163,21 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		}
 		else
 		{
-			ctx.awayEvent(user, messageParts[1]);
+			ctx.awayEvent(user, message.getParam(0));
 			NumericResponse infoCode = NumericResponse.RPL_NOWAWAY;
 			String text = String.format(":%s %03d %s %s", ctx.getServerName(), infoCode.getNum(), user.getNick(), infoCode.getText());
 			client.sendMessage(text);
 		}
 	}
 
-	public void quitMessage(User user, String[] messageParts)
+	public void quitMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
-		String quitMessage = (messageParts.length > 1 ? messageParts[1] : "Leaving");
+		String quitMessage = (message.getParamCount() > 0 ? message.getParam(0) : "Leaving");
 		ctx.quitEvent(user, quitMessage);
 	}
 
-	public void lusersMessage(User user, String[] messageParts)
+	public void lusersMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -1046,7 +1230,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(infoData);
 	}
 
-	public void motdMessage(User user, String[] messageParts)
+	public void motdMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -1078,7 +1262,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(infoData);
 	}
 
-	public void versionMessage(User user, String[] messageParts)
+	public void versionMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		NumericResponse infoCode = NumericResponse.RPL_VERSION;
@@ -1094,7 +1278,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(infoData);
 	}
 
-	public void whoisMessage(User user, String[] messageParts)
+	public void whoisMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -1103,11 +1287,11 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			throw new NumericErrorException(NumericResponse.ERR_NONICKNAMEGIVEN);
 		}
 
-		String nick = messageParts[1];
+		String nick = message.getParam(0);
 		User queryUser = ctx.getUser(nick);
 		if (queryUser == null) {
 			NumericResponse num = NumericResponse.ERR_NOSUCHNICK;
@@ -1201,7 +1385,7 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(endOfWhoisData);
 	}
 
-	public void whoMessage(User user, String[] messageParts)
+	public void whoMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
         Client client = user.getClient();
@@ -1210,43 +1394,67 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
 		}
 
-		if (messageParts.length < 1) {
+		if (message.getParamCount() < 1) {
 			throw new NumericErrorException(NumericResponse.ERR_NEEDMOREPARAMS);
 		}
 
-		String name = messageParts[1];
+		String name = message.getParam(0);
+		boolean operatorsOnly = message.getParamCount() > 1 && "o".equals(message.getParam(1));
 
 		Channel channel = ctx.getChannel(name);
 
 		if (channel != null)
 		{
-			Set<User> channelUsers = channel.getUsers();
 			String channelName = channel.getName();
 
-			for (User channelUser : channelUsers) {
-				// RPL_WHOREPLY
-				NumericResponse num = NumericResponse.RPL_WHOREPLY;
-
-				ChannelMember channelMember = channel.getUser(channelUser);
-				StringBuffer status = new StringBuffer();
-				status.append(user.getAttribute(UserAttribute.AWAY) ? "H" : "G");
-				status.append(user.getAttribute(UserAttribute.OPERATOR) ? "*" : "");
-				status.append(channelMember.getAttribute(ChannelAttribute.OP) ? "@" : "");
-				status.append(channelMember.getAttribute(ChannelAttribute.VOICE) ? "+" : "");
-
-				String whoText = num.getText()
-					.replace("<channel>", channelName)
-					.replace("<user>", channelUser.getUser())
-					.replace("<host>", channelUser.getHost())
-					.replace("<server>", ctx.getServerName())
-					.replace("<nick>", channelUser.getNick())
-					.replace("<status>", status)
-					.replace("<hopcount>", "0")
-					.replace("<real name>", channelUser.getRealName());
-				String whoData = String.format(":%s %03d %s %s", ctx.getServerName(),
-					num.getNum(), user.getNick(), whoText);
-
-                client.sendMessage(whoData);
+			MemberTable.Cursor members = channel.getMembers();
+			while (members.next()) {
+				User channelUser = members.getUser();
+				if (operatorsOnly && !channelUser.getAttribute(UserAttribute.OPERATOR)) {
+					continue;
+				}
+
+				String memberStatus = "";
+				if (members.getAttribute(ChannelAttribute.OP)) {
+					memberStatus += "@";
+				}
+				if (members.getAttribute(ChannelAttribute.VOICE)) {
+					memberStatus += "+";
+				}
+
+				whoReply(user, channelName, channelUser, memberStatus);
+			}
+		}
+		else
+		{
+			// Not a channel, so treat it as a mask that is matched
+			// against the nick, user name, host and real name of all
+			// users. "0" is an alias for everyone.
+			WildcardPattern mask = new WildcardPattern("0".equals(name) ? "*" : name);
+
+			for (User otherUser : ctx.getUsers()) {
+				if (!otherUser.hasRegistered()) {
+					continue;
+				}
+				if (operatorsOnly && !otherUser.getAttribute(UserAttribute.OPERATOR)) {
+					continue;
+				}
+
+				// Invisible users are only visible to the users
+				// they share a channel with
+				if (otherUser.getAttribute(UserAttribute.INVISIBLE) 
+					&& !otherUser.equals(user) && !sharesChannel(user, otherUser)) {
+					continue;
+				}
+
+				if (!mask.matches(otherUser.getNick())
+					&& !mask.matches(otherUser.getUser())
+					&& !mask.matches(otherUser.getHost())
+					&& !mask.matches(otherUser.getRealName())) {
+					continue;
+				}
+
+				whoReply(user, "*", otherUser, "");
 			}
 		}
 
@@ -1260,23 +1468,60 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(endOfWhoisData);
 	}
 
-	public void pingMessage(User user, String[] messageParts)
+	private void whoReply(User user, String channelName, User whoUser, 
+		String memberStatus)
+	{
+		// RPL_WHOREPLY
+		NumericResponse num = NumericResponse.RPL_WHOREPLY;
+
+		StringBuffer status = new StringBuffer();
+		status.append(whoUser.getAttribute(UserAttribute.AWAY) ? "G" : "H");
+		status.append(whoUser.getAttribute(UserAttribute.OPERATOR) ? "*" : "");
+		status.append(memberStatus);
+
+		String whoText = num.getText()
+			.replace("<channel>", channelName)
+			.replace("<user>", whoUser.getUser())
+			.replace("<host>", whoUser.getHost())
+			.replace("<server>", ctx.getServerName())
+			.replace("<nick>", whoUser.getNick())
+			.replace("<status>", status)
+			.replace("<hopcount>", "0")
+			.replace("<real name>", whoUser.getRealName());
+		String whoData = String.format(":%s %03d %s %s", ctx.getServerName(),
+			num.getNum(), user.getNick(), whoText);
+
+		user.getClient().sendMessage(whoData);
+	}
+
+	private boolean sharesChannel(User user, User otherUser)
+	{
+		for (Channel channel : otherUser.getChannels()) {
+			if (channel.getUser(user) != null) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public void pingMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
-		if (messageParts.length < 2) {
+		if (message.getParamCount() < 1) {
 			NumericResponse num = NumericResponse.ERR_NEEDMOREPARAMS;
-			String text = num.getText().replace("<command>", messageParts[0]);
+			String text = num.getText().replace("<command>", message.getCommand());
 			throw new NumericErrorException(num, text);
 		}
 
 		String reply = String.format(":%s PONG :%s",
-			ctx.getServerName(), messageParts[1]);
+			ctx.getServerName(), message.getParam(0));
 
         Client client = user.getClient();
 		client.sendMessage(reply);
 	}
 
-	public void timeMessage(User user, String[] messageParts)
+	public void timeMessage(User user, IRCMessage message)
 	throws ErrorConditionException, NumericErrorException
 	{
 		DateFormat dateFormatter;
@@ -1294,6 +1539,132 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 		client.sendMessage(text);
 	}
 
+	public void statsMessage(User user, IRCMessage message)
+	throws ErrorConditionException, NumericErrorException
+	{
+        Client client = user.getClient();
+    
+		if (!user.hasRegistered()) {
+			throw new NumericErrorException(NumericResponse.ERR_NOTREGISTERED);
+		}
+
+		String query = (message.getParamCount() > 0 ? message.getParam(0) : "*");
+
+		// l: Send queue depth and traffic for every connection
+		if ("l".equals(query)) {
+			if (!user.getAttribute(UserAttribute.OPERATOR)) {
+				NumericResponse num = NumericResponse.ERR_NOPRIVILEGES;
+				throw new NumericErrorException(num, num.getText());
+			}
+
+			long now = System.currentTimeMillis();
+			for (AsyncConnection conn : server.getConnections()) {
+				Client connClient = (Client)conn.getUserObject();
+				User connUser = ctx.getUser(connClient);
+
+				String linkName = conn.getInetAddress().getHostAddress();
+				if (connUser != null && connUser.getNick() != null) {
+					linkName = String.format("%s[%s]", connUser.getNick(), linkName);
+				}
+
+				NumericResponse num = NumericResponse.RPL_STATSLINKINFO;
+				String text = num.getText()
+					.replace("<linkname>", linkName)
+					.replace("<sendq>", Integer.toString(conn.getSendQueueSize()))
+					.replace("<sent messages>", Long.toString(conn.getSentMessages()))
+					.replace("<sent Kbytes>", Long.toString(conn.getSentBytes() / 1024))
+					.replace("<received messages>", Long.toString(conn.getReceivedMessages()))
+					.replace("<received Kbytes>", Long.toString(conn.getReceivedBytes() / 1024))
+					.replace("<time open>", Long.toString((now - conn.getConnectTime()) / 1000));
+				String data = String.format(":%s %03d %s %s", ctx.getServerName(),
+					num.getNum(), user.getNick(), text);
+
+				client.sendMessage(data);
+			}
+		}
+
+		// m: Usage, errors and latency of each command
+		if ("m".equals(query)) {
+			if (!user.getAttribute(UserAttribute.OPERATOR)) {
+				NumericResponse num = NumericResponse.ERR_NOPRIVILEGES;
+				throw new NumericErrorException(num, num.getText());
+			}
+
+			for (Command command : registry.getCommands()) {
+				if (command.getInvocations() == 0) {
+					continue;
+				}
+
+				LatencyHistogram latency = command.getLatency();
+
+				NumericResponse num = NumericResponse.RPL_STATSCOMMANDS;
+				String text = num.getText()
+					.replace("<command>", command.getName())
+					.replace("<count>", Long.toString(command.getInvocations()))
+					.replace("<byte count>", Long.toString(command.getBytes()))
+					.replace("<remote count>", "0")
+					.replace("<errors>", Long.toString(command.getErrors()))
+					.replace("<p50>", Long.toString(latency.getPercentile(50)))
+					.replace("<p99>", Long.toString(latency.getPercentile(99)));
+				String data = String.format(":%s %03d %s %s", ctx.getServerName(),
+					num.getNum(), user.getNick(), text);
+
+				client.sendMessage(data);
+			}
+		}
+
+		// r: Wakeups and write requests of each reactor
+		if ("r".equals(query) && server instanceof AsyncBase) {
+			if (!user.getAttribute(UserAttribute.OPERATOR)) {
+				NumericResponse num = NumericResponse.ERR_NOPRIVILEGES;
+				throw new NumericErrorException(num, num.getText());
+			}
+
+			for (AsyncReactor reactor : ((AsyncBase)server).getReactors()) {
+				NumericResponse num = NumericResponse.RPL_STATSREACTOR;
+				String text = num.getText()
+					.replace("<reactor>", reactor.getName())
+					.replace("<connections>", Integer.toString(reactor.getConnectionCount()))
+					.replace("<wakeups>", Long.toString(reactor.getWakeups()))
+					.replace("<wakeups saved>", Long.toString(reactor.getWakeupsSaved()))
+					.replace("<writes>", Long.toString(reactor.getWriteRequests()))
+					.replace("<writes coalesced>", Long.toString(reactor.getWriteRequestsCoalesced()));
+				String data = String.format(":%s %03d %s %s", ctx.getServerName(),
+					num.getNum(), user.getNick(), text);
+
+				client.sendMessage(data);
+			}
+		}
+
+		// b: Line buffers, and lines cut short for being too long
+		if ("b".equals(query)) {
+			if (!user.getAttribute(UserAttribute.OPERATOR)) {
+				NumericResponse num = NumericResponse.ERR_NOPRIVILEGES;
+				throw new NumericErrorException(num, num.getText());
+			}
+
+			BufferPool pool = LineFramer.getPool();
+
+			NumericResponse num = NumericResponse.RPL_STATSBUFFERS;
+			String text = num.getText()
+				.replace("<allocated>", Long.toString(pool.getAllocated()))
+				.replace("<reused>", Long.toString(pool.getReused()))
+				.replace("<free>", Integer.toString(pool.getFreeCount()))
+				.replace("<overflows>", Long.toString(LineFramer.getTotalOverflows()));
+			String data = String.format(":%s %03d %s %s", ctx.getServerName(),
+				num.getNum(), user.getNick(), text);
+
+			client.sendMessage(data);
+		}
+
+		NumericResponse endOfStats = NumericResponse.RPL_ENDOFSTATS;
+		String endOfStatsData = String.format(":%s %03d %s %s", ctx.getServerName(),
+			endOfStats.getNum(), user.getNick(),
+			endOfStats.getText().replace("<stats letter>", query));
+
+		client.sendMessage(endOfStatsData);
+	}
+
 	/**
 	 * ErrorConditions are protocol independent and are thrown from
 	 * the ServerContext. This method translates them into the appropriate
@@ -1301,14 +1672,32 @@ public class IRCReceiverProtocol implements ReceiverProtocol
 	 */
 	public void errorMessage(User user, ErrorCondition code)
 	{
-		NumericResponse response = null;
+		NumericResponse response;
 		switch (code) {
+			case E_NEED_MORE_PARAMS:
+				response = NumericResponse.ERR_NEEDMOREPARAMS;
+				break;
 			case E_NOT_REGISTERED:
 				response = NumericResponse.ERR_NOTREGISTERED;
 				break;
+			case E_HAS_REGISTERED:
+				response = NumericResponse.ERR_ALREADYREGISTRED;
+				break;
+			case E_NICK_IN_USE:
+				response = NumericResponse.ERR_NICKNAMEINUSE;
+				break;
+			default:
+				response = NumericResponse.ERR_UNKNOWNERROR;
+				break;
 		}
 
-		errorMessage(user, response, null);
+		// The condition doesn't say which nick or command it's about
+		String text = response.getText()
+			.replace("<nick>", "*")
+			.replace("<command>", "*")
+			.replace("<info>", code.name());
+
+		errorMessage(user, response, text);
 	}
 
 	/**
@@ -0,0 +1,74 @@
+package se.c0la.fatcat.irc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with buckets that double in size. Bucket 0
+ * counts latencies below one microsecond, and bucket i counts latencies
+ * from 2^(i-1) up to 2^i microseconds. Recording is lock free and can
+ * be done from any thread.
+ */
+public class LatencyHistogram
+{
+	public final static int BUCKETS = 32;
+
+	private AtomicLongArray counts;
+
+	public LatencyHistogram()
+	{
+		counts = new AtomicLongArray(BUCKETS);
+	}
+
+	public void record(long nanos)
+	{
+		long micros = nanos / 1000;
+		int bucket = 0;
+		if (micros > 0) {
+			bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		}
+
+		counts.incrementAndGet(bucket);
+	}
+
+	public long getCount(int bucket)
+	{
+		return counts.get(bucket);
+	}
+
+	/**
+	 * The exclusive upper bound of a bucket, in microseconds.
+	 */
+	public static long getUpperBound(int bucket)
+	{
+		return 1L << bucket;
+	}
+
+	/**
+	 * Return the upper bound in microseconds of the bucket containing
+	 * the given percentile, or zero if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long threshold = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= threshold) {
+				return getUpperBound(i);
+			}
+		}
+
+		return getUpperBound(BUCKETS - 1);
+	}
+}
@@ -7,6 +7,12 @@ public enum NumericResponse
 	RPL_CREATED (3, ":This server was created <date>"),
 	RPL_MYINFO (4, "<servername> <version> <available user modes> <available channel modes>"),
 	
+	RPL_STATSLINKINFO (211, "<linkname> <sendq> <sent messages> <sent Kbytes> <received messages> <received Kbytes> <time open>"),
+	RPL_STATSCOMMANDS (212, "<command> <count> <byte count> <remote count> :<errors> errors, p50 <p50>us, p99 <p99>us"),
+	RPL_ENDOFSTATS (219, "<stats letter> :End of STATS report"),
+	RPL_STATSREACTOR (249, "<reactor> :<connections> connections, <wakeups> wakeups, <wakeups saved> wakeups saved, <writes> writes, <writes coalesced> writes coalesced"),
+	RPL_STATSBUFFERS (249, "buffers :<allocated> allocated, <reused> reused, <free> free, <overflows> overlong lines"),
+	
 	RPL_UMODEIS (221, "<umode>"),
 	
 	RPL_LUSERCLIENT (251, ":There are <users> users and <services> services on <servers> servers"),
@@ -65,6 +71,7 @@ public enum NumericResponse
 	RPL_NOWAWAY (306, ":You have been marked as being away"),
 	
 	// Error replies
+	ERR_UNKNOWNERROR (400, "<command> :<info>"),
 	ERR_NOSUCHNICK (401, "<nickname> :No such nick/channel"),
 	ERR_NOSUCHSERVER (402, "<servername> :No such server"),
 	ERR_NOSUCHCHANNEL (403, "<channel> :No such channel"),
@@ -0,0 +1,240 @@
+package se.c0la.fatcat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.c0la.fatcat.async.*;
+import se.c0la.fatcat.context.*;
+import se.c0la.fatcat.irc.*;
+
+/**
+ * Runs a server with the given transport in process, and measures how
+ * fast a channel of clients can talk to each other through it. Every
+ * client sends its messages as fast as it can, and every message goes to
+ * all other clients, stamped with the time it was sent so that the
+ * receivers can tell how long it took to arrive. Flood control is off.
+ *
+ * Usage: TransportBenchmark <Selector|Blocking|Nio2> [clients] [messages] [port]
+ */
+public class TransportBenchmark
+{
+	private final static long TIMEOUT = 60000L;
+
+	private static class BenchClient extends Thread
+	{
+		private final Socket socket;
+		private final BufferedReader in;
+		private final OutputStream out;
+		private final String nick;
+
+		private final CountDownLatch registered;
+		private final CountDownLatch done;
+		private final long expected;
+
+		private final AtomicLong received = new AtomicLong(0);
+		private long[] latencies;
+		private int latencyCount;
+
+		private BenchClient(int port, String nick, long expected,
+			CountDownLatch registered, CountDownLatch done)
+		throws IOException
+		{
+			super("client-" + nick);
+			setDaemon(true);
+
+			this.socket = new Socket("127.0.0.1", port);
+			this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				"ISO-8859-1"));
+			this.out = socket.getOutputStream();
+			this.nick = nick;
+			this.expected = expected;
+			this.registered = registered;
+			this.done = done;
+
+			latencies = new long[(int)Math.min(expected, 1 << 20)];
+			latencyCount = 0;
+		}
+
+		private void send(String data)
+		throws IOException
+		{
+			out.write(data.getBytes("ISO-8859-1"));
+			out.flush();
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("PING ")) {
+						send("PONG " + line.substring(5) + "\r\n");
+					}
+					else if (line.contains(" 366 ")) {
+						// End of NAMES, so the JOIN has gone through
+						registered.countDown();
+					}
+					else if (line.contains(" PRIVMSG #bench :")) {
+						long sent = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+						if (latencyCount < latencies.length) {
+							latencies[latencyCount++] = System.nanoTime() - sent;
+						}
+
+						if (received.incrementAndGet() == expected) {
+							done.countDown();
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		if (args.length < 1) {
+			System.err.println("Usage: TransportBenchmark <Selector|Blocking|Nio2> "
+				+ "[clients] [messages] [port]");
+			System.exit(1);
+		}
+
+		String transport = args[0];
+		int clients = (args.length > 1 ? Integer.parseInt(args[1]) : 50);
+		int messages = (args.length > 2 ? Integer.parseInt(args[2]) : 200);
+		int port = (args.length > 3 ? Integer.parseInt(args[3]) : 16700);
+		int cpus = Runtime.getRuntime().availableProcessors();
+
+		final AsyncServer server;
+		if ("Selector".equalsIgnoreCase(transport)) {
+			AsyncSocketServer selector = new AsyncSocketServer();
+			selector.setWorkerCount(cpus, AsyncBase.Balancing.LEAST_LOADED);
+			server = selector;
+		} else if ("Blocking".equalsIgnoreCase(transport)) {
+			server = new BlockingSocketServer();
+		} else if ("Nio2".equalsIgnoreCase(transport)) {
+			server = new Nio2SocketServer(0);
+		} else {
+			throw new IllegalArgumentException("Invalid transport: " + transport);
+		}
+
+		server.addListenPort(port);
+		server.setFloodControl(0, 0);
+
+		ServerContext ctx = new ServerContext(server);
+		ctx.setServerName("bench.local");
+		ctx.setHostLookup(0, 0);
+		ctx.setChannelShards(cpus);
+
+		EventDispatcher dispatcher = new EventDispatcher(server, ctx);
+		dispatcher.setDefaultProtocol(new IRCProtocol(ctx));
+		server.addConnectionListener(dispatcher);
+
+		Thread listener = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					server.listen();
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "listen");
+		listener.setDaemon(true);
+		listener.start();
+		Thread.sleep(500);
+
+		long expected = (long)(clients - 1) * messages;
+		CountDownLatch registered = new CountDownLatch(clients);
+		CountDownLatch done = new CountDownLatch(clients);
+
+		BenchClient[] bench = new BenchClient[clients];
+		for (int i = 0; i < clients; i++) {
+			bench[i] = new BenchClient(port, "bench" + i, expected, registered, done);
+			bench[i].start();
+			bench[i].send("NICK bench" + i + "\r\nUSER bench 0 * :bench\r\nJOIN #bench\r\n");
+		}
+
+		if (!registered.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+			System.out.println(transport + ": clients failed to join");
+			System.exit(1);
+		}
+
+		// Senders start together, each on its own thread
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] senders = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final BenchClient client = bench[i];
+			final int count = messages;
+			senders[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					try {
+						start.await();
+						for (int n = 0; n < count; n++) {
+							client.send("PRIVMSG #bench :" + client.nick + " " + n + " "
+								+ System.nanoTime() + "\r\n");
+						}
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			senders[i].setDaemon(true);
+			senders[i].start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		boolean complete = done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+		long elapsed = System.nanoTime() - begin;
+
+		long delivered = 0;
+		int samples = 0;
+		for (BenchClient client : bench) {
+			delivered += client.received.get();
+			samples += client.latencyCount;
+		}
+
+		long[] all = new long[samples];
+		int pos = 0;
+		for (BenchClient client : bench) {
+			System.arraycopy(client.latencies, 0, all, pos, client.latencyCount);
+			pos += client.latencyCount;
+		}
+		Arrays.sort(all);
+
+		System.out.printf("%-8s %d clients x %d messages: %s %d of %d deliveries in %d ms, "
+			+ "%.0f/s, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+			transport, clients, messages, complete ? "all" : "ONLY", delivered,
+			expected * clients, elapsed / 1000000, delivered * 1e9 / elapsed,
+			percentile(all, 50), percentile(all, 99), percentile(all, 100));
+
+		server.shutdown();
+		System.exit(complete ? 0 : 1);
+	}
+
+	private static double percentile(long[] sorted, int p)
+	{
+		if (sorted.length == 0) {
+			return 0;
+		}
+
+		int index = (int)Math.min(sorted.length - 1, (long)sorted.length * p / 100);
+		return sorted[index] / 1e6;
+	}
+}
@@ -0,0 +1,171 @@
+package se.c0la.fatcat.async;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares LineFramer with the read path it replaced, which decoded every
+ * read into a String, appended it to a StringBuffer and cut lines off the
+ * front with substring(). Both are fed the same stream in reads of a given
+ * size, and the bytes allocated and time taken per line are reported.
+ * Small reads of long lines are where the old path goes quadratic.
+ *
+ * Usage: LineFramerBenchmark [lines] [line length] [read size]
+ */
+public class LineFramerBenchmark
+{
+	private final static int ROUNDS = 5;
+
+	private static interface Framer
+	{
+		public int feed(ByteBuffer data)
+		throws Exception;
+	}
+
+	/**
+	 * The read path of AsyncBase before LineFramer.
+	 */
+	private static class StringBufferFramer implements Framer
+	{
+		private final StringBuffer buffer = new StringBuffer();
+
+		@Override
+		public int feed(ByteBuffer readBuffer)
+		throws Exception
+		{
+			int lines = 0;
+
+			buffer.append(new String(readBuffer.array(), 0, readBuffer.limit(), "ISO-8859-1"));
+			String data = buffer.toString();
+			buffer.delete(0, buffer.length());
+
+			int idx;
+			while ((idx = data.indexOf('\n')) != -1) {
+				String line = data.substring(0, idx).trim();
+				data = data.substring(idx + 1);
+
+				lines += (line.length() > 0 ? 1 : 0);
+			}
+
+			if (data.length() > 0) {
+				buffer.append(data);
+			}
+
+			return lines;
+		}
+	}
+
+	private static class ByteFramer implements Framer
+	{
+		private final LineFramer framer = new LineFramer();
+
+		@Override
+		public int feed(ByteBuffer readBuffer)
+		{
+			int lines = 0;
+
+			framer.feed(readBuffer);
+
+			String line;
+			while ((line = framer.nextLine()) != null) {
+				lines += (line.length() > 0 ? 1 : 0);
+			}
+
+			return lines;
+		}
+	}
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		int lines = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+		int length = (args.length > 1 ? Integer.parseInt(args[1]) : 80);
+		int readSize = (args.length > 2 ? Integer.parseInt(args[2]) : 1024);
+
+		if (length + 2 > LineFramer.MAX_LINE_LENGTH) {
+			throw new IllegalArgumentException("Lines are limited to "
+				+ (LineFramer.MAX_LINE_LENGTH - 2) + " characters");
+		}
+
+		byte[] stream = buildStream(lines, length);
+
+		System.out.printf("%d lines of %d bytes, read %d bytes at a time%n",
+			lines, length, readSize);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			boolean last = (round == ROUNDS - 1);
+			run("StringBuffer", new StringBufferFramer(), stream, readSize, lines, last);
+			run("LineFramer", new ByteFramer(), stream, readSize, lines, last);
+		}
+	}
+
+	private static byte[] buildStream(int lines, int length)
+	{
+		String prefix = "PRIVMSG #bench :";
+		StringBuilder line = new StringBuilder(prefix);
+		while (line.length() < length) {
+			line.append((char)('a' + line.length() % 26));
+		}
+		line.setLength(length);
+		line.append("\r\n");
+
+		byte[] one = line.toString().getBytes(StandardCharsets.ISO_8859_1);
+		byte[] stream = new byte[one.length * lines];
+		for (int i = 0; i < lines; i++) {
+			System.arraycopy(one, 0, stream, i * one.length, one.length);
+		}
+
+		return stream;
+	}
+
+	private static void run(String name, Framer framer, byte[] stream, int readSize,
+		int expected, boolean report)
+	throws Exception
+	{
+		// Reused across reads, as the read buffer of a reactor is
+		ByteBuffer readBuffer = ByteBuffer.allocate(readSize);
+
+		long bytesBefore = allocatedBytes();
+		long start = System.nanoTime();
+
+		int lines = 0;
+		for (int pos = 0; pos < stream.length; pos += readSize) {
+			int len = Math.min(readSize, stream.length - pos);
+			readBuffer.clear();
+			readBuffer.put(stream, pos, len);
+			readBuffer.flip();
+
+			lines += framer.feed(readBuffer);
+		}
+
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - bytesBefore;
+
+		if (lines != expected) {
+			throw new IllegalStateException(name + " framed " + lines + " lines, expected "
+				+ expected);
+		}
+
+		if (report) {
+			System.out.printf("%-12s %8.1f bytes/line %8.1f ns/line%n", name,
+				(allocated < 0 ? Double.NaN : (double)allocated / lines),
+				(double)elapsed / lines);
+		}
+	}
+
+	/**
+	 * Bytes allocated by this thread so far, or -1 where the JVM can't
+	 * tell.
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+		}
+
+		return -1;
+	}
+}
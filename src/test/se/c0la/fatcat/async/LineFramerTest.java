@@ -0,0 +1,251 @@
+package se.c0la.fatcat.async;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Feeds streams to LineFramer in reads as large as the ones AsyncReactor
+ * makes, and checks that the lines come out whole and in order, that
+ * overlong lines are cut short without taking the lines after them along,
+ * and that no line is ever put together from pieces of others.
+ *
+ * Usage: LineFramerTest
+ */
+public class LineFramerTest
+{
+	private final static int REACTOR_READ = 8092;
+
+	private static int failures = 0;
+
+	public static void main(String[] args)
+	{
+		longTaggedLine();
+		overlongTaggedLine();
+		randomReads();
+		undrainedReads();
+
+		if (failures > 0) {
+			System.out.println(failures + " failures");
+			System.exit(1);
+		}
+
+		System.out.println("OK");
+		System.exit(0);
+	}
+
+	/**
+	 * A tagged line close to the limit, which stays incomplete in the
+	 * framer over a full read and a short one, and then has another full
+	 * read arrive on top of it.
+	 */
+	private static void longTaggedLine()
+	{
+		List<String> lines = new ArrayList<String>();
+		lines.add(taggedLine(LineFramer.MAX_TAGS_LENGTH + LineFramer.MAX_LINE_LENGTH - 100));
+		for (int i = 0; i < 2000; i++) {
+			lines.add("PRIVMSG #a :hello " + i);
+		}
+
+		List<String> framed = frame(join(lines), new int[] { REACTOR_READ, 500 });
+		check("long tagged line", framed.equals(lines), framed, lines);
+	}
+
+	/**
+	 * A tagged line past the limit is cut short, and everything after it
+	 * arrives intact.
+	 */
+	private static void overlongTaggedLine()
+	{
+		List<String> lines = new ArrayList<String>();
+		lines.add(taggedLine(LineFramer.MAX_TAGS_LENGTH + LineFramer.MAX_LINE_LENGTH + 500));
+		for (int i = 0; i < 2000; i++) {
+			lines.add("PRIVMSG #a :hello " + i);
+		}
+
+		List<String> framed = frame(join(lines), new int[] { REACTOR_READ, 500 });
+
+		int limit = LineFramer.MAX_TAGS_LENGTH + LineFramer.MAX_LINE_LENGTH - 2;
+		List<String> expected = new ArrayList<String>(lines);
+		expected.set(0, lines.get(0).substring(0, limit));
+
+		check("overlong tagged line", framed.equals(expected), framed, expected);
+	}
+
+	/**
+	 * Lines of all lengths, in reads of all sizes up to a full one.
+	 */
+	private static void randomReads()
+	{
+		Random random = new Random(1);
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			int length = random.nextInt(480);
+			if (random.nextInt(20) == 0) {
+				lines.add(taggedLine(random.nextInt(LineFramer.MAX_TAGS_LENGTH)
+					+ LineFramer.MAX_LINE_LENGTH / 2));
+			} else {
+				lines.add("PRIVMSG #a :" + filler(i, length));
+			}
+		}
+
+		byte[] stream = join(lines);
+		LineFramer framer = new LineFramer();
+		List<String> framed = new ArrayList<String>();
+		int pos = 0;
+		while (pos < stream.length) {
+			int len = Math.min(1 + random.nextInt(REACTOR_READ), stream.length - pos);
+			framer.feed(ByteBuffer.wrap(stream, pos, len));
+			pos += len;
+
+			drain(framer, framed);
+		}
+		framer.release();
+
+		check("random reads", framed.equals(lines), framed, lines);
+		check("random reads overflows", framer.getOverflows() == 0, null, null);
+	}
+
+	/**
+	 * A caller that feeds full reads without taking the lines out in
+	 * between fills the buffer, and lines get dropped, but only ever
+	 * whole ones.
+	 */
+	private static void undrainedReads()
+	{
+		Set<String> valid = new HashSet<String>();
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			String line = "PRIVMSG #a :" + filler(i, 40 + i % 100);
+			lines.add(line);
+			valid.add(line);
+		}
+
+		byte[] stream = join(lines);
+		LineFramer framer = new LineFramer();
+		List<String> framed = new ArrayList<String>();
+		for (int pos = 0; pos < stream.length; pos += REACTOR_READ) {
+			int len = Math.min(REACTOR_READ, stream.length - pos);
+			framer.feed(ByteBuffer.wrap(stream, pos, len));
+
+			// Only drain every third read
+			if ((pos / REACTOR_READ) % 3 == 2) {
+				drain(framer, framed);
+			}
+		}
+		drain(framer, framed);
+		framer.release();
+
+		boolean whole = valid.containsAll(framed);
+		boolean ordered = true;
+		int last = -1;
+		for (String line : framed) {
+			int index = lines.indexOf(line);
+			ordered &= (index > last);
+			last = index;
+		}
+
+		check("undrained reads only drop whole lines", whole && ordered, null, null);
+		check("undrained reads count the dropped lines",
+			framer.getOverflows() > 0 && framed.size() < lines.size(), null, null);
+	}
+
+	/**
+	 * Feed the stream in reads of the given sizes, followed by full reads,
+	 * taking the lines out after each read like the transports do.
+	 */
+	private static List<String> frame(byte[] stream, int[] readSizes)
+	{
+		LineFramer framer = new LineFramer();
+		List<String> framed = new ArrayList<String>();
+		int pos = 0;
+		for (int read = 0; pos < stream.length; read++) {
+			int size = (read < readSizes.length ? readSizes[read] : REACTOR_READ);
+			int len = Math.min(size, stream.length - pos);
+			framer.feed(ByteBuffer.wrap(stream, pos, len));
+			pos += len;
+
+			drain(framer, framed);
+		}
+		framer.release();
+
+		return framed;
+	}
+
+	private static void drain(LineFramer framer, List<String> framed)
+	{
+		String line;
+		while ((line = framer.nextLine()) != null) {
+			framed.add(line);
+		}
+	}
+
+	/**
+	 * A tagged PRIVMSG of the given length, without line break.
+	 */
+	private static String taggedLine(int length)
+	{
+		String command = " PRIVMSG #a :tagged";
+		StringBuilder line = new StringBuilder("@t=");
+		while (line.length() < length - command.length()) {
+			line.append('t');
+		}
+		line.append(command);
+
+		return line.toString();
+	}
+
+	private static String filler(int seed, int length)
+	{
+		StringBuilder text = new StringBuilder();
+		text.append(seed).append(':');
+		while (text.length() < length) {
+			text.append((char)('a' + text.length() % 26));
+		}
+
+		return text.toString();
+	}
+
+	private static byte[] join(List<String> lines)
+	{
+		StringBuilder stream = new StringBuilder();
+		for (String line : lines) {
+			stream.append(line).append("\r\n");
+		}
+
+		return stream.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void check(String name, boolean ok, List<String> got, List<String> expected)
+	{
+		if (ok) {
+			return;
+		}
+
+		failures++;
+		System.out.println("FAIL " + name);
+		if (got == null) {
+			return;
+		}
+
+		for (int i = 0; i < Math.max(got.size(), expected.size()); i++) {
+			String a = (i < got.size() ? got.get(i) : null);
+			String b = (i < expected.size() ? expected.get(i) : null);
+			if (a == null || !a.equals(b)) {
+				System.out.println("  line " + i + ": got " + abbreviate(a) + ", expected "
+					+ abbreviate(b));
+				break;
+			}
+		}
+	}
+
+	private static String abbreviate(String line)
+	{
+		if (line == null || line.length() <= 60) {
+			return line;
+		}
+
+		return line.substring(0, 30) + "..." + line.substring(line.length() - 27)
+			+ " (" + line.length() + " chars)";
+	}
+}
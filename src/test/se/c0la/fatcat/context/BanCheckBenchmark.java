@@ -0,0 +1,158 @@
+package se.c0la.fatcat.context;
+
+import java.util.*;
+
+/**
+ * Measures the cost of checking a joining user against the bans of a
+ * channel as the number of bans grows, both through Channel.isBanned(),
+ * which goes through the ban index, and by matching every ban in turn, as
+ * JOIN did before the index. The bans are a mix of exact hosts and
+ * *.domain masks, once on their own and once with some masks with
+ * wildcards in the middle, which the index has to check one by one. Most
+ * users joining match none of the bans, which is the common and the most
+ * expensive case.
+ *
+ * Usage: BanCheckBenchmark [checks] [ban counts...]
+ */
+public class BanCheckBenchmark
+{
+	private final static int USERS = 1024;
+	private final static int ROUNDS = 5;
+
+	// Out of every 20 bans, how many are of each kind. The rest are
+	// exact hosts.
+	private final static int SUFFIX_BANS = 5;
+	private final static int[] WILD_BANS = { 0, 1 };
+
+	// Keeps the results of the checks alive
+	private static volatile int sink;
+
+	public static void main(String[] args)
+	{
+		int checks = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+
+		int[] banCounts = { 10, 100, 1000, 5000, 10000 };
+		if (args.length > 1) {
+			banCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				banCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		Random random = new Random(1);
+		User[] users = new User[USERS];
+		for (int i = 0; i < USERS; i++) {
+			users[i] = createUser(random, i);
+		}
+
+		for (int wild : WILD_BANS) {
+			System.out.printf("%d in 20 bans with wildcards in the middle%n", wild);
+			System.out.printf("%8s %14s %14s %10s%n", "bans", "index ns/join",
+				"linear ns/join", "banned");
+
+			for (int count : banCounts) {
+				run(random, users, checks, count, wild);
+			}
+		}
+	}
+
+	private static void run(Random random, User[] users, int checks, int count, int wild)
+	{
+		Channel channel = new Channel("#bench");
+		for (int i = 0; i < count; i++) {
+			channel.addBan(createBan(random, i, wild));
+		}
+
+		// Only a few users are meant to be banned, and both ways
+		// of checking have to agree on which.
+		int banned = 0;
+		for (User user : users) {
+			boolean indexed = channel.isBanned(user);
+			if (indexed != isBannedLinear(channel, user)) {
+				throw new IllegalStateException("Index and linear check disagree on "
+					+ user.getNick() + "!" + user.getUser() + "@" + user.getHost());
+			}
+			banned += (indexed ? 1 : 0);
+		}
+
+		long indexTime = 0;
+		long linearTime = 0;
+		int linearChecks = (int)Math.max(1000, Math.min(checks, checks * 100L / count));
+		for (int round = 0; round < ROUNDS; round++) {
+			indexTime = timeIndex(channel, users, checks);
+			linearTime = timeLinear(channel, users, linearChecks);
+		}
+
+		System.out.printf("%8d %14.1f %14.1f %10d%n", count, (double)indexTime / checks,
+			(double)linearTime / linearChecks, banned);
+	}
+
+	private static User createUser(Random random, int i)
+	{
+		User user = new User();
+		user.setNick("user" + i);
+		user.setUser("ident" + (i % 50));
+		user.setHost(host(random.nextInt(100000), random.nextInt(500)));
+
+		return user;
+	}
+
+	private static String host(int number, int domain)
+	{
+		return "host-" + number + ".dyn.isp" + domain + ".example.net";
+	}
+
+	private static Channel.Ban createBan(Random random, int i, int wild)
+	{
+		int kind = i % 20;
+		if (kind < wild) {
+			return new Channel.Ban("*", "*", "*spam" + i + "*", 0);
+		} else if (kind < wild + SUFFIX_BANS) {
+			return new Channel.Ban("*", "*", "*.isp" + (1000 + i) + ".example.net", 0);
+		}
+
+		return new Channel.Ban("*", "*", host(random.nextInt(100000), random.nextInt(500)), 0);
+	}
+
+	private static boolean isBannedLinear(Channel channel, User user)
+	{
+		for (Channel.Ban ban : channel.getBans()) {
+			if (ban.matches(user)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static long timeIndex(Channel channel, User[] users, int checks)
+	{
+		int hits = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < checks; i++) {
+			hits += (channel.isBanned(users[i % USERS]) ? 1 : 0);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		sink(hits);
+		return elapsed;
+	}
+
+	private static long timeLinear(Channel channel, User[] users, int checks)
+	{
+		int hits = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < checks; i++) {
+			hits += (isBannedLinear(channel, users[i % USERS]) ? 1 : 0);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		sink(hits);
+		return elapsed;
+	}
+
+	private static void sink(int value)
+	{
+		sink += value;
+	}
+}
@@ -0,0 +1,192 @@
+package se.c0la.fatcat.context;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import se.c0la.fatcat.*;
+import se.c0la.fatcat.async.*;
+
+/**
+ * Compares the memory per member and the cost of walking the members of
+ * MemberTable with the storage it replaced, a HashMap from each user to a
+ * ChannelMember holding an EnumSet of its modes. Memory is the growth of
+ * the heap after a full collection once a number of channels have been
+ * filled with the same users, so the users themselves aren't counted.
+ *
+ * Usage: MemberTableBenchmark [members] [channels]
+ */
+public class MemberTableBenchmark
+{
+	private final static int ROUNDS = 5;
+
+	// One member out of this many is voiced, and one out of ten times
+	// this many is an operator
+	private final static int VOICE_EVERY = 10;
+
+	private static class StubClient implements Client
+	{
+		private final InetAddress addr;
+
+		private StubClient(InetAddress addr)
+		{
+			this.addr = addr;
+		}
+
+		@Override
+		public String getHost() { return addr.getHostAddress(); }
+
+		@Override
+		public InetAddress getInetAddress() { return addr; }
+
+		@Override
+		public void sendMessage(String message) {}
+
+		@Override
+		public void sendMessage(EncodedMessage message) {}
+
+		@Override
+		public void closeConnection() {}
+
+		@Override
+		public void addPenalty(long millis) {}
+	}
+
+	/**
+	 * ChannelMember as it was before MemberTable.
+	 */
+	private static class EnumSetMember
+	{
+		private final EnumSet<ChannelAttribute> attributes =
+			EnumSet.noneOf(ChannelAttribute.class);
+	}
+
+	// Keeps the results of the walks alive
+	private static volatile long sink;
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		int members = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		int channels = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+
+		Client client = new StubClient(InetAddress.getByName("127.0.0.1"));
+		User[] users = new User[members];
+		for (int i = 0; i < members; i++) {
+			users[i] = new User(client, i + 1);
+		}
+
+		System.out.printf("%d channels of %d members%n", channels, members);
+
+		long base = usedMemory();
+		List<MemberTable> tables = new ArrayList<MemberTable>();
+		for (int c = 0; c < channels; c++) {
+			tables.add(fillTable(users));
+		}
+		long tableBytes = usedMemory() - base;
+
+		base = usedMemory();
+		List<Map<User, EnumSetMember>> maps = new ArrayList<Map<User, EnumSetMember>>();
+		for (int c = 0; c < channels; c++) {
+			maps.add(fillMap(users));
+		}
+		long mapBytes = usedMemory() - base;
+
+		long tableTime = 0;
+		long mapTime = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			tableTime = walkTables(tables);
+			mapTime = walkMaps(maps);
+		}
+
+		long total = (long)members * channels;
+		System.out.printf("%-11s %8.1f bytes/member %6.2f ns/member walked%n", "MemberTable",
+			(double)tableBytes / total, (double)tableTime / total);
+		System.out.printf("%-11s %8.1f bytes/member %6.2f ns/member walked%n", "HashMap",
+			(double)mapBytes / total, (double)mapTime / total);
+
+		// Both sets of channels have to stay reachable until measured
+		sink += tables.size() + maps.size();
+	}
+
+	private static MemberTable fillTable(User[] users)
+	{
+		MemberTable table = new MemberTable();
+		for (int i = 0; i < users.length; i++) {
+			table.add(users[i]);
+			if (i % VOICE_EVERY == 0) {
+				table.setAttribute(users[i].getId(), ChannelAttribute.VOICE);
+			}
+			if (i % (VOICE_EVERY * 10) == 0) {
+				table.setAttribute(users[i].getId(), ChannelAttribute.OP);
+			}
+		}
+
+		return table;
+	}
+
+	private static Map<User, EnumSetMember> fillMap(User[] users)
+	{
+		Map<User, EnumSetMember> map = new HashMap<User, EnumSetMember>();
+		for (int i = 0; i < users.length; i++) {
+			EnumSetMember member = new EnumSetMember();
+			if (i % VOICE_EVERY == 0) {
+				member.attributes.add(ChannelAttribute.VOICE);
+			}
+			if (i % (VOICE_EVERY * 10) == 0) {
+				member.attributes.add(ChannelAttribute.OP);
+			}
+			map.put(users[i], member);
+		}
+
+		return map;
+	}
+
+	/**
+	 * Walk every member the way a fan-out does, looking at the user and
+	 * at whether it's voiced.
+	 */
+	private static long walkTables(List<MemberTable> tables)
+	{
+		long sum = 0;
+		long start = System.nanoTime();
+		for (MemberTable table : tables) {
+			MemberTable.Cursor members = table.cursor();
+			while (members.next()) {
+				sum += members.getUser().getId();
+				sum += (members.getAttribute(ChannelAttribute.VOICE) ? 1 : 0);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		sink += sum;
+		return elapsed;
+	}
+
+	private static long walkMaps(List<Map<User, EnumSetMember>> maps)
+	{
+		long sum = 0;
+		long start = System.nanoTime();
+		for (Map<User, EnumSetMember> map : maps) {
+			for (Map.Entry<User, EnumSetMember> entry : map.entrySet()) {
+				sum += entry.getKey().getId();
+				sum += (entry.getValue().attributes.contains(ChannelAttribute.VOICE) ? 1 : 0);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		sink += sum;
+		return elapsed;
+	}
+
+	private static long usedMemory()
+	throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,391 @@
+package se.c0la.fatcat.context;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.c0la.fatcat.*;
+import se.c0la.fatcat.async.*;
+import se.c0la.fatcat.irc.*;
+
+/**
+ * Races JOIN, PART, NICK, member MODE changes and messages against a
+ * ServerContext from several threads, while other threads iterate over
+ * the members of the channels, and then checks that no change was lost.
+ * Every thread works on users of its own, so the expected end state is
+ * known exactly even though the channels are shared.
+ *
+ * Usage: ServerContextStress [threads] [rounds] [shards]
+ */
+public class ServerContextStress
+{
+	private final static int USERS_PER_THREAD = 8;
+	private final static int CHANNELS = 16;
+	private final static int READERS = 2;
+
+	private final static AtomicLong sent = new AtomicLong(0);
+
+	private static class StubClient implements Client
+	{
+		private final InetAddress addr;
+
+		private StubClient(InetAddress addr)
+		{
+			this.addr = addr;
+		}
+
+		@Override
+		public String getHost() { return addr.getHostAddress(); }
+
+		@Override
+		public InetAddress getInetAddress() { return addr; }
+
+		@Override
+		public void sendMessage(String message)
+		{
+			sent.incrementAndGet();
+		}
+
+		@Override
+		public void sendMessage(EncodedMessage message)
+		{
+			sent.incrementAndGet();
+		}
+
+		@Override
+		public void closeConnection()
+		{
+		}
+
+		@Override
+		public void addPenalty(long millis)
+		{
+		}
+	}
+
+	private static class Worker extends Thread
+	{
+		private final ServerContext ctx;
+		private final int number;
+		private final int rounds;
+		private final Random random;
+
+		private final Client[] clients;
+		private final String[] nicks;
+		private final List<Set<String>> joined;
+		private final List<Set<String>> voiced;
+
+		private volatile Throwable failure;
+
+		private Worker(ServerContext ctx, Protocol protocol, int number, int rounds)
+		throws Exception
+		{
+			super("Worker-" + number);
+
+			this.ctx = ctx;
+			this.number = number;
+			this.rounds = rounds;
+			this.random = new Random(number);
+
+			clients = new Client[USERS_PER_THREAD];
+			nicks = new String[USERS_PER_THREAD];
+			joined = new ArrayList<Set<String>>();
+			voiced = new ArrayList<Set<String>>();
+
+			InetAddress addr = InetAddress.getByName("127.0.0.1");
+			for (int i = 0; i < USERS_PER_THREAD; i++) {
+				clients[i] = new StubClient(addr);
+				nicks[i] = "w" + number + "u" + i;
+				joined.add(new HashSet<String>());
+				voiced.add(new HashSet<String>());
+
+				ctx.userConnectedEvent(clients[i], protocol);
+				ctx.nickEvent(ctx.getUser(clients[i]), nicks[i]);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				for (int round = 0; round < rounds; round++) {
+					step(round);
+				}
+			}
+			catch (Throwable e) {
+				failure = e;
+			}
+		}
+
+		private void step(int round)
+		throws ErrorConditionException
+		{
+			int i = random.nextInt(USERS_PER_THREAD);
+			User user = ctx.getUser(clients[i]);
+			String name = "#chan" + random.nextInt(CHANNELS);
+
+			Set<String> channels = joined.get(i);
+			Set<String> voices = voiced.get(i);
+
+			switch (random.nextInt(5)) {
+				case 0:
+					if (channels.add(name)) {
+						ctx.joinEvent(user, name);
+					}
+					break;
+				case 1:
+					if (channels.remove(name)) {
+						voices.remove(name);
+						ctx.partEvent(user, name, "bye");
+					}
+					break;
+				case 2:
+					nicks[i] = "w" + number + "u" + i + "r" + round;
+					ctx.nickEvent(user, nicks[i]);
+					break;
+				case 3:
+					if (channels.contains(name)) {
+						boolean set = !voices.contains(name);
+						List<AttributeChange> changes = new ArrayList<AttributeChange>();
+						changes.add(new AttributeChange(ChannelAttribute.VOICE, set, nicks[i]));
+						ctx.channelAttributeEvent(user, ctx.getChannel(name), changes);
+
+						if (set) {
+							voices.add(name);
+						} else {
+							voices.remove(name);
+						}
+					}
+					break;
+				case 4:
+					if (channels.contains(name)) {
+						ctx.messageEvent(user, name, "round " + round);
+					}
+					break;
+			}
+		}
+	}
+
+	private static class Reader extends Thread
+	{
+		private final ServerContext ctx;
+		private volatile boolean running = true;
+		private volatile Throwable failure;
+		private long iterations = 0;
+
+		private Reader(ServerContext ctx, int number)
+		{
+			super("Reader-" + number);
+			this.ctx = ctx;
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				while (running) {
+					for (int c = 0; c < CHANNELS; c++) {
+						Channel channel = ctx.getChannel("#chan" + c);
+						if (channel == null) {
+							continue;
+						}
+
+						int count = 0;
+						MemberTable.Cursor members = channel.getMembers();
+						while (members.next()) {
+							if (members.getUser() == null) {
+								throw new IllegalStateException("Hole in " + channel.getName());
+							}
+							count++;
+						}
+
+						for (User user : channel.getUsers()) {
+							user.getNick();
+						}
+
+						iterations += count;
+					}
+				}
+			}
+			catch (Throwable e) {
+				failure = e;
+			}
+		}
+	}
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		int threads = (args.length > 0 ? Integer.parseInt(args[0]) : 8);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+		int shards = (args.length > 2 ? Integer.parseInt(args[2]) : 0);
+
+		ServerContext ctx = new ServerContext(null);
+		ctx.setServerName("stress.local");
+		ctx.setHostLookup(0, 0);
+		ctx.setChannelShards(shards);
+		Protocol protocol = new IRCProtocol(ctx);
+
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(ctx, protocol, i, rounds);
+		}
+
+		Reader[] readers = new Reader[READERS];
+		for (int i = 0; i < READERS; i++) {
+			readers[i] = new Reader(ctx, i);
+			readers[i].start();
+		}
+
+		long start = System.nanoTime();
+		for (Worker worker : workers) {
+			worker.start();
+		}
+		for (Worker worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		for (Reader reader : readers) {
+			reader.running = false;
+			reader.join();
+		}
+
+		// Let queued message fan-out finish
+		ChannelExecutor executor = ctx.getChannelExecutor();
+		while (executor != null && backlog(executor) > 0) {
+			Thread.sleep(10);
+		}
+
+		List<String> failures = new ArrayList<String>();
+		for (Worker worker : workers) {
+			if (worker.failure != null) {
+				failures.add(worker.getName() + " threw " + worker.failure);
+			}
+		}
+		for (Reader reader : readers) {
+			if (reader.failure != null) {
+				failures.add(reader.getName() + " threw " + reader.failure);
+			}
+		}
+
+		verify(ctx, workers, failures);
+
+		System.out.printf("%d threads, %d rounds each, %d shards: %d ms, %d messages queued%n",
+			threads, rounds, shards, elapsed / 1000000, sent.get());
+
+		if (!failures.isEmpty()) {
+			int shown = 0;
+			for (String failure : failures) {
+				System.out.println("FAIL " + failure);
+				if (++shown == 20) {
+					break;
+				}
+			}
+			System.out.println(failures.size() + " failures");
+			System.exit(1);
+		}
+
+		System.out.println("OK, no lost updates");
+		System.exit(0);
+	}
+
+	private static int backlog(ChannelExecutor executor)
+	{
+		int total = 0;
+		for (int n : executor.getBacklog()) {
+			total += n;
+		}
+
+		return total;
+	}
+
+	private static void verify(ServerContext ctx, Worker[] workers, List<String> failures)
+	{
+		Map<String, Set<User>> expected = new HashMap<String, Set<User>>();
+		for (int c = 0; c < CHANNELS; c++) {
+			expected.put("#chan" + c, new HashSet<User>());
+		}
+
+		Set<Channel> registered = Collections.newSetFromMap(
+			new IdentityHashMap<Channel, Boolean>());
+		registered.addAll(ctx.getChannels());
+
+		for (Worker worker : workers) {
+			for (int i = 0; i < USERS_PER_THREAD; i++) {
+				User user = ctx.getUser(worker.clients[i]);
+				String nick = worker.nicks[i];
+
+				User byNick = ctx.getUser(nick);
+				if (byNick == null || byNick.getId() != user.getId()) {
+					failures.add("nick " + nick + " doesn't lead to its user");
+				}
+				if (!nick.equals(user.getNick())) {
+					failures.add("user " + nick + " is called " + user.getNick());
+				}
+
+				Set<String> names = new HashSet<String>();
+				for (Channel channel : user.getChannels()) {
+					names.add(channel.getName());
+					if (!registered.contains(channel)) {
+						failures.add(nick + " is in orphaned channel " + channel.getName());
+					}
+				}
+				if (!names.equals(worker.joined.get(i))) {
+					failures.add(nick + " is in " + names + ", expected " + worker.joined.get(i));
+				}
+
+				for (String name : worker.joined.get(i)) {
+					expected.get(name).add(user);
+				}
+			}
+		}
+
+		for (Map.Entry<String, Set<User>> entry : expected.entrySet()) {
+			String name = entry.getKey();
+			Set<User> members = entry.getValue();
+			Channel channel = ctx.getChannel(name);
+
+			if (members.isEmpty()) {
+				if (channel != null) {
+					failures.add(name + " is empty but still exists");
+				}
+				continue;
+			}
+
+			if (channel == null) {
+				failures.add(name + " is missing, expected " + members.size() + " members");
+				continue;
+			}
+
+			if (channel.getUserCount() != members.size()) {
+				failures.add(name + " has " + channel.getUserCount() + " members, expected "
+					+ members.size());
+			}
+
+			for (User user : members) {
+				if (!channel.getUsers().contains(user)) {
+					failures.add(user.getNick() + " is missing from " + name);
+				}
+			}
+		}
+
+		for (Worker worker : workers) {
+			for (int i = 0; i < USERS_PER_THREAD; i++) {
+				User user = ctx.getUser(worker.clients[i]);
+				for (String name : worker.joined.get(i)) {
+					Channel channel = ctx.getChannel(name);
+					ChannelMember member = (channel != null ? channel.getUser(user) : null);
+					if (member == null) {
+						continue;
+					}
+
+					boolean voice = member.getAttributes().contains(ChannelAttribute.VOICE);
+					if (voice != worker.voiced.get(i).contains(name)) {
+						failures.add(user.getNick() + " has voice " + voice + " in " + name);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package se.c0la.fatcat.irc;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import se.c0la.fatcat.*;
+import se.c0la.fatcat.async.*;
+import se.c0la.fatcat.context.*;
+
+/**
+ * Sends a mix of commands through IRCReceiverProtocol.translateMessage()
+ * from users in a shared channel, and reports the latency of each
+ * command, both as timed here and as recorded by the command registry,
+ * which is what STATS m shows. Replies go to clients that drop them, so
+ * the numbers are the cost of parsing, dispatch and the handlers.
+ *
+ * Usage: CommandBenchmark [users] [rounds]
+ */
+public class CommandBenchmark
+{
+	private final static String[] LINES = {
+		"PRIVMSG #bench :hello there, how is everyone doing today?",
+		"NOTICE #bench :the server restarts in ten minutes",
+		"PING :bench.local",
+		"PONG :bench.local",
+		"TOPIC #bench",
+		"NAMES #bench",
+		"WHO #bench",
+		"WHOIS user0",
+		"MODE #bench",
+		"AWAY :not here",
+		"AWAY",
+		"LUSERS",
+		"VERSION",
+		"TIME",
+		"NOSUCHCOMMAND"
+	};
+
+	private static class StubClient implements Client
+	{
+		private final InetAddress addr;
+
+		private StubClient(InetAddress addr)
+		{
+			this.addr = addr;
+		}
+
+		@Override
+		public String getHost() { return addr.getHostAddress(); }
+
+		@Override
+		public InetAddress getInetAddress() { return addr; }
+
+		@Override
+		public void sendMessage(String message) {}
+
+		@Override
+		public void sendMessage(EncodedMessage message) {}
+
+		@Override
+		public void closeConnection() {}
+
+		@Override
+		public void addPenalty(long millis) {}
+	}
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		int userCount = (args.length > 0 ? Integer.parseInt(args[0]) : 100);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+
+		ServerContext ctx = new ServerContext(null);
+		ctx.setServerName("bench.local");
+		ctx.setServerInfo("Benchmark");
+		ctx.setHostLookup(0, 0);
+		IRCProtocol protocol = new IRCProtocol(ctx);
+		IRCReceiverProtocol receiver = protocol.getReceiverProtocol();
+
+		InetAddress addr = InetAddress.getByName("127.0.0.1");
+		User[] users = new User[userCount];
+		for (int i = 0; i < userCount; i++) {
+			Client client = new StubClient(addr);
+			ctx.userConnectedEvent(client, protocol);
+			users[i] = ctx.getUser(client);
+
+			receiver.translateMessage(users[i], "NICK user" + i);
+			receiver.translateMessage(users[i], "USER user" + i + " 0 * :Bench user");
+			receiver.translateMessage(users[i], "JOIN #bench");
+
+			if (!users[i].hasRegistered()) {
+				throw new IllegalStateException("user" + i + " didn't register");
+			}
+		}
+
+		// The first rounds warm up, and only the rest are reported
+		int warmup = rounds / 5;
+		Map<String, long[]> timings = new LinkedHashMap<String, long[]>();
+		for (String line : LINES) {
+			timings.put(line, new long[2]);
+		}
+
+		for (int round = 0; round < rounds; round++) {
+			User user = users[round % userCount];
+			for (String line : LINES) {
+				long start = System.nanoTime();
+				receiver.translateMessage(user, line);
+				long elapsed = System.nanoTime() - start;
+
+				if (round >= warmup) {
+					long[] timing = timings.get(line);
+					timing[0]++;
+					timing[1] += elapsed;
+				}
+			}
+		}
+
+		System.out.printf("%d users in #bench, %d rounds of %d commands%n", userCount,
+			rounds - warmup, LINES.length);
+		System.out.printf("%-60s %10s%n", "line", "ns/command");
+		for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+			long[] timing = entry.getValue();
+			System.out.printf("%-60s %10.0f%n", entry.getKey(), (double)timing[1] / timing[0]);
+		}
+
+		// What the registry recorded, warm up included
+		System.out.println();
+		System.out.printf("%-10s %10s %8s %10s %10s%n", "command", "count", "errors",
+			"p50 us", "p99 us");
+		for (Command command : receiver.getCommandRegistry().getCommands()) {
+			if (command.getInvocations() == 0) {
+				continue;
+			}
+
+			LatencyHistogram latency = command.getLatency();
+			System.out.printf("%-10s %10d %8d %10d %10d%n", command.getName(),
+				command.getInvocations(), command.getErrors(), latency.getPercentile(50),
+				latency.getPercentile(99));
+		}
+
+		System.exit(0);
+	}
+}
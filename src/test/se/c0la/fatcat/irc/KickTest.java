@@ -0,0 +1,138 @@
+package se.c0la.fatcat.irc;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import se.c0la.fatcat.*;
+import se.c0la.fatcat.async.*;
+import se.c0la.fatcat.context.*;
+
+/**
+ * Sends KICK commands through IRCReceiverProtocol and checks the replies:
+ * kicking a nick that doesn't exist, or a user that isn't on the channel,
+ * gets ERR_USERNOTINCHANNEL, and kicking a member removes it.
+ *
+ * Usage: KickTest
+ */
+public class KickTest
+{
+	private static int failures = 0;
+
+	private static class RecordingClient implements Client
+	{
+		private final InetAddress addr;
+		private final List<String> messages = new ArrayList<String>();
+
+		private RecordingClient(InetAddress addr)
+		{
+			this.addr = addr;
+		}
+
+		@Override
+		public String getHost() { return addr.getHostAddress(); }
+
+		@Override
+		public InetAddress getInetAddress() { return addr; }
+
+		@Override
+		public synchronized void sendMessage(String message)
+		{
+			messages.add(message);
+		}
+
+		@Override
+		public synchronized void sendMessage(EncodedMessage message)
+		{
+		}
+
+		@Override
+		public void closeConnection() {}
+
+		@Override
+		public void addPenalty(long millis) {}
+
+		private synchronized List<String> takeMessages()
+		{
+			List<String> taken = new ArrayList<String>(messages);
+			messages.clear();
+			return taken;
+		}
+	}
+
+	public static void main(String[] args)
+	throws Exception
+	{
+		ServerContext ctx = new ServerContext(null);
+		ctx.setServerName("test.local");
+		ctx.setServerInfo("Test");
+		ctx.setHostLookup(0, 0);
+		IRCProtocol protocol = new IRCProtocol(ctx);
+		IRCReceiverProtocol receiver = protocol.getReceiverProtocol();
+
+		InetAddress addr = InetAddress.getByName("127.0.0.1");
+		RecordingClient aliceClient = new RecordingClient(addr);
+		RecordingClient bobClient = new RecordingClient(addr);
+		RecordingClient carolClient = new RecordingClient(addr);
+
+		User alice = connect(ctx, protocol, aliceClient, "alice");
+		User bob = connect(ctx, protocol, bobClient, "bob");
+		connect(ctx, protocol, carolClient, "carol");
+
+		receiver.translateMessage(alice, "JOIN #chan");
+		receiver.translateMessage(bob, "JOIN #chan");
+		aliceClient.takeMessages();
+
+		receiver.translateMessage(alice, "KICK #chan nosuchnick");
+		expectNumeric("unknown nick", aliceClient, 441, "nosuchnick #chan");
+
+		receiver.translateMessage(alice, "KICK #chan carol");
+		expectNumeric("user not on channel", aliceClient, 441, "carol #chan");
+
+		receiver.translateMessage(alice, "KICK #chan bob :bye");
+		Channel channel = ctx.getChannel("#chan");
+		check("kicked member is removed", channel != null && channel.getUser(bob) == null
+			&& channel.getUser(alice) != null);
+
+		if (failures > 0) {
+			System.out.println(failures + " failures");
+			System.exit(1);
+		}
+
+		System.out.println("OK");
+		System.exit(0);
+	}
+
+	private static User connect(ServerContext ctx, IRCProtocol protocol, Client client,
+		String nick)
+	{
+		ctx.userConnectedEvent(client, protocol);
+		User user = ctx.getUser(client);
+
+		IRCReceiverProtocol receiver = protocol.getReceiverProtocol();
+		receiver.translateMessage(user, "NICK " + nick);
+		receiver.translateMessage(user, "USER " + nick + " 0 * :Test user");
+
+		return user;
+	}
+
+	private static void expectNumeric(String name, RecordingClient client, int num,
+		String params)
+	{
+		String expected = String.format(" %03d ", num);
+		for (String message : client.takeMessages()) {
+			if (message.contains(expected) && message.contains(params)) {
+				return;
+			}
+		}
+
+		check(name + " gets " + num, false);
+	}
+
+	private static void check(String name, boolean ok)
+	{
+		if (!ok) {
+			failures++;
+			System.out.println("FAIL " + name);
+		}
+	}
+}
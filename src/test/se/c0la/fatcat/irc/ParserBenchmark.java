@@ -0,0 +1,153 @@
+package se.c0la.fatcat.irc;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares parsing a line into an IRCMessage and looking its command up
+ * in a CommandTable with what translateMessage used to do: split the line
+ * with MessageTokenizer, upper case the command and compare it to every
+ * command name in turn. Both paths read every parameter, as a handler
+ * would, and report the time taken and bytes allocated per line. Lines
+ * with IRCv3 tags are only parsed by IRCMessage, since the tokenizer
+ * doesn't know about them.
+ *
+ * Usage: ParserBenchmark [lines]
+ */
+public class ParserBenchmark
+{
+	private final static int ROUNDS = 5;
+
+	// In the order the old if/else chain compared them
+	private final static String[] COMMANDS = {
+		"USER", "PASS", "NICK", "PRIVMSG", "NOTICE", "JOIN", "INVITE", "PART", "KICK",
+		"QUIT", "NAMES", "TOPIC", "LUSERS", "MOTD", "VERSION", "PING", "MODE", "WHOIS",
+		"WHO", "PONG", "LIST", "OPER", "KILL", "AWAY", "TIME"
+	};
+
+	// Mostly messages, as on a busy server
+	private final static String[] LINES = {
+		"PRIVMSG #fatcat :hello there, how is everyone doing today?",
+		"PRIVMSG #fatcat :not bad, just reading the backlog",
+		"privmsg alice :did you see the latest release notes?",
+		"NOTICE #fatcat :the server restarts in ten minutes",
+		"PRIVMSG #fatcat :brb",
+		"PING :irc.example.net",
+		"JOIN #fatcat,#help",
+		"MODE #fatcat +ov alice bob",
+		"WHO #help",
+		"PONG irc.example.net"
+	};
+
+	private final static String[] TAGGED_LINES = {
+		"@time=2024-01-01T00:00:00.000Z;msgid=abc123 PRIVMSG #fatcat :hello there",
+		"@label=42 :alice!alice@example.net PRIVMSG #fatcat :tagged and prefixed",
+		"@+typing=active TAGMSG #fatcat"
+	};
+
+	// Keeps the results of the parsing alive
+	private static volatile long sink;
+
+	public static void main(String[] args)
+	{
+		int lines = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+
+		CommandTable<Integer> table = new CommandTable<Integer>();
+		for (int i = 0; i < COMMANDS.length; i++) {
+			table.put(COMMANDS[i], i);
+		}
+		table.put("TAGMSG", COMMANDS.length);
+
+		System.out.printf("%d lines%n", lines);
+
+		long[] result = null;
+		for (int round = 0; round < ROUNDS; round++) {
+			result = timeTokenizer(LINES, lines);
+		}
+		report("MessageTokenizer", result, lines);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			result = timeParser(table, LINES, lines);
+		}
+		report("IRCMessage", result, lines);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			result = timeParser(table, TAGGED_LINES, lines);
+		}
+		report("IRCMessage, tags", result, lines);
+	}
+
+	private static long[] timeTokenizer(String[] input, int lines)
+	{
+		long sum = 0;
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < lines; i++) {
+			String[] parts = MessageTokenizer.tokenize(input[i % input.length]);
+			String command = parts[0].toUpperCase();
+
+			int index = -1;
+			for (int c = 0; c < COMMANDS.length; c++) {
+				if (COMMANDS[c].equals(command)) {
+					index = c;
+					break;
+				}
+			}
+
+			sum += index;
+			for (int p = 1; p < parts.length; p++) {
+				sum += parts[p].length();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		sink += sum;
+		return new long[] { elapsed, bytes };
+	}
+
+	private static long[] timeParser(CommandTable<Integer> table, String[] input, int lines)
+	{
+		long sum = 0;
+		IRCMessage message = new IRCMessage();
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < lines; i++) {
+			if (!message.parse(input[i % input.length])) {
+				continue;
+			}
+
+			Integer index = table.get(message);
+			sum += (index != null ? index : -1);
+			for (int p = 0; p < message.getParamCount(); p++) {
+				sum += message.getParam(p).length();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		sink += sum;
+		return new long[] { elapsed, bytes };
+	}
+
+	private static void report(String name, long[] result, int lines)
+	{
+		System.out.printf("%-18s %7.1f ns/line %7.1f bytes/line%n", name,
+			(double)result[0] / lines,
+			(result[1] < 0 ? Double.NaN : (double)result[1] / lines));
+	}
+
+	/**
+	 * Bytes allocated by this thread so far, or -1 where the JVM can't
+	 * tell.
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+		}
+
+		return -1;
+	}
+}